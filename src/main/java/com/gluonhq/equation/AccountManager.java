@@ -50,6 +50,20 @@ public class AccountManager {
         return this.socket.registerPreKeys(identityKey, signedPreKey, oneTimePreKeys);
     }
 
+    /**
+     * Replaces the signed pre-key on the server.
+     */
+    public void setSignedPreKey(SignedPreKeyRecord signedPreKey) throws IOException {
+        this.socket.setCurrentSignedPreKey(signedPreKey);
+    }
+
+    /**
+     * @return the number of one-time pre-keys that the server still has for this device
+     */
+    public int getPreKeysCount() throws IOException {
+        return this.socket.getAvailablePreKeys();
+    }
+
     public GroupsV2Api getGroupsV2Api() {
         return new GroupsV2Api(socket, groupsV2Operations);
     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import com.gluonhq.equation.store.WriterPool;
+import java.io.Closeable;
+import java.lang.System.Logger.Level;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many accounts in one JVM. Every account has its own directory below
+ * a base directory, with its own {@link WaveManager} and {@link WaveStore},
+ * while all accounts share one bounded pool of threads for key maintenance
+ * and message sending, and a few threads that write the stores to disk.
+ * The host is configured with the system properties
+ * <ul>
+ * <li><code>com.gluonhq.wave.host.threads</code>: the size of the shared pool
+ * (default: the number of processors)</li>
+ * <li><code>com.gluonhq.wave.host.writerThreads</code>: the number of threads
+ * that write the stores (default 2)</li>
+ * <li><code>com.gluonhq.wave.host.maxAccounts</code>: the maximum number of
+ * accounts (default 10000)</li>
+ * <li><code>com.gluonhq.wave.host.sessionCacheSize</code>: the memory for
+ * parsed sessions per account, in bytes (default 4 MiB)</li>
+ * </ul>
+ */
+public class WaveHost implements Closeable {
+
+    private static final int THREADS = Integer.getInteger("com.gluonhq.wave.host.threads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int WRITER_THREADS = Integer.getInteger("com.gluonhq.wave.host.writerThreads", 2);
+    private static final int MAX_ACCOUNTS = Integer.getInteger("com.gluonhq.wave.host.maxAccounts", 10000);
+    private static final long SESSION_CACHE_SIZE = Long.getLong("com.gluonhq.wave.host.sessionCacheSize", 4 * 1024 * 1024);
+
+    private final Path baseDir;
+    private final ScheduledExecutorService scheduler;
+    private final WriterPool writers;
+    private final ConcurrentHashMap<String, WaveManager> accounts = new ConcurrentHashMap<>();
+
+    public WaveHost(Path baseDir) {
+        this.baseDir = baseDir.toAbsolutePath().normalize();
+        this.scheduler = Executors.newScheduledThreadPool(THREADS, r -> {
+            Thread t = new Thread(r, "wave-host");
+            t.setDaemon(true);
+            return t;
+        });
+        this.writers = new WriterPool("wave-host-writer", WRITER_THREADS);
+    }
+
+    /**
+     * Returns the manager for an account, creating it if needed.
+     *
+     * @param name the name of the account, which is also the name of its directory
+     * @throws IllegalStateException if the host already has the maximum number of accounts
+     */
+    public WaveManager getAccount(String name) {
+        Path root = baseDir.resolve(name).normalize();
+        if (!baseDir.equals(root.getParent())) {
+            throw new IllegalArgumentException("Invalid account name: " + name);
+        }
+        return accounts.computeIfAbsent(name, n -> {
+            if (accounts.size() >= MAX_ACCOUNTS) {
+                throw new IllegalStateException("This host can't have more than " + MAX_ACCOUNTS + " accounts");
+            }
+            WaveManager manager = new WaveManager(root, scheduler, writers);
+            manager.setSessionCacheSize(SESSION_CACHE_SIZE);
+            return manager;
+        });
+    }
+
+    /**
+     * @return the names of the accounts that are running on this host
+     */
+    public Set<String> getAccounts() {
+        return new TreeSet<>(accounts.keySet());
+    }
+
+    /**
+     * Stops an account and closes its store.
+     */
+    public void removeAccount(String name) {
+        WaveManager manager = accounts.remove(name);
+        if (manager != null) {
+            manager.close();
+        }
+    }
+
+    /**
+     * Stops all accounts, and the shared threads.
+     */
+    @Override
+    public void close() {
+        for (String name : getAccounts()) {
+            removeAccount(name);
+        }
+        writers.close();
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                WAVELOG.log(Level.WARNING, "[WaveHost] shared threads didn't stop in time");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
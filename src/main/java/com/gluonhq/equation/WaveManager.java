@@ -7,6 +7,9 @@ package com.gluonhq.equation;
 
 import com.gluonhq.equation.internal.KeyUtil;
 import com.gluonhq.equation.internal.LockImpl;
+import com.gluonhq.equation.internal.PreKeyPool;
+import com.gluonhq.equation.internal.SessionPruner;
+import com.gluonhq.equation.internal.SignedPreKeyRotation;
 import com.gluonhq.equation.internal.TrustStoreImpl;
 import com.gluonhq.equation.log.WaveLogger;
 import com.gluonhq.equation.message.MessagingClient;
@@ -15,6 +18,7 @@ import com.gluonhq.equation.model.Group;
 import com.gluonhq.equation.model.Message;
 import com.gluonhq.equation.provision.ProvisioningClient;
 import com.gluonhq.equation.provision.ProvisioningManager;
+import com.gluonhq.equation.store.WriterPool;
 import com.gluonhq.equation.util.ChannelUtils;
 import java.io.File;
 import java.io.FileInputStream;
@@ -38,7 +42,10 @@ import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -205,14 +212,61 @@ public class WaveManager {
     private boolean groupStorageDirty = true;
     private ProvisioningManager provisioningManager;
     private AccountManager accountManager;
+    // shared by all users of pre-keys; the store reserves the ids
+    private final KeyUtil keyUtil = new KeyUtil(this);
+    private PreKeyPool preKeyPool;
+    private SessionPruner sessionPruner;
+    private ScheduledFuture<?> snapshotTask;
+    private SignedPreKeyRotation signedPreKeyRotation;
     HashMap<Integer, AuthCredentialResponse> groupCredentials;
     private Supplier<Boolean> fatalErrorSupplier;
     private Consumer<String> restartRequestConsumer;
+    private static ScheduledExecutorService defaultScheduler;
+    // seconds between snapshots of the store, 0 to only write one on close
+    private static final long SNAPSHOT_INTERVAL = Long.getLong("com.gluonhq.wave.store.snapshotInterval", 10 * 60);
+    private final Path root;
+    private final ScheduledExecutorService scheduler;
+    private final WriterPool writers;
+    private final boolean hosted;
+    private final ChannelUtils channelUtils = new ChannelUtils();
+    private volatile long sessionCacheSize;
 
-    public WaveManager() { 
-        WAVELOG = new WaveLogger();
-        WAVELOG.log(Level.INFO, "Starting WaveManager");
-        this.waveStore = new WaveStore();
+    public WaveManager() {
+        this(Path.of(System.getProperty("com.gluonhq.wave.root",
+                System.getProperty("user.home") + File.separator + ".signalfx")), null);
+    }
+
+    /**
+     * Creates a manager for the account that is stored in the given directory.
+     * Several managers can run in the same JVM, as long as they use different
+     * directories.
+     *
+     * @param root the directory for the store and the contacts of the account
+     * @param scheduler runs the periodic key maintenance and the message sender
+     * tasks, and can be shared by many managers; if null, a scheduler that is
+     * shared in this JVM is used, and the sender gets an executor of its own
+     */
+    public WaveManager(Path root, ScheduledExecutorService scheduler) {
+        this(root, scheduler, null);
+    }
+
+    /**
+     * Creates a manager for the account that is stored in the given directory.
+     *
+     * @param root the directory for the store and the contacts of the account
+     * @param scheduler runs the periodic key maintenance and the message sender
+     * tasks, see {@link #WaveManager(Path, ScheduledExecutorService)}
+     * @param writers the threads that write the store to disk, which can be
+     * shared by many managers; if null, the store has a writer thread of its own
+     */
+    public WaveManager(Path root, ScheduledExecutorService scheduler, WriterPool writers) {
+        initLogger();
+        WAVELOG.log(Level.INFO, "Starting WaveManager at " + root);
+        this.root = root;
+        this.writers = writers;
+        this.hosted = scheduler != null;
+        this.scheduler = hosted ? scheduler : defaultScheduler();
+        this.waveStore = createStore();
         Path contacts = waveStore.SIGNAL_FX_PATH.resolve("contacts/");
         SIGNAL_FX_CONTACTS_DIR = contacts.toFile();
         try {
@@ -224,12 +278,47 @@ public class WaveManager {
         postInit();
     }
     
+    private static synchronized void initLogger() {
+        if (WAVELOG == null) {
+            WAVELOG = new WaveLogger();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService defaultScheduler() {
+        if (defaultScheduler == null) {
+            defaultScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "wave-scheduler");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return defaultScheduler;
+    }
+
+    private WaveStore createStore() {
+        WaveStore store = new WaveStore(root, System.getProperty("com.gluonhq.wave.store.engine", "directory"), writers);
+        if (sessionCacheSize > 0) {
+            store.setSessionCacheSize(sessionCacheSize);
+        }
+        return store;
+    }
+
+    /**
+     * Limits the memory that the store of this account uses for parsed sessions.
+     * This overrides the system property <code>com.gluonhq.wave.store.sessionCacheSize</code>.
+     *
+     * @param bytes the maximum size of the session cache
+     */
+    public void setSessionCacheSize(long bytes) {
+        this.sessionCacheSize = bytes;
+        waveStore.setSessionCacheSize(bytes);
+    }
+
     /**
      * This method is invoked by the constructor and after a reset of the
-     * configuration/storage directory happened.
+     * configuration/storage directory happened, once the store is created.
      */
     private void postInit() {
-        this.waveStore = new WaveStore();
         this.signalServiceConfiguration = createConfiguration();
         this.credentialsProvider = waveStore.getCredentialsProvider();
         if (isProvisioned()) {
@@ -332,6 +421,7 @@ public class WaveManager {
             long days = LocalDate.now().toEpochDay();
             groupCredentials = this.accountManager.getGroupsV2Api().getCredentials((int) days);
             syncKeys();
+            startKeyServices();
             getWaveLogger().log(Level.DEBUG, "we are connected, let's sync");
             syncEverything();
             getWaveLogger().log(Level.DEBUG, "sync requests are sent");
@@ -364,6 +454,16 @@ public class WaveManager {
         WAVELOG.log(Level.INFO, "RESET done");
     }
 
+    /**
+     * Disconnects, stops the key maintenance and closes the store. The
+     * manager can't be used afterwards.
+     */
+    public void close() {
+        reset();
+        stopKeyServices();
+        waveStore.close();
+    }
+
     public void syncEverything() throws IOException {
         WAVELOG.log(Level.INFO, "[WM] startSyncEverything");
         syncConfiguration();
@@ -558,7 +658,7 @@ public class WaveManager {
                     .ifPresent(cnt -> {
                         try {
                             System.err.println("Adding to ua-list: "+cnt);
-                            ua.add(ChannelUtils.getUnidentifiedAccess(cnt));
+                            ua.add(channelUtils.getUnidentifiedAccess(cnt));
                         } catch (InvalidCertificateException ex) {
                             Logger.getLogger(WaveManager.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
                         } catch (InvalidInputException ex) {
@@ -568,7 +668,9 @@ public class WaveManager {
 
        //     ua.add(ChannelUtils.getUnidentifiedAccess(them));
         }
-        sender.sendGroupDataMessage(distribution, recipients, ua, connected, ContentHint.DEFAULT, message, SignalServiceMessageSender.SenderKeyGroupEvents.EMPTY);
+        try (WaveStore.StoreTransaction tx = waveStore.beginTransaction()) {
+            sender.sendGroupDataMessage(distribution, recipients, ua, connected, ContentHint.DEFAULT, message, SignalServiceMessageSender.SenderKeyGroupEvents.EMPTY);
+        }
 
 //        System.err.println("Sending to "+recipients+" and ua size = "+ua.size());
 //        try {
@@ -675,11 +777,39 @@ public class WaveManager {
 
     // PRIVATE 
     
+    private synchronized void startKeyServices() {
+        if (preKeyPool == null) {
+            signedPreKeyRotation = new SignedPreKeyRotation(keyUtil, waveStore, accountManager, scheduler);
+            signedPreKeyRotation.start();
+            preKeyPool = new PreKeyPool(keyUtil, waveStore, accountManager, scheduler);
+            preKeyPool.start();
+            sessionPruner = new SessionPruner(waveStore, scheduler);
+            sessionPruner.start();
+            if (SNAPSHOT_INTERVAL > 0) {
+                snapshotTask = scheduler.scheduleWithFixedDelay(waveStore::writeSnapshot,
+                        SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private synchronized void stopKeyServices() {
+        if (preKeyPool != null) {
+            signedPreKeyRotation.stop();
+            signedPreKeyRotation = null;
+            preKeyPool.stop();
+            preKeyPool = null;
+            sessionPruner.stop();
+            sessionPruner = null;
+            if (snapshotTask != null) {
+                snapshotTask.cancel(false);
+                snapshotTask = null;
+            }
+        }
+    }
+
     private void generateAndRegisterKeys() throws IOException {
-        KeyUtil keyUtil = new KeyUtil(this);
         IdentityKeyPair identityKeypair = getWaveStore().getIdentityKeyPair();
         SignedPreKeyRecord signedPreKey = keyUtil.generateSignedPreKey(identityKeypair, true);
-        waveStore.storeSignedPreKey(2, signedPreKey);
   
         List<PreKeyRecord> records = keyUtil.generatePreKeys(100);
         WAVELOG.log(Level.DEBUG," PM will register keys, ik = "+ identityKeypair+" with pubkey = "+identityKeypair.getPublicKey()+" and spk = "+signedPreKey+" and records = "+records);
@@ -794,7 +924,8 @@ public class WaveManager {
         WAVELOG.log(Level.DEBUG, "[WM] create pipe");
         unidentifiedMessagePipe = receiver.createUnidentifiedMessagePipe(c);
         WAVELOG.log(Level.DEBUG, "[WM] created unidentifiedpipe");
-        ExecutorService executorService = new ScheduledThreadPoolExecutor(5);
+        // a hosted account shares the executor of its host
+        ExecutorService executorService = hosted ? scheduler : new ScheduledThreadPoolExecutor(5);
         SignalServiceMessageSender sender = new SignalServiceMessageSender(
                 signalServiceConfiguration,
                 credentialsProvider,
@@ -906,9 +1037,20 @@ public class WaveManager {
     }
     
     SignalServiceContent mydecrypt(SignalServiceEnvelope sse) throws Exception {
+        // all store updates for a single envelope are committed together
+        try (WaveStore.StoreTransaction tx = waveStore.beginTransaction()) {
+            return decryptEnvelope(sse);
+        }
+    }
+
+    private SignalServiceContent decryptEnvelope(SignalServiceEnvelope sse) throws Exception {
+        // with a known sender, only sessions of that sender need to be locked
+        LockImpl sessionLock = (!sse.isUnidentifiedSender() && sse.getSourceUuid().isPresent())
+                ? lock.forPeer(sse.getSourceUuid().get())
+                : lock;
         SignalServiceCipher cipher = new SignalServiceCipher(signalServiceAddress,
                 waveStore,
-                new LockImpl(),
+                sessionLock,
                 getCertificateValidator());
         SignalServiceContent content = null;
         try {
@@ -961,7 +1103,7 @@ public class WaveManager {
             int bl2 = sse.getContent().length;
             WAVELOG.log(Level.DEBUG, " did send null message, we should have session now for " + bl2 + " bytes");
             SignalServiceCipher cipher2 = new SignalServiceCipher(signalServiceAddress,
-                    waveStore, new LockImpl(), getCertificateValidator());
+                    waveStore, sessionLock, getCertificateValidator());
             content = cipher2.decrypt(sse);
         }
         WAVELOG.log(Level.DEBUG, " descrypt will return " + content);
@@ -1204,7 +1346,7 @@ public class WaveManager {
                 System.err.println("contact uuid = "+contact.getUuid()+" and I am "+waveStore.getMyUuid());
                 if (contact.getUuid().equals(waveStore.getMyUuid())) {
                     this.me = contact;
-                    ChannelUtils.setMe(contact);
+                    channelUtils.setMe(contact);
                 }
                 if (!contacts.contains(contact)) {
                     System.err.println("New contact: "+contact.getName());
@@ -1329,7 +1471,7 @@ public class WaveManager {
         syncStorage();
         try {
             byte[] senderCertificate = this.accountManager.getSenderCertificate();
-            ChannelUtils.setSenderCertificate(senderCertificate);
+            channelUtils.setSenderCertificate(senderCertificate);
         } catch (IOException ex) {
             Logger.getLogger(WaveManager.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
         }
@@ -1410,7 +1552,9 @@ System.err.println("ERR!!! " + e);
             if (fatalErrorSupplier.get()) {
                 System.err.println("LETS REMOVE THIS!");
                 try {
+                    stopKeyServices();
                     waveStore.moveOldStore();
+                    waveStore = createStore();
                     postInit();
                     restartRequestConsumer.accept("Configuration moved");
                 } catch (IOException ex) {
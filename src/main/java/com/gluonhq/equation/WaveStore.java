@@ -5,34 +5,76 @@
  */
 package com.gluonhq.equation;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import static com.gluonhq.equation.WaveManager.WAVELOG;
 import com.gluonhq.equation.model.Contact;
+import com.gluonhq.equation.store.AddressKeyCodec;
+import com.gluonhq.equation.store.AddressTable;
+import com.gluonhq.equation.store.DeviceIndex;
+import com.gluonhq.equation.store.DistributionRegistry;
+import com.gluonhq.equation.store.Durability;
+import com.gluonhq.equation.store.IdMap;
+import com.gluonhq.equation.store.Journal;
+import com.gluonhq.equation.store.KeyCodec;
+import com.gluonhq.equation.store.LruCache;
+import com.gluonhq.equation.store.Mutation;
+import com.gluonhq.equation.store.OffHeapMap;
+import com.gluonhq.equation.store.Quarantine;
+import com.gluonhq.equation.store.Partition;
+import com.gluonhq.equation.store.RecordCodec;
+import com.gluonhq.equation.store.RecordLog;
+import com.gluonhq.equation.store.SessionInfo;
+import com.gluonhq.equation.store.SlotFile;
+import com.gluonhq.equation.store.SnapshotFile;
+import com.gluonhq.equation.store.Snapshottable;
+import com.gluonhq.equation.store.StorageEngine;
+import com.gluonhq.equation.store.StoreArchive;
+import com.gluonhq.equation.store.StoreVerifier;
+import com.gluonhq.equation.store.StoreView;
+import com.gluonhq.equation.store.Stripes;
+import com.gluonhq.equation.store.Syncable;
+import com.gluonhq.equation.store.Table;
+import com.gluonhq.equation.store.TableView;
+import com.gluonhq.equation.store.VerificationReport;
+import com.gluonhq.equation.store.WriteBehind;
+import com.gluonhq.equation.store.WriterPool;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
-import java.util.logging.Logger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyException;
@@ -43,7 +85,9 @@ import org.whispersystems.libsignal.groups.SenderKeyName;
 import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.util.Medium;
 import org.whispersystems.signalservice.api.SignalServiceProtocolStore;
 import org.whispersystems.signalservice.api.push.DistributionId;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
@@ -51,55 +95,197 @@ import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
 
 /**
  *
- * Simple implementation of the SignalServiceProtocolStore, using standard io.
+ * Simple implementation of the SignalServiceProtocolStore.
  * Whenever the entities in the store are updated using API methods of this class,
- * the underlying storage (on Filesystem) is updated as well.
+ * the underlying storage is updated as well. Every kind of entity is kept in a
+ * {@link Table} that is provided by a {@link StorageEngine}. By default, the
+ * engine is selected with the system property <code>com.gluonhq.wave.store.engine</code>
+ * and stores its data under <code>com.gluonhq.wave.root</code>, which defaults
+ * to <code>~/.signalfx</code>. The default engine persists sessions and sender
+ * keys in append-only {@link RecordLog}s, so that an update only writes the
+ * changed entry, and pre-keys and signed pre-keys in memory-mapped {@link SlotFile}s.
+ * Only the index of the session log is read at startup. On close, and
+ * periodically with {@link #writeSnapshot()}, the indexes of the logs are
+ * saved in a {@link SnapshotFile}, so a restart only reads what was appended
+ * since. Sessions are parsed
+ * on first access, and kept in an {@link LruCache} with a limited size.
+ * Sender keys are kept serialized in an {@link OffHeapMap}, outside of the
+ * Java heap, and parsed when they are loaded.
+ * Reads of cached entries don't take a lock. Updates take one of a number of
+ * {@link Stripes}, keyed by the name of the peer, so that updates for
+ * different peers can run in parallel.
+ * Updates are applied to memory immediately, and written to disk by a
+ * {@link WriteBehind} thread, according to the configured {@link Durability}.
+ * Changes that are made within a transaction on the same thread are written
+ * as a single {@link Journal} record when the transaction is closed, so they
+ * survive a crash either completely or not at all.
  */
 public class WaveStore implements SignalServiceProtocolStore {
 
     private IdentityKeyPair identityKeyPair;
-    Map<Integer, PreKeyRecord> map = new HashMap<>();
-    Map<Integer, SignedPreKeyRecord> signedMap = new HashMap<>();
-    Map<MySenderKey, SenderKeyRecord> senderKeyMap = new HashMap<>();
-    Map<DistributionId, Set<SignalProtocolAddress>> senderKeyDistributions = new HashMap<>();
+    private final StorageEngine engine;
+    private final Table<String> account;
+    private final Table<Integer> preKeys;
+    private final Table<Integer> signedPreKeys;
+    private final WriteBehind writer;
+    private final Journal journal;
+    private final ThreadLocal<TransactionScope> transactionScope = new ThreadLocal<>();
+    // the version of the latest change to every key that isn't written yet,
+    // so that a transaction never writes a value that a newer change replaced
+    private final Map<Object, Long> versions = new ConcurrentHashMap<>();
+    private final AtomicLong lastVersion = new AtomicLong();
+    // only used on the writer thread: set while the journal has records that
+    // are not checkpointed yet, as replaying those must not undo later changes
+    private boolean journalPending;
+    private final Map<Partition, Table<?>> tables = new EnumMap<>(Partition.class);
+    private final Map<Partition, KeyCodec<?>> codecs = new EnumMap<>(Partition.class);
+    // serialized sender keys are kept off-heap, and parsed when they are loaded
+    private final OffHeapMap<SenderKeyId> senderKeyMap = new OffHeapMap<>();
+    private final AddressTable addressTable;
+    private final DistributionRegistry distributions;
 
     private StaticCredentialsProvider credentialsProvider;
 
     private boolean initialized;
 
-    private Map<SignalProtocolAddress, byte[]> sessions = new HashMap<>();
-    private final Map<SignalProtocolAddress, IdentityKey> trustedKeys = new HashMap<>();
+    // parsed sessions are shared, and never modified: callers get a copy
+    // sessions, identities and sender keys are kept by the id of their address
+    private final LruCache<SessionRecord> parsedSessions
+            = new LruCache<>(Long.getLong("com.gluonhq.wave.store.sessionCacheSize", 16 * 1024 * 1024));
+    private final Table<SignalProtocolAddress> sessionTable;
+    private final Table<MySenderKey> senderKeyTable;
+    private final Table<Integer> identityTable;
+    private final Table<Integer> sessionInfoTable;
+    private final DeviceIndex sessionDevices = new DeviceIndex();
+    private final Quarantine quarantine;
+    // pre-key ids are reserved by the store, so that all key generators share it
+    private final Object keyIdLock = new Object();
+    private final Stripes stripes = new Stripes(Integer.getInteger("com.gluonhq.wave.lockStripes", 64));
+    private final IdMap<IdentityKey> trustedKeys = new IdMap<>();
+    private final IdMap<SessionInfo> sessionInfo = new IdMap<>();
+    private static final RecordCodec.Format SESSION_FORMAT = RecordCodec.Format.valueOf(
+            System.getProperty("com.gluonhq.wave.store.sessionFormat", "RAW"));
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final Verification VERIFICATION = Verification.valueOf(
+            System.getProperty("com.gluonhq.wave.store.verify", "incremental").toUpperCase(Locale.ROOT));
+    // the dictionary is only known once the stored sessions are read
+    private volatile RecordCodec sessionCodec = new RecordCodec(SESSION_FORMAT, null);
 
     private int localRegistrationId;
 
     private int deviceId;
     private String myUuid = "nobody";
 
-    private String SIGNAL_FX;
     public Path SIGNAL_FX_PATH;
     public Path SIGNAL_FX_STORE_PATH;
-    private File SIGNAL_FX_DIR;
     public File SIGNAL_FX_CONTACTS_DIR;
-    
+
     public WaveStore() {
+        this(Path.of(System.getProperty("com.gluonhq.wave.root",
+                System.getProperty("user.home") + File.separator + ".signalfx")),
+                System.getProperty("com.gluonhq.wave.store.engine", "directory"));
+    }
+
+    /**
+     * Creates a store in the given root directory.
+     *
+     * @param root the directory for the store and the contacts
+     * @param engineName the name of the {@link StorageEngine}, see
+     * {@link StorageEngine#open(String, Path)}
+     */
+    public WaveStore(Path root, String engineName) {
+        this(root, engineName, null);
+    }
+
+    /**
+     * Creates a store in the given root directory, that writes on a shared pool.
+     *
+     * @param root the directory for the store and the contacts
+     * @param engineName the name of the {@link StorageEngine}, see
+     * {@link StorageEngine#open(String, Path)}
+     * @param writers the threads that write to storage, or null to use a
+     * thread of this store
+     */
+    public WaveStore(Path root, String engineName, WriterPool writers) {
+        this(root, StorageEngine.open(engineName, root.resolve("store")), writers);
+    }
+
+    public WaveStore(Path root, StorageEngine engine) {
+        this(root, engine, null);
+    }
+
+    public WaveStore(Path root, StorageEngine engine, WriterPool writers) {
         System.err.println("Create WaveStore at "+this);
-        preparePaths();
+        preparePaths(root);
+        this.engine = engine;
+        this.quarantine = new Quarantine(SIGNAL_FX_STORE_PATH.resolve("quarantine"));
+        engine.setQuarantine(quarantine);
+        Durability durability = Durability.valueOf(System.getProperty("com.gluonhq.wave.store.durability", "BATCH"));
+        // the writer threads are named after the account, as they may be shared
+        String writerName = "wave-store-writer-" + SIGNAL_FX_PATH.getFileName();
+        this.writer = writers == null
+                ? new WriteBehind(writerName, durability)
+                : new WriteBehind(writerName, durability, writers);
+        try {
+            this.account = table(Partition.ACCOUNT, KeyCodec.STRING);
+            this.addressTable = new AddressTable(table(Partition.ADDRESSES, KeyCodec.INT), writer);
+            this.sessionTable = table(Partition.SESSIONS, addressTable.keyCodec());
+            this.senderKeyTable = table(Partition.SENDER_KEYS, SenderKeyCodec.INSTANCE);
+            this.identityTable = table(Partition.IDENTITIES, KeyCodec.INT);
+            this.sessionInfoTable = table(Partition.SESSION_INFO, KeyCodec.INT);
+            this.distributions = new DistributionRegistry(table(Partition.DISTRIBUTIONS, KeyCodec.UUID), addressTable);
+            this.preKeys = table(Partition.PREKEYS, KeyCodec.INT);
+            this.signedPreKeys = table(Partition.SIGNED_PREKEYS, KeyCodec.INT);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        this.journal = engine.journal();
+        if (journal != null) {
+            // once a batch is synced, the journal records in it are no longer needed
+            this.writer.setCheckpoint(this::checkpoint);
+        }
         // if we have a credentialsprovider, we assume we are initialized, and
         // the other stored info is retrieved.
         this.initialized = retrieveCredentialsProvider();
         if (this.initialized) {
             try {
-                retrieveIdentityKeyPair();
-                retrieveSignedPreKeys();
-                retrievePreKeys();
-                retrieveSessions();
-                retrieveSenderKeys();
+                load();
             } catch (IOException ex) {
                 ex.printStackTrace();
             }
         }
     }
 
+    private void load() throws IOException {
+        offerSnapshot();
+        retrieveIdentityKeyPair();
+        addressTable.open();
+        retrieveSignedPreKeys();
+        retrievePreKeys();
+        retrieveSessions();
+        retrieveSenderKeys();
+        retrieveDistributions();
+        retrieveIdentities();
+        recoverJournal();
+        if (VERIFICATION == Verification.FULL) {
+            verify();
+        }
+        engine.loaded();
+    }
+
+    /**
+     * How records are checked when the store is loaded, selected with the
+     * system property <code>com.gluonhq.wave.store.verify</code>.
+     */
+    private enum Verification {
+        /** Records are not checked, and a corrupt record fails the operation that reads it. */
+        OFF,
+        /** A corrupt record is quarantined when it is first parsed, at startup or later. */
+        INCREMENTAL,
+        /** All records are verified at startup, and corrupt ones are quarantined. */
+        FULL
+    }
+
     /**
      * Checks if the store is initialized. Once it has a keypair in persistent
      * storage, we assume it is initialized.
@@ -114,7 +300,8 @@ public class WaveStore implements SignalServiceProtocolStore {
      * Moves the existing directory with configuration and store to a new directory.
      */
     public void moveOldStore() throws IOException {
-        Path backup = SIGNAL_FX_PATH.resolveSibling(".signalfx1");
+        close();
+        Path backup = SIGNAL_FX_PATH.resolveSibling(SIGNAL_FX_PATH.getFileName() + "1");
         deleteDirectoryIfExists(backup);
         Files.move(SIGNAL_FX_PATH, backup);
     }
@@ -137,6 +324,33 @@ public class WaveStore implements SignalServiceProtocolStore {
         return this.identityKeyPair;
     }
 
+    /**
+     * Changes when updates are forced to disk. The default is
+     * {@link Durability#BATCH}, unless the system property
+     * <code>com.gluonhq.wave.store.durability</code> specifies otherwise.
+     * @param durability the new durability mode
+     */
+    public void setDurability(Durability durability) {
+        // transactions don't use the journal without durability, so make sure
+        // the journal is empty before switching
+        writer.flush();
+        writer.setDurability(durability);
+    }
+
+    public Durability getDurability() {
+        return writer.getDurability();
+    }
+
+    /**
+     * Changes the maximum size of the parsed sessions that are kept in memory.
+     * The default is set by the system property
+     * <code>com.gluonhq.wave.store.sessionCacheSize</code>.
+     * @param bytes the new size, or 0 for no limit
+     */
+    public void setSessionCacheSize(long bytes) {
+        parsedSessions.setBudget(bytes);
+    }
+
     public void setDeviceId(int devid) {
         this.deviceId = devid;
     }
@@ -152,95 +366,242 @@ public class WaveStore implements SignalServiceProtocolStore {
 
     @Override
     public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
-        IdentityKey existing = trustedKeys.get(address);
+        ReentrantLock lock = stripes.lockFor(address.getName());
+        lock.lock();
+        try {
+            int id = addressTable.intern(address);
+            IdentityKey existing = trustedKeys.put(id, identityKey);
 
-        if (!identityKey.equals(existing)) {
-            trustedKeys.put(address, identityKey);
-            return true;
-        } else {
-            return false;
+            if (!identityKey.equals(existing)) {
+                mutate(Mutation.put(Partition.IDENTITIES, KeyCodec.INT.encode(id), identityKey.serialize()));
+                return true;
+            } else {
+                return false;
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
-        IdentityKey trusted = trustedKeys.get(address);
+        IdentityKey trusted = trustedKey(address);
         return (trusted == null || trusted.equals(identityKey));
     }
 
     @Override
     public IdentityKey getIdentity(SignalProtocolAddress address) {
-        return trustedKeys.get(address);
+        return trustedKey(address);
     }
 
-    @Override
-    public PreKeyRecord loadPreKey(int i) throws InvalidKeyIdException {
-        return map.get(i);
+    private IdentityKey trustedKey(SignalProtocolAddress address) {
+        int id = addressTable.find(address);
+        return id < 0 ? null : trustedKeys.get(id);
     }
 
     @Override
-    public void storePreKey(int i, PreKeyRecord pkr) {
-        map.put(i, pkr);
+    public PreKeyRecord loadPreKey(int i) throws InvalidKeyIdException {
         try {
-            persistPreKey(i, pkr);
+            byte[] b = preKeys.get(i);
+            if (b == null) {
+                throw new InvalidKeyIdException("No such prekey: " + i);
+            }
+            return new PreKeyRecord(b);
         } catch (IOException ex) {
-            ex.printStackTrace();
+            throw new InvalidKeyIdException(ex);
         }
     }
 
     @Override
-    public boolean containsPreKey(int i) {
-        return map.containsKey(i);
+    public void storePreKey(int i, PreKeyRecord pkr) {
+        byte[] b = pkr.serialize();
+        preKeys.stage(i, b);
+        mutate(Mutation.put(Partition.PREKEYS, KeyCodec.INT.encode(i), b));
+    }
+
+    /**
+     * Stores a batch of pre-keys with a single write to the mapped pre-key file.
+     * @param records the pre-keys to store, using their own id
+     */
+    public void storePreKeys(List<PreKeyRecord> records) {
+        if (transactionScope.get() != null) {
+            records.forEach(record -> storePreKey(record.getId(), record));
+            return;
+        }
+        Map<Integer, byte[]> batch = new HashMap<>();
+        for (PreKeyRecord record : records) {
+            byte[] b = record.serialize();
+            batch.put(record.getId(), b);
+            preKeys.stage(record.getId(), b);
+        }
+        writer.submit(preKeys, batch, () -> preKeys.putAll(batch));
+    }
+
+    /**
+     * @return the id of the next pre-key that is generated, by default the
+     * one after the highest stored id
+     */
+    public int getNextPreKeyId() {
+        return getAccountInt("nextprekeyid", () -> maxId(preKeys) + 1);
+    }
+
+    public void setNextPreKeyId(int id) {
+        putAccountInt("nextprekeyid", id);
+    }
+
+    /**
+     * Reserves a range of pre-key ids, which wraps around at {@link Medium#MAX_VALUE}.
+     *
+     * @return the first id of the range
+     */
+    public int reservePreKeyIds(int count) {
+        synchronized (keyIdLock) {
+            int first = getNextPreKeyId();
+            setNextPreKeyId((first + count) % Medium.MAX_VALUE);
+            return first;
+        }
     }
 
     @Override
-    public void removePreKey(int i) {
-        map.remove(i);
+    public boolean containsPreKey(int i) {
         try {
-            deletePreKey(i);
+            return preKeys.contains(i);
         } catch (IOException ex) {
             ex.printStackTrace();
+            return false;
         }
     }
 
+    @Override
+    public void removePreKey(int i) {
+        preKeys.stage(i, null);
+        mutate(Mutation.delete(Partition.PREKEYS, KeyCodec.INT.encode(i)));
+    }
+
     @Override
     public SignedPreKeyRecord loadSignedPreKey(int i) throws InvalidKeyIdException {
-        return signedMap.get(i);
+        try {
+            byte[] b = signedPreKeys.get(i);
+            if (b == null) {
+                throw new InvalidKeyIdException("No such signed prekey: " + i);
+            }
+            return new SignedPreKeyRecord(b);
+        } catch (IOException ex) {
+            throw new InvalidKeyIdException(ex);
+        }
     }
 
     @Override
     public List<SignedPreKeyRecord> loadSignedPreKeys() {
-        List<SignedPreKeyRecord> answer = new ArrayList<>(signedMap.size());
-        answer.addAll(signedMap.values());
+        List<SignedPreKeyRecord> answer = new ArrayList<>();
+        try {
+            for (int id : signedPreKeys.keys()) {
+                answer.add(new SignedPreKeyRecord(signedPreKeys.get(id)));
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
         return answer;
     }
 
     @Override
     public void storeSignedPreKey(int i, SignedPreKeyRecord spkr) {
-        signedMap.put(i, spkr);
-        persistSignedPreKeys();
+        byte[] b = spkr.serialize();
+        signedPreKeys.stage(i, b);
+        mutate(Mutation.put(Partition.SIGNED_PREKEYS, KeyCodec.INT.encode(i), b));
+    }
+
+    /**
+     * @return the id of the next signed pre-key that is generated, by default
+     * the one after the highest stored id
+     */
+    public int getNextSignedPreKeyId() {
+        return getAccountInt("nextsignedprekeyid", () -> maxId(signedPreKeys) + 1);
+    }
+
+    public void setNextSignedPreKeyId(int id) {
+        putAccountInt("nextsignedprekeyid", id);
+    }
+
+    /**
+     * Reserves the id for a new signed pre-key.
+     */
+    public int reserveSignedPreKeyId() {
+        synchronized (keyIdLock) {
+            int id = getNextSignedPreKeyId();
+            setNextSignedPreKeyId((id + 1) % Medium.MAX_VALUE);
+            return id;
+        }
+    }
+
+    /**
+     * @return the id of the signed pre-key that was last uploaded to the server,
+     * by default the highest stored id
+     */
+    public int getActiveSignedPreKeyId() {
+        return getAccountInt("activesignedprekeyid", () -> maxId(signedPreKeys));
+    }
+
+    public void setActiveSignedPreKeyId(int id) {
+        putAccountInt("activesignedprekeyid", id);
+    }
+
+    /**
+     * @return the highest id in the table, or 0 if it is empty
+     */
+    private static int maxId(Table<Integer> table) {
+        try {
+            return table.keys().stream().mapToInt(Integer::intValue).max().orElse(0);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return 0;
+        }
+    }
+
+    private int getAccountInt(String key, IntSupplier defaultValue) {
+        try {
+            byte[] b = account.get(key);
+            return b == null ? defaultValue.getAsInt() : ByteBuffer.wrap(b).getInt();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return defaultValue.getAsInt();
+        }
+    }
+
+    private void putAccountInt(String key, int value) {
+        try {
+            account.put(key, ByteBuffer.allocate(4).putInt(value).array());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
     }
 
     @Override
     public boolean containsSignedPreKey(int i) {
-        return signedMap.containsKey(i);
+        try {
+            return signedPreKeys.contains(i);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
     }
 
     @Override
     public void removeSignedPreKey(int i) {
-        signedMap.remove(i);
-        persistSignedPreKeys();
+        signedPreKeys.stage(i, null);
+        mutate(Mutation.delete(Partition.SIGNED_PREKEYS, KeyCodec.INT.encode(i)));
     }
 
     @Override
-    public synchronized SessionRecord loadSession(SignalProtocolAddress remoteAddress) {
+    public SessionRecord loadSession(SignalProtocolAddress remoteAddress) {
         WAVELOG.log(Level.DEBUG, "[STORE] loadSession asked for "+remoteAddress);
         try {
-            if (containsSession(remoteAddress)) {
+            SessionRecord record = cachedSession(remoteAddress);
+            if ((record != null) && record.getSessionState().hasSenderChain()) {
                 WAVELOG.log(Level.DEBUG, "[STORE] we have that session");
-                return new SessionRecord(sessions.get(remoteAddress));
+                return copySession(record);
             } else {
-                WAVELOG.log(Level.DEBUG, "Not found, sessions = "+sessions);
+                WAVELOG.log(Level.DEBUG, "Not found");
                 WAVELOG.log(Level.DEBUG, "[STORE] need to create new sessionrecord");
                 return new SessionRecord();
             }
@@ -250,78 +611,621 @@ public class WaveStore implements SignalServiceProtocolStore {
     }
 
     @Override
-    public synchronized List<Integer> getSubDeviceSessions(String name) {
+    public List<Integer> getSubDeviceSessions(String name) {
         System.err.println("[WS] GetSubDeviceSessions asked for "+name+", deviceid = "+deviceId);
         List<Integer> deviceIds = new LinkedList<>();
-        for (SignalProtocolAddress key : sessions.keySet()) {
-            System.err.println("Consider "+key.getName()+" and devid = "+key.getDeviceId());
-            if (key.getName().equals(name)
-                    && !((key.getName().equals(myUuid)) && (key.getDeviceId() == deviceId))
-                    && !((!key.getName().equals(myUuid)) && (key.getDeviceId() == SignalServiceAddress.DEFAULT_DEVICE_ID))) {
-                deviceIds.add(key.getDeviceId());
+        boolean me = name.equals(myUuid);
+        for (int devid : sessionDevices.devices(name)) {
+            if (!(me && (devid == deviceId))
+                    && !(!me && (devid == SignalServiceAddress.DEFAULT_DEVICE_ID))) {
+                deviceIds.add(devid);
             }
         }
         System.err.println("[WS] return "+deviceIds);
         return deviceIds;
     }
 
+    /**
+     * Stores the session. The record becomes the cached session for this address,
+     * so it must not be modified afterwards. Use {@link #loadSession(SignalProtocolAddress)}
+     * to get a copy that can be modified.
+     */
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        writeSession(address, record, System.currentTimeMillis());
+    }
+
+    private void writeSession(SignalProtocolAddress address, SessionRecord record, long lastUsed) {
+        byte[] raw = record.serialize();
+        byte[] b = sessionCodec.encode(raw);
+        SessionInfo info = SessionInfo.of(record, lastUsed);
+        ReentrantLock lock = stripes.lockFor(address.getName());
+        lock.lock();
+        try {
+            int id = addressTable.intern(address);
+            sessionTable.stage(addressTable.get(id), b);
+            sessionDevices.add(address);
+            parsedSessions.put(id, record, raw.length);
+            sessionInfo.put(id, info);
+            mutate(Mutation.put(Partition.SESSIONS, AddressKeyCodec.INSTANCE.encode(address), b));
+            mutate(Mutation.put(Partition.SESSION_INFO, KeyCodec.INT.encode(id), info.encode()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Answers from the {@link SessionInfo} of the session, so the session
+     * doesn't need to be parsed.
+     */
     @Override
-    public synchronized void storeSession(SignalProtocolAddress address, SessionRecord record) {
+    public boolean containsSession(SignalProtocolAddress address) {
+        int id = addressTable.find(address);
+        SessionInfo info = id < 0 ? null : sessionInfo.get(id);
+        if (info != null) {
+            if (!info.isValid()) {
+                WAVELOG.log(Level.DEBUG, "Invalid session for " + address);
+            }
+            return info.isValid();
+        }
         try {
-            sessions.put(address, record.serialize());
-            persistSession(address, record);
+            SessionRecord sessionRecord = cachedSession(address);
+            if (sessionRecord == null) {
+                return false;
+            }
+            boolean answer = sessionRecord.getSessionState().hasSenderChain();
+            if (!answer) {
+                WAVELOG.log(Level.DEBUG, "Invalid session for " + address);
+            }
+            return answer;
         } catch (IOException ex) {
             ex.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the parsed session for this address, parsing the stored bytes
+     * only the first time. The returned record is shared, and must not be modified.
+     */
+    private SessionRecord cachedSession(SignalProtocolAddress address) throws IOException {
+        // every stored session has an address id, see retrieveSessions
+        int id = addressTable.find(address);
+        if (id < 0) {
+            return null;
+        }
+        SessionRecord record = parsedSessions.get(id);
+        if (record != null) {
+            return record;
+        }
+        // lock, so a concurrent update can't be overwritten by an older value
+        ReentrantLock lock = stripes.lockFor(address.getName());
+        lock.lock();
+        try {
+            record = parsedSessions.get(id);
+            if (record == null) {
+                byte[] b = sessionTable.get(address);
+                if (b == null) {
+                    return null;
+                }
+                byte[] raw;
+                try {
+                    raw = sessionCodec.decode(b);
+                    record = new SessionRecord(raw);
+                } catch (IOException | RuntimeException ex) {
+                    if (VERIFICATION == Verification.OFF) {
+                        throw ex;
+                    }
+                    corruptRecord(Partition.SESSIONS, AddressKeyCodec.INSTANCE.encode(address), b, ex);
+                    return null;
+                }
+                parsedSessions.put(id, record, raw.length);
+            }
+            return record;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies a session record, including its archived states, without
+     * serializing and parsing it.
+     */
+    private static SessionRecord copySession(SessionRecord record) {
+        List<SessionState> previous = record.getPreviousSessionStates();
+        if (previous.isEmpty()) {
+            return new SessionRecord(new SessionState(record.getSessionState()));
+        }
+        // promoting a state archives the current one, so start with the oldest state
+        SessionRecord copy = new SessionRecord(new SessionState(previous.get(previous.size() - 1)));
+        for (int i = previous.size() - 2; i >= 0; i--) {
+            copy.promoteState(new SessionState(previous.get(i)));
+        }
+        copy.promoteState(new SessionState(record.getSessionState()));
+        return copy;
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+        ReentrantLock lock = stripes.lockFor(address.getName());
+        lock.lock();
+        try {
+            sessionTable.stage(address, null);
+            sessionDevices.remove(address);
+            mutate(Mutation.delete(Partition.SESSIONS, AddressKeyCodec.INSTANCE.encode(address)));
+            int id = addressTable.find(address);
+            if (id >= 0) {
+                parsedSessions.remove(id);
+                if (sessionInfo.remove(id) != null) {
+                    mutate(Mutation.delete(Partition.SESSION_INFO, KeyCodec.INT.encode(id)));
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void deleteAllSessions(String name) {
+        ReentrantLock lock = stripes.lockFor(name);
+        lock.lock();
+        try {
+            List<Integer> devices = new ArrayList<>(sessionDevices.devices(name));
+            for (int devid : devices) {
+                deleteSession(new SignalProtocolAddress(name, devid));
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public synchronized boolean containsSession(SignalProtocolAddress address) {
-        boolean answer = sessions.containsKey(address);
-        if (answer) {
-            byte[] sr = sessions.get(address);
+    public void archiveSession(SignalProtocolAddress address) {
+        WAVELOG.log(Level.DEBUG, "We need to archive session for " + address);
+        ReentrantLock lock = stripes.lockFor(address.getName());
+        lock.lock();
+        try {
+            SessionRecord cached = cachedSession(address);
+            if (cached == null) {
+                return;
+            }
+            SessionRecord s = copySession(cached);
+            s.archiveCurrentState();
+            storeSession(address, s);
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes sessions that are no longer used. Sessions that were not stored
+     * since <code>deleteBefore</code> are deleted, and no longer shared with
+     * in sender key distributions. Sessions that were not stored since
+     * <code>trimBefore</code> lose their archived states. Sessions with
+     * the own devices of this account are never pruned.
+     *
+     * @param deleteBefore the time in milliseconds since the epoch
+     * @param trimBefore the time in milliseconds since the epoch
+     * @return the number of sessions that were deleted or trimmed
+     */
+    public int pruneSessions(long deleteBefore, long trimBefore) {
+        List<Integer> ids = new ArrayList<>();
+        sessionInfo.forEach((info, id) -> {
+            if (isPrunable(info, deleteBefore, trimBefore) && !addressTable.get(id).getName().equals(myUuid)) {
+                ids.add(id);
+            }
+        });
+        int answer = 0;
+        for (int id : ids) {
+            SignalProtocolAddress address = addressTable.get(id);
+            ReentrantLock lock = stripes.lockFor(address.getName());
+            lock.lock();
+            try {
+                // the session may have been used since it was selected
+                SessionInfo info = sessionInfo.get(id);
+                if ((info == null) || !isPrunable(info, deleteBefore, trimBefore)) {
+                    continue;
+                }
+                if (info.getLastUsed() < deleteBefore) {
+                    deleteSession(address);
+                    clearSenderKeySharedWith(List.of(address));
+                    answer++;
+                } else {
+                    SessionRecord record = cachedSession(address);
+                    if (record != null) {
+                        SessionRecord trimmed = new SessionRecord(new SessionState(record.getSessionState()));
+                        writeSession(address, trimmed, info.getLastUsed());
+                        answer++;
+                    }
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } finally {
+                lock.unlock();
+            }
+        }
+        WAVELOG.log(Level.DEBUG, "Pruned " + answer + " sessions");
+        return answer;
+    }
+
+    private static boolean isPrunable(SessionInfo info, long deleteBefore, long trimBefore) {
+        return (info.getLastUsed() < deleteBefore)
+                || ((info.getArchived() > 0) && (info.getLastUsed() < trimBefore));
+    }
+
+    /**
+     * Waits until all updates that are made so far are written to disk.
+     */
+    public void flush() {
+        writer.flush();
+    }
+
+    /**
+     * Closes the underlying storage. Pending updates are written and forced to disk.
+     */
+    public void close() {
+        writer.close();
+        writeSnapshot();
+        try {
+            distributions.close();
+            addressTable.close();
+            engine.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    private <K> Table<K> table(Partition partition, KeyCodec<K> codec) throws IOException {
+        Table<K> answer = engine.table(partition, codec);
+        tables.put(partition, answer);
+        codecs.put(partition, codec);
+        return answer;
+    }
+
+    /**
+     * Writes the complete state of the account to a single compressed
+     * archive: the credentials, identity, pre-keys, sessions, sender keys
+     * and distributions, and the contacts and groups. The tables are read
+     * from a {@link #openView() view}, in parallel, so the account continues
+     * to work meanwhile. The stream is not closed.
+     *
+     * @see #importArchive(InputStream)
+     */
+    public void exportArchive(OutputStream out) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        Path contacts = SIGNAL_FX_CONTACTS_DIR.toPath();
+        if (Files.isDirectory(contacts)) {
+            try (Stream<Path> walk = Files.walk(contacts)) {
+                for (Path file : walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    files.put(contacts.relativize(file).toString().replace(File.separatorChar, '/'),
+                            Files.readAllBytes(file));
+                }
+            }
+        }
+        try (StoreView view = openView()) {
+            long count = StoreArchive.write(view, files, out);
+            WAVELOG.log(Level.INFO, "Exported " + count + " entries and " + files.size() + " files");
+        }
+    }
+
+    /**
+     * Restores an account from an archive that was written by
+     * {@link #exportArchive(OutputStream)}, e.g. on a new host. This is only
+     * possible for a store that is not initialized yet: anything that is left
+     * in its tables is replaced. The entries are loaded directly into the
+     * tables, which are synced once at the end, and the store is initialized
+     * from them afterwards. The account entries are only written once the
+     * archive is known to be complete, so a store is never initialized from a
+     * partial import; if the import fails, the tables are cleared again and
+     * the imported files are deleted. The stream is not closed.
+     */
+    public void importArchive(InputStream in) throws IOException {
+        if (initialized) {
+            throw new IllegalStateException("Can't import into an initialized store");
+        }
+        writer.flush();
+        if (journal != null) {
+            journal.truncate();
+        }
+        Files.deleteIfExists(SIGNAL_FX_STORE_PATH.resolve(SnapshotFile.NAME));
+        for (Table<?> table : tables.values()) {
+            clear(table);
+        }
+        Path contacts = SIGNAL_FX_CONTACTS_DIR.toPath().toAbsolutePath().normalize();
+        Map<String, byte[]> accountEntries = new HashMap<>();
+        List<Path> imported = new ArrayList<>();
+        try {
+            StoreArchive.read(in, new StoreArchive.Sink() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void entries(Partition partition, byte[][] keys, byte[][] values) throws IOException {
+                    Table<Object> table = (Table<Object>) tables.get(partition);
+                    if (table == null) {
+                        WAVELOG.log(Level.WARNING, "Ignoring " + keys.length + " archived entries for " + partition);
+                        return;
+                    }
+                    KeyCodec<Object> codec = (KeyCodec<Object>) codecs.get(partition);
+                    Map<Object, byte[]> entries = new HashMap<>(keys.length * 2);
+                    for (int i = 0; i < keys.length; i++) {
+                        entries.put(codec.decode(keys[i]), values[i]);
+                    }
+                    if (partition == Partition.ACCOUNT) {
+                        // the credentials make the store initialized, so they go last
+                        entries.forEach((key, value) -> accountEntries.put((String) key, value));
+                    } else {
+                        table.putAll(entries);
+                    }
+                }
+
+                @Override
+                public void file(String name, byte[] content) throws IOException {
+                    Path target = contacts.resolve(name).normalize();
+                    if (!target.startsWith(contacts) || target.equals(contacts)) {
+                        throw new IOException("Invalid file name in the archive: " + name);
+                    }
+                    Files.createDirectories(target.getParent());
+                    Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+                    Files.write(tmp, content);
+                    imported.add(target);
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            });
+            for (Table<?> table : tables.values()) {
+                table.sync();
+            }
+            account.putAll(accountEntries);
+            account.sync();
+            this.initialized = retrieveCredentialsProvider();
+            if (!initialized) {
+                throw new IOException("The archive holds no account");
+            }
+        } catch (IOException | RuntimeException ex) {
+            rollbackImport(imported, ex);
+            throw ex;
+        }
+        load();
+        WAVELOG.log(Level.INFO, "Imported the store of " + myUuid);
+    }
+
+    /**
+     * Removes what a failed import wrote, so the store is empty again.
+     */
+    private void rollbackImport(List<Path> imported, Exception cause) {
+        initialized = false;
+        try {
+            for (Table<?> table : tables.values()) {
+                clear(table);
+                table.sync();
+            }
+            for (Path file : imported) {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(file.resolveSibling(file.getFileName() + ".tmp"));
+            }
+        } catch (IOException | RuntimeException ex) {
+            cause.addSuppressed(ex);
+        }
+        WAVELOG.log(Level.WARNING, "Import of a store archive failed, the store is cleared: " + cause);
+    }
+
+    private static <K> void clear(Table<K> table) throws IOException {
+        table.open(null);
+        for (K key : table.keys()) {
+            table.remove(key);
+        }
+    }
+
+    /**
+     * Verifies that every record in the store can be parsed, using a
+     * {@link #openView() view}, so the account continues to work meanwhile.
+     * Corrupt sessions, sender keys, pre-keys, identities and session info
+     * are moved to the quarantine directory, and a report is written to it.
+     * A corrupt account entry or address is only reported.
+     */
+    public VerificationReport verify() throws IOException {
+        VerificationReport report;
+        try (StoreView view = openView()) {
+            report = new StoreVerifier(validators()).verify(view);
+            for (VerificationReport.Finding finding : report.getFindings()) {
+                byte[] value = view(view, finding.getPartition(), finding.getKeyBytes());
+                // a record that was written again since the view was opened is not the corrupt one
+                if (QUARANTINED.contains(finding.getPartition())
+                        && Arrays.equals(value, current(finding.getPartition(), finding.getKeyBytes()))) {
+                    quarantine(finding, value);
+                }
+            }
+        }
+        quarantine.writeReport(report);
+        return report;
+    }
+
+    private static final Set<Partition> QUARANTINED = EnumSet.of(Partition.SESSIONS, Partition.SENDER_KEYS,
+            Partition.PREKEYS, Partition.SIGNED_PREKEYS, Partition.IDENTITIES, Partition.SESSION_INFO);
+
+    private Map<Partition, StoreVerifier.Validator> validators() {
+        Map<Partition, StoreVerifier.Validator> answer = new EnumMap<>(Partition.class);
+        answer.put(Partition.SESSIONS, (key, value) -> new SessionRecord(sessionCodec.decode(value)));
+        answer.put(Partition.SENDER_KEYS, (key, value) -> new SenderKeyRecord(value));
+        answer.put(Partition.PREKEYS, (key, value) -> new PreKeyRecord(value));
+        answer.put(Partition.SIGNED_PREKEYS, (key, value) -> new SignedPreKeyRecord(value));
+        answer.put(Partition.IDENTITIES, (key, value) -> new IdentityKey(value, 0));
+        answer.put(Partition.SESSION_INFO, (key, value) -> SessionInfo.decode(value));
+        answer.put(Partition.ADDRESSES, (key, value) -> AddressKeyCodec.INSTANCE.decode(value));
+        answer.put(Partition.ACCOUNT, (key, value) -> {
+            String name = KeyCodec.STRING.decode(key);
+            if ("identity".equals(name)) {
+                new IdentityKeyPair(value);
+            } else if ("credentials".equals(name)) {
+                List<String> lines = new String(value, StandardCharsets.UTF_8).lines().collect(Collectors.toList());
+                UUID.fromString(lines.get(0));
+                Integer.parseInt(lines.get(3));
+            }
+        });
+        return answer;
+    }
+
+    private static <K> byte[] view(StoreView view, Partition partition, byte[] key) throws IOException {
+        KeyCodec<K> codec = view.codec(partition);
+        return view.<K>table(partition).get(codec.decode(key));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K> byte[] current(Partition partition, byte[] key) throws IOException {
+        KeyCodec<K> codec = (KeyCodec<K>) codecs.get(partition);
+        return ((Table<K>) tables.get(partition)).get(codec.decode(key));
+    }
+
+    /**
+     * Handles a record that can't be parsed. Unless verification is off, the
+     * record is quarantined, so it only costs this record. Otherwise, runtime
+     * exceptions are thrown, and other exceptions are printed, as before.
+     */
+    private void corruptRecord(Partition partition, byte[] key, byte[] value, Exception ex) {
+        if (VERIFICATION == Verification.OFF) {
+            if (ex instanceof RuntimeException) {
+                throw (RuntimeException) ex;
+            }
+            ex.printStackTrace();
+            return;
+        }
+        quarantine(new VerificationReport.Finding(partition, key, ex), value);
+    }
+
+    /**
+     * Keeps a copy of the record in the quarantine, and removes it from the
+     * store. The record stays in the store if the copy can't be written.
+     */
+    private void quarantine(VerificationReport.Finding finding, byte[] value) {
+        if (value == null) {
+            return;
+        }
+        try {
+            finding.setQuarantined(true);
+            quarantine.put(finding, value);
+        } catch (IOException ex) {
+            finding.setQuarantined(false);
+            WAVELOG.log(Level.WARNING, "Can't quarantine " + finding.toJson() + ": " + ex);
+            ex.printStackTrace();
+            return;
+        }
+        byte[] key = finding.getKeyBytes();
+        switch (finding.getPartition()) {
+            case SESSIONS:
+                deleteSession(AddressKeyCodec.INSTANCE.decode(key));
+                break;
+            case SENDER_KEYS:
+                MySenderKey msk = SenderKeyCodec.INSTANCE.decode(key);
+                int sender = addressTable.find(msk.sender);
+                if (sender >= 0) {
+                    senderKeyMap.remove(new SenderKeyId(sender, msk.distributionId));
+                }
+                senderKeyTable.stage(msk, null);
+                mutate(Mutation.delete(Partition.SENDER_KEYS, key));
+                break;
+            case PREKEYS:
+                removePreKey(KeyCodec.INT.decode(key));
+                break;
+            case SIGNED_PREKEYS:
+                removeSignedPreKey(KeyCodec.INT.decode(key));
+                break;
+            case IDENTITIES:
+                int identity = KeyCodec.INT.decode(key);
+                trustedKeys.remove(identity);
+                identityTable.stage(identity, null);
+                mutate(Mutation.delete(Partition.IDENTITIES, key));
+                break;
+            case SESSION_INFO:
+                int info = KeyCodec.INT.decode(key);
+                sessionInfo.remove(info);
+                sessionInfoTable.stage(info, null);
+                mutate(Mutation.delete(Partition.SESSION_INFO, key));
+                break;
+            default:
+                throw new IllegalArgumentException("Can't quarantine records of " + finding.getPartition());
+        }
+        WAVELOG.log(Level.WARNING, "Quarantined a corrupt record: " + finding.toJson());
+    }
+
+    /**
+     * Opens a read-only view of all tables at one point in time, e.g. for a
+     * backup. The view is created on the writer thread between two writes,
+     * so it holds every update that was made before this call, except those
+     * in transactions that are still open, and none that is made later.
+     * Message processing continues while the view is read. The view must be
+     * closed when done, as it postpones the compaction of the tables.
+     */
+    public StoreView openView() throws IOException {
+        Map<Partition, TableView<?>> views = new EnumMap<>(Partition.class);
+        Exception[] failure = new Exception[1];
+        long[] timestamp = new long[1];
+        writer.barrier(() -> {
+            timestamp[0] = System.currentTimeMillis();
             try {
-                SessionRecord sessionRecord = new SessionRecord(sessions.get(address));
-                answer = sessionRecord.getSessionState().hasSenderChain();
-                int sv = sessionRecord.getSessionState().getSessionVersion();
-                if (!answer) {
-                    WAVELOG.log(Level.DEBUG, "Invalid session for " + address);
+                for (Entry<Partition, Table<?>> entry : tables.entrySet()) {
+                    views.put(entry.getKey(), entry.getValue().view());
                 }
-
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                answer = false;
+            } catch (IOException | RuntimeException ex) {
+                failure[0] = ex;
+            }
+        });
+        if ((failure[0] != null) || (views.size() != tables.size())) {
+            views.values().forEach(TableView::close);
+            if (failure[0] instanceof IOException) {
+                throw (IOException) failure[0];
             }
+            throw new IOException("Can't open a view of the store", failure[0]);
         }
-        return answer;
-    }
-
-    @Override
-    public synchronized void deleteSession(SignalProtocolAddress address) {
-        sessions.remove(address);
+        return new StoreView(views, codecs, timestamp[0]);
     }
 
-    @Override
-    public synchronized void deleteAllSessions(String name) {
-        for (SignalProtocolAddress key : sessions.keySet()) {
-            if (key.getName().equals(name)) {
-                sessions.remove(key);
+    /**
+     * Saves the state that the tables rebuild when they are opened, for the
+     * tables that support it, so the next start only has to read what is
+     * written after this. This is done when the store is closed, and can
+     * be called periodically, e.g. to speed up a start after a crash.
+     */
+    public synchronized void writeSnapshot() {
+        if (!initialized) {
+            return;
+        }
+        try {
+            Map<String, byte[]> sections = new LinkedHashMap<>();
+            for (Entry<Partition, Table<?>> entry : tables.entrySet()) {
+                if (entry.getValue() instanceof Snapshottable) {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(baos);
+                    if (((Snapshottable) entry.getValue()).writeSnapshot(out)) {
+                        out.flush();
+                        sections.put(entry.getKey().name(), baos.toByteArray());
+                    }
+                }
+            }
+            if (!sections.isEmpty()) {
+                SnapshotFile.write(SIGNAL_FX_STORE_PATH.resolve(SnapshotFile.NAME), sections);
+                WAVELOG.log(Level.DEBUG, "Wrote a snapshot of " + sections.size() + " tables");
             }
+        } catch (IOException ex) {
+            WAVELOG.log(Level.WARNING, "Can't write a snapshot: " + ex);
+            ex.printStackTrace();
         }
     }
 
-    @Override
-    public void archiveSession(SignalProtocolAddress address) {
-        WAVELOG.log(Level.DEBUG, "We need to archive session for " + address);
-        byte[] b = sessions.get(address);
+    /**
+     * Offers the sections of the last snapshot to the tables, before they are opened.
+     */
+    private void offerSnapshot() {
         try {
-            SessionRecord s = new SessionRecord(b);
-            if (s != null) {
-                s.archiveCurrentState();
-                persistSession(address, s);
+            Map<String, byte[]> sections = SnapshotFile.read(SIGNAL_FX_STORE_PATH.resolve(SnapshotFile.NAME));
+            for (Entry<Partition, Table<?>> entry : tables.entrySet()) {
+                byte[] section = sections.get(entry.getKey().name());
+                if ((section != null) && (entry.getValue() instanceof Snapshottable)) {
+                    ((Snapshottable) entry.getValue()).offerSnapshot(section);
+                }
             }
         } catch (IOException ex) {
-            ex.printStackTrace();
+            // the tables are read completely
+            WAVELOG.log(Level.WARNING, "Can't read the snapshot: " + ex);
         }
     }
 
@@ -338,17 +1242,13 @@ public class WaveStore implements SignalServiceProtocolStore {
 
     private void persistCredentialsProvider() {
         try {
-            Path path = SIGNAL_FX_STORE_PATH.resolve("credentials");
-            File credFile = path.toFile();
-            if (credFile.exists()) {
-                credFile.delete();
-            }
             UUID uuid = credentialsProvider.getUuid();
-            Files.writeString(path, uuid.toString() + "\n", StandardOpenOption.CREATE);
-            Files.writeString(path, credentialsProvider.getE164() + "\n", StandardOpenOption.APPEND);
-            Files.writeString(path, credentialsProvider.getPassword() + "\n", StandardOpenOption.APPEND);
-            Files.writeString(path, Integer.toString(credentialsProvider.getDeviceId()) + "\n", StandardOpenOption.APPEND);
-            Files.writeString(path, credentialsProvider.getSignalingKey() + "\n", StandardOpenOption.APPEND);
+            String lines = uuid.toString() + "\n"
+                    + credentialsProvider.getE164() + "\n"
+                    + credentialsProvider.getPassword() + "\n"
+                    + Integer.toString(credentialsProvider.getDeviceId()) + "\n"
+                    + credentialsProvider.getSignalingKey() + "\n";
+            account.put("credentials", lines.getBytes(StandardCharsets.UTF_8));
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -356,11 +1256,12 @@ public class WaveStore implements SignalServiceProtocolStore {
 
     private boolean retrieveCredentialsProvider() {
         try {
-            Path path = SIGNAL_FX_STORE_PATH.resolve("credentials");
-            if (!Files.exists(path)) {
+            account.open(null);
+            byte[] b = account.get("credentials");
+            if (b == null) {
                 return false;
             }
-            List<String> lines = Files.readAllLines(path);
+            List<String> lines = new String(b, StandardCharsets.UTF_8).lines().collect(Collectors.toList());
             String uuidString = lines.get(0);
             UUID uuid = UUID.fromString(uuidString);
             String number = lines.get(1);
@@ -379,14 +1280,9 @@ public class WaveStore implements SignalServiceProtocolStore {
     }
 
     private void persistIdentityKeyPair() {
-        Path path = SIGNAL_FX_STORE_PATH.resolve("identity");
-        File f = path.toFile();
-        if (f.exists()) {
-            f.delete();
-        }
         byte[] b = identityKeyPair.serialize();
         try {
-            Files.write(path, b);
+            account.put("identity", b);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -394,8 +1290,10 @@ public class WaveStore implements SignalServiceProtocolStore {
 
     private boolean retrieveIdentityKeyPair() throws IOException {
         try {
-            Path path = SIGNAL_FX_STORE_PATH.resolve("identity");
-            byte[] b = Files.readAllBytes(path);
+            byte[] b = account.get("identity");
+            if (b == null) {
+                return false;
+            }
             this.identityKeyPair = new IdentityKeyPair(b);
             return true;
         } catch (InvalidKeyException ex) {
@@ -404,239 +1302,286 @@ public class WaveStore implements SignalServiceProtocolStore {
         return false;
     }
 
-    private void persistPreKey(int i, PreKeyRecord pkr) throws IOException {
-        Path ppath = SIGNAL_FX_STORE_PATH.resolve("prekeys");
-        if (!Files.exists(ppath)) {
-            Files.createDirectories(ppath);
-        }
-        Path path = ppath.resolve(Integer.toString(i));
-        File f = path.toFile();
-        if (f.exists()) {
-            f.delete();
-        }
-        Files.write(path, pkr.serialize());
-    }
-    
-    private void deletePreKey(int i) throws IOException {
-        Path ppath = SIGNAL_FX_STORE_PATH.resolve("prekeys").resolve(Integer.toString(i));
-        Files.delete(ppath);
+    private boolean retrievePreKeys() throws IOException {
+        preKeys.open(null);
+        importLegacyPreKeys();
+        return true;
     }
 
-    private boolean retrievePreKeys() throws IOException {
+    /**
+     * Older versions of the store wrote every pre-key to its own file in the
+     * <code>prekeys</code> directory. Those are moved into the slot file once.
+     */
+    private void importLegacyPreKeys() throws IOException {
         Path ppath = SIGNAL_FX_STORE_PATH.resolve("prekeys");
         if (!Files.exists(ppath)) {
-            Files.createDirectories(ppath);
+            return;
         }
-        Files.list(ppath).forEach(path -> {
-            try {
+        Map<Integer, byte[]> batch = new HashMap<>();
+        try (Stream<Path> list = Files.list(ppath)) {
+            for (Path path : list.collect(Collectors.toList())) {
                 String name = path.getFileName().toString();
-                int i = Integer.parseInt(name);
-                byte[] b = Files.readAllBytes(path);
-                map.put(i, new PreKeyRecord(b));
-            } catch (IOException ex) {
-                ex.printStackTrace();
+                batch.put(Integer.parseInt(name), Files.readAllBytes(path));
             }
-        });
-        return true;
-    }
-
-    private void persistSignedPreKeys() {
-        Path path = SIGNAL_FX_STORE_PATH.resolve("signedprekeys");
-        File f = path.toFile();
-        if (f.exists()) {
-            f.delete();
-        }
-        List<String> lines = new LinkedList<>();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream daos = new DataOutputStream(baos);
-        try {
-            daos.writeInt(signedMap.size());
-            for (Entry<Integer, SignedPreKeyRecord> entry : signedMap.entrySet()) {
-                lines.add(Integer.toString(entry.getKey()));
-                byte[] b = entry.getValue().serialize();
-                daos.writeInt(entry.getKey());
-                daos.writeInt(b.length);
-                daos.write(b);
-            }
-            daos.flush();
-            Files.write(path, baos.toByteArray());
-        } catch (IOException ex) {
-            ex.printStackTrace();
         }
-
+        preKeys.putAll(batch);
+        preKeys.sync();
+        WAVELOG.log(Level.INFO, "Imported " + batch.size() + " legacy prekey files");
+        deleteDirectoryIfExists(ppath);
     }
 
-    private void persistSenderKeys() {
-        Path path = SIGNAL_FX_STORE_PATH.resolve("senderkeys");
-        File f = path.toFile();
-        if (f.exists()) {
-            f.delete();
-        }
-        List<String> lines = new LinkedList<>();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream daos = new DataOutputStream(baos);
-        try {
-            daos.writeInt(senderKeyMap.size());
-            Set<Entry<MySenderKey, SenderKeyRecord>> entrySet = senderKeyMap.entrySet();
-            for (Entry<MySenderKey, SenderKeyRecord> entry : entrySet) {
-                MySenderKey key = entry.getKey();
-                String serkey = key.sender.getName() + ":" + key.sender.getDeviceId() + ":" + key.distributionId.toString();
-                byte[] value = entry.getValue().serialize();
-                daos.writeUTF(serkey);
-                daos.writeInt(value.length);
-                daos.write(value);
-            }
-            daos.flush();
-            Files.write(path, baos.toByteArray());
-            System.err.println("Wrote senderkeys with "+senderKeyMap.size() + " items");
-        } catch (IOException e) {
-            e.printStackTrace();
+    private boolean retrieveSenderKeys() throws IOException {
+        senderKeyMap.clear();
+        Map<MySenderKey, byte[]> unknown = new HashMap<>();
+        senderKeyTable.open((msk, b) -> {
+            int id = addressTable.find(msk.sender);
+            if (id < 0) {
+                unknown.put(msk, b);
+            } else {
+                senderKeyMap.put(new SenderKeyId(id, msk.distributionId), b);
+            }
+        });
+        // sender keys that were stored before addresses had ids get one now
+        for (Entry<MySenderKey, byte[]> entry : unknown.entrySet()) {
+            senderKeyMap.put(senderKeyId(entry.getKey()), entry.getValue());
         }
+        importLegacySenderKeys();
+        WAVELOG.log(Level.DEBUG, "[WS] retrieved " + senderKeyMap.size() + " sender keys");
+        return true;
     }
 
-    private boolean retrieveSenderKeys() throws IOException {
-        System.err.println("Retrieve SenderKeys from storage");
+    /**
+     * Older versions of the store rewrote all sender keys to a single
+     * <code>senderkeys</code> file on every update. Those are moved into the
+     * sender key log once.
+     */
+    private void importLegacySenderKeys() throws IOException {
         Path path = SIGNAL_FX_STORE_PATH.resolve("senderkeys");
         if (!Files.exists(path)) {
-            System.err.println("No sender keys found.");
-            return true;
+            return;
         }
         byte[] b = Files.readAllBytes(path);
         ByteArrayInputStream bais = new ByteArrayInputStream(b);
         DataInputStream dis = new DataInputStream(bais);
         int entriesSize = dis.readInt();
-        System.err.println("SenderKeyStore has " + entriesSize+" entries.");
-        senderKeyMap.clear();
         for (int i = 0; i < entriesSize; i++) {
-            String key = dis.readUTF();
-            System.err.println("SENDERKEY = "+key);
-            String[] keyParts = key.split(":");
-            String keyName = keyParts[0];
-            int deviceId = Integer.parseInt(keyParts[1]);
-            String distId = keyParts[2];
-            MySenderKey sk = new MySenderKey(new SignalProtocolAddress(keyName, deviceId), UUID.fromString(distId));
-
-             int bs = dis.readInt();
-            byte[] spkrb = new byte[bs];
-            int read = dis.read(spkrb);
-            if (read != bs) {
-                throw new RuntimeException("signed prekeys tampered with!");
+            MySenderKey sk = MySenderKey.parse(dis.readUTF());
+            byte[] spkrb = new byte[dis.readInt()];
+            dis.readFully(spkrb);
+            SenderKeyId skid = senderKeyId(sk);
+            if (!senderKeyMap.containsKey(skid)) {
+                senderKeyMap.put(skid, spkrb);
+                senderKeyTable.put(sk, spkrb);
             }
-            SenderKeyRecord skr = new SenderKeyRecord(spkrb);
-            senderKeyMap.put(sk, skr);
         }
-        System.err.println("SenderKeyMap retrieved: "+senderKeyMap);
-        return true;
+        senderKeyTable.sync();
+        WAVELOG.log(Level.INFO, "Imported " + entriesSize + " legacy sender keys");
+        Files.delete(path);
     }
-    
+
     private boolean retrieveSignedPreKeys() throws IOException {
+        signedPreKeys.open(null);
+        importLegacySignedPreKeys();
+        return true;
+    }
+
+    /**
+     * Older versions of the store wrote all signed pre-keys to a single
+     * <code>signedprekeys</code> file, which is moved into the slot file once.
+     */
+    private void importLegacySignedPreKeys() throws IOException {
         Path path = SIGNAL_FX_STORE_PATH.resolve("signedprekeys");
+        if (!Files.exists(path)) {
+            return;
+        }
         byte[] b = Files.readAllBytes(path);
         ByteArrayInputStream bais = new ByteArrayInputStream(b);
         DataInputStream dis = new DataInputStream(bais);
         int entriesize = dis.readInt();
-        signedMap.clear();
-        WAVELOG.log(Level.DEBUG, "retrieving signed PK's, size = %s", Integer.toString(entriesize));
+        WAVELOG.log(Level.DEBUG, "importing signed PK's, size = %s", Integer.toString(entriesize));
+        Map<Integer, byte[]> batch = new HashMap<>();
         for (int i = 0; i < entriesize; i++) {
             int id = dis.readInt();
             int bs = dis.readInt();
             byte[] spkrb = new byte[bs];
-            int read = dis.read(spkrb);
-            if (read != bs) {
-                throw new RuntimeException("signed prekeys tampered with!");
-            }
-            WAVELOG.log(Level.DEBUG, "Got id %s with %s bytes, pk = %s", id, b.length, Arrays.toString(b));
-            SignedPreKeyRecord spkr = new SignedPreKeyRecord(spkrb);
-            signedMap.put(id, spkr);
+            dis.readFully(spkrb);
+            batch.put(id, spkrb);
+        }
+        signedPreKeys.putAll(batch);
+        signedPreKeys.sync();
+        Files.delete(path);
+    }
+
+    private boolean retrieveSessions() throws IOException {
+        sessionTable.open(null);
+        importLegacySessions();
+        Set<SignalProtocolAddress> addresses = sessionTable.keys();
+        // sessions that were stored before addresses had ids get one now
+        for (SignalProtocolAddress address : addresses) {
+            addressTable.intern(address);
         }
+        sessionDevices.addAll(addresses);
+        sessionCodec = new RecordCodec(SESSION_FORMAT, sessionDictionary());
+        List<Runnable> corrupt = new ArrayList<>();
+        sessionInfoTable.open((id, b) -> restoreSessionInfo(id, b, corrupt));
+        corrupt.forEach(Runnable::run);
+        addMissingSessionInfo(addresses);
         return true;
     }
 
-    private void persistSession(SignalProtocolAddress address, SessionRecord record) throws IOException {
-        Path ppath = SIGNAL_FX_STORE_PATH.resolve("sessions");
-        if (!Files.exists(ppath)) {
-            Files.createDirectories(ppath);
+    private void restoreSessionInfo(int addressId, byte[] b, List<Runnable> corrupt) {
+        // ids that are not in the table were never synced, and are ignored
+        if (addressTable.get(addressId) == null) {
+            return;
         }
-        String fname = address.getName()+"_" + address.getDeviceId();
-        Path path = ppath.resolve(fname);
-        File f = path.toFile();
-        if (f.exists()) {
-            f.delete();
+        try {
+            sessionInfo.put(addressId, SessionInfo.decode(b));
+        } catch (IOException | RuntimeException ex) {
+            // a missing info is added again from the session
+            corrupt.add(() -> corruptRecord(Partition.SESSION_INFO, KeyCodec.INT.encode(addressId), b, ex));
         }
-        Files.write(path, record.serialize());
     }
 
-    private boolean retrieveSessions() throws IOException {
+    /**
+     * Sessions that were stored before the store kept a {@link SessionInfo}
+     * are parsed once, and count as used now.
+     */
+    private void addMissingSessionInfo(Set<SignalProtocolAddress> addresses) throws IOException {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (SignalProtocolAddress address : addresses) {
+            int id = addressTable.find(address);
+            if (sessionInfo.get(id) != null) {
+                continue;
+            }
+            SessionInfo info;
+            byte[] b = sessionTable.get(address);
+            try {
+                info = SessionInfo.of(new SessionRecord(sessionCodec.decode(b)), now);
+            } catch (IOException | RuntimeException ex) {
+                WAVELOG.log(Level.WARNING, "Can't read the session for " + address + ": " + ex);
+                if (VERIFICATION != Verification.OFF) {
+                    corruptRecord(Partition.SESSIONS, AddressKeyCodec.INSTANCE.encode(address), b, ex);
+                } else if (ex instanceof RuntimeException) {
+                    throw (RuntimeException) ex;
+                }
+                continue;
+            }
+            sessionInfo.put(id, info);
+            sessionInfoTable.put(id, info.encode());
+            count++;
+        }
+        if (count > 0) {
+            // the ids of the sessions are written on the writer thread
+            writer.sync(addressTable);
+            writer.flush();
+            sessionInfoTable.sync();
+            WAVELOG.log(Level.INFO, "Added the info of " + count + " sessions");
+        }
+    }
+
+    /**
+     * Returns the dictionary for compressing sessions. It is sampled from the
+     * stored sessions once, and never changes afterwards, as the sessions
+     * that are compressed with it can only be read with the same dictionary.
+     * The system property <code>com.gluonhq.wave.store.sessionFormat</code>
+     * selects the {@link RecordCodec.Format} of new sessions.
+     */
+    private byte[] sessionDictionary() throws IOException {
+        byte[] answer = account.get("sessiondictionary");
+        if ((answer != null) || (SESSION_FORMAT != RecordCodec.Format.DEFLATE)) {
+            return answer;
+        }
+        ByteArrayOutputStream sample = new ByteArrayOutputStream();
+        for (SignalProtocolAddress address : sessionTable.keys()) {
+            if (sample.size() >= DICTIONARY_SIZE) {
+                break;
+            }
+            byte[] raw = sessionCodec.decode(sessionTable.get(address));
+            sample.write(raw, 0, raw.length);
+        }
+        if (sample.size() == 0) {
+            return null;
+        }
+        byte[] b = sample.toByteArray();
+        // deflate only looks back 32 KiB, so the end of the sample is used
+        answer = Arrays.copyOfRange(b, Math.max(0, b.length - DICTIONARY_SIZE), b.length);
+        account.put("sessiondictionary", answer);
+        WAVELOG.log(Level.INFO, "Sampled a session dictionary of " + answer.length + " bytes");
+        return answer;
+    }
+
+    /**
+     * Older versions of the store wrote every session to its own file in the
+     * <code>sessions</code> directory. Those are moved into the session log once.
+     */
+    private void importLegacySessions() throws IOException {
         Path ppath = SIGNAL_FX_STORE_PATH.resolve("sessions");
         if (!Files.exists(ppath)) {
-            Files.createDirectories(ppath);
+            return;
         }
-        Files.list(ppath).forEach(path -> {
-            try {
-                String name = path.getFileName().toString();
-                int idx = name.indexOf("_");
-                String aname = name.substring(0,idx);
-                int i = Integer.parseInt(name.substring(idx+1));
-                byte[] b = Files.readAllBytes(path);
-                sessions.put(new SignalProtocolAddress(aname, i), b);
-            } catch (IOException ex) {
-                ex.printStackTrace();
+        List<Path> files;
+        try (Stream<Path> list = Files.list(ppath)) {
+            files = list.collect(Collectors.toList());
+        }
+        for (Path path : files) {
+            String name = path.getFileName().toString();
+            int idx = name.lastIndexOf("_");
+            String aname = name.substring(0,idx);
+            int i = Integer.parseInt(name.substring(idx+1));
+            SignalProtocolAddress address = new SignalProtocolAddress(aname, i);
+            byte[] b = Files.readAllBytes(path);
+            if (!sessionTable.contains(address)) {
+                sessionTable.put(address, b);
             }
-        });
-        return true;
+        }
+        sessionTable.sync();
+        WAVELOG.log(Level.INFO, "Imported " + files.size() + " legacy session files");
+        deleteDirectoryIfExists(ppath);
     }
 
     @Override
     public Set<SignalProtocolAddress> getAllAddressesWithActiveSessions(List<String> addressNames) {
         System.err.println("Need to get all SPA's for "+addressNames);
-        Set<SignalProtocolAddress> answer = sessions.keySet().stream()
-                .filter(spa -> addressNames.contains(spa.getName()))
-                .collect(Collectors.toSet());
+        Set<SignalProtocolAddress> answer = new HashSet<>();
+        for (String name : addressNames) {
+            for (int devid : sessionDevices.devices(name)) {
+                answer.add(new SignalProtocolAddress(name, devid));
+            }
+        }
         System.err.println("Will return "+answer);
         return answer;
     }
 
     @Override
     public Set<SignalProtocolAddress> getSenderKeySharedWith(DistributionId distributionId) {
-        System.err.println("GSKSW for "+distributionId);
-        try {
-            readDistributionKeys();
-        } catch (IOException ex) {
-            Logger.getLogger(WaveStore.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
-        }
-        Set<SignalProtocolAddress> answer = senderKeyDistributions.get(distributionId);
-        System.err.println("answer = "+answer);
-        if (answer == null) answer = Set.of();
+        Set<SignalProtocolAddress> answer = distributions.get(distributionId.asUuid());
+        WAVELOG.log(Level.DEBUG, "[WS] sender key " + distributionId + " is shared with " + answer);
         return answer;
     }
 
     @Override
     public void markSenderKeySharedWith(DistributionId distributionId, Collection<SignalProtocolAddress> addresses) {
-        Set<SignalProtocolAddress> answer = senderKeyDistributions.get(distributionId);
-        System.err.println("[WS] markSenderKeys for dist "+distributionId+" was " + answer);
-        if (answer == null) {
-            answer = new HashSet<>();
-            senderKeyDistributions.put(distributionId, answer);
-        }
-        answer.addAll(addresses);
-        System.err.println("[WS] markSenderKeys for dist "+distributionId+" is " + answer);
-        try {
-            storeDistributionKeys();
-        } catch (IOException ex) {
-            Logger.getLogger(WaveStore.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
+        WAVELOG.log(Level.DEBUG, "[WS] mark sender key " + distributionId + " as shared with " + addresses);
+        // the write is queued under the lock of the registry, so a later change is never overwritten
+        synchronized (distributions) {
+            byte[] members = distributions.mark(distributionId.asUuid(), addresses);
+            if (members != null) {
+                mutate(Mutation.put(Partition.DISTRIBUTIONS, KeyCodec.UUID.encode(distributionId.asUuid()), members));
+            }
         }
     }
 
     @Override
     public void clearSenderKeySharedWith(Collection<SignalProtocolAddress> addresses) {
-        System.err.println("[WS] clearSenderKeys for " + addresses);
-        for (DistributionId did: senderKeyDistributions.keySet()) {
-            senderKeyDistributions.get(did).removeAll(addresses);
-        }
-        try {
-            storeDistributionKeys();
-        } catch (IOException ex) {
-            Logger.getLogger(WaveStore.class.getName()).log(java.util.logging.Level.SEVERE, null, ex);
+        WAVELOG.log(Level.DEBUG, "[WS] clear shared sender keys for " + addresses);
+        synchronized (distributions) {
+            for (Entry<UUID, byte[]> entry : distributions.clear(addresses).entrySet()) {
+                byte[] key = KeyCodec.UUID.encode(entry.getKey());
+                mutate(entry.getValue().length == 0
+                        ? Mutation.delete(Partition.DISTRIBUTIONS, key)
+                        : Mutation.put(Partition.DISTRIBUTIONS, key, entry.getValue()));
+            }
         }
     }
 
@@ -644,18 +1589,33 @@ public class WaveStore implements SignalServiceProtocolStore {
     public void storeSenderKey(SignalProtocolAddress sender, UUID distributionId, SenderKeyRecord record) {
         MySenderKey msk = new MySenderKey(sender, distributionId);
         System.err.println("Stored senderkey for sender " + sender+" and distid = " + distributionId);
-        senderKeyMap.put(msk, record);
-        System.err.println("stored sender, keymap = "+senderKeyMap);
-        persistSenderKeys();
+        byte[] b = record.serialize();
+        ReentrantLock lock = stripes.lockFor(sender.getName());
+        lock.lock();
+        try {
+            senderKeyMap.put(senderKeyId(msk), b);
+            mutate(Mutation.put(Partition.SENDER_KEYS, SenderKeyCodec.INSTANCE.encode(msk), b));
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public SenderKeyRecord loadSenderKey(SignalProtocolAddress sender, UUID distributionId) {
         System.err.println("LSK asked for sender = "+sender+" and distributionId = "+distributionId);
         System.err.println("senderdvid = "+sender.getDeviceId());
-        MySenderKey msk = new MySenderKey(sender, distributionId);
-        SenderKeyRecord answer = senderKeyMap.get(msk);
-        System.err.println("got answer "+answer+", keymap = "+senderKeyMap);
+        int id = addressTable.find(sender);
+        byte[] b = id < 0 ? null : senderKeyMap.get(new SenderKeyId(id, distributionId));
+        SenderKeyRecord answer = null;
+        if (b != null) {
+            try {
+                answer = new SenderKeyRecord(b);
+            } catch (IOException | RuntimeException ex) {
+                corruptRecord(Partition.SENDER_KEYS,
+                        SenderKeyCodec.INSTANCE.encode(new MySenderKey(sender, distributionId)), b, ex);
+            }
+        }
+        System.err.println("got answer "+answer);
 
         if (answer == null) answer = new SenderKeyRecord();
         return answer;
@@ -666,43 +1626,331 @@ public class WaveStore implements SignalServiceProtocolStore {
         return true;
     }
 
+    /**
+     * Starts a transaction for the current thread. All changes that this thread
+     * makes to the store until the transaction is closed are written to disk
+     * together. Changes are visible immediately, also to other threads.
+     * Transactions can be nested, only closing the outermost one commits them.
+     */
     @Override
-    public Transaction beginTransaction() {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+    public StoreTransaction beginTransaction() {
+        TransactionScope scope = transactionScope.get();
+        if (scope == null) {
+            scope = new TransactionScope();
+            transactionScope.set(scope);
+        }
+        scope.depth++;
+        return new StoreTransaction(scope);
     }
 
-    
-    private void readDistributionKeys() throws IOException {
-        System.err.println("[WS] readDistributionKeys");
-        Path path = SIGNAL_FX_CONTACTS_DIR.toPath().resolve("distributionKeys");
-        if (Files.exists(path)) {
-            String line = Files.readString(path);
-            ObjectMapper objectMapper = new ObjectMapper();
-            senderKeyDistributions = objectMapper.readValue(line, 
-                    new TypeReference<HashMap<DistributionId, Set<SignalProtocolAddress>>>() {});
+    public final class StoreTransaction implements Transaction, AutoCloseable {
+
+        private final TransactionScope scope;
+        private boolean closed;
+
+        private StoreTransaction(TransactionScope scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (--scope.depth == 0) {
+                transactionScope.remove();
+                commit(scope);
+            }
+        }
+    }
+
+    private static class TransactionScope {
+
+        final Map<Object, Mutation> mutations = new LinkedHashMap<>();
+        final Map<Object, Long> versions = new HashMap<>();
+        int depth;
+    }
+
+    /**
+     * Records a change that is already applied in memory. Within a transaction,
+     * it is kept until the transaction commits, otherwise it is queued on the writer.
+     * Callers hold the stripe lock of the key, so the order of the versions
+     * matches the order of the changes in memory.
+     */
+    private void mutate(Mutation mutation) {
+        Object target = mutation.target();
+        long version = lastVersion.incrementAndGet();
+        versions.merge(target, version, Math::max);
+        TransactionScope scope = transactionScope.get();
+        if (scope != null) {
+            scope.mutations.put(target, mutation);
+            scope.versions.put(target, version);
+            return;
+        }
+        writer.submit(sinkOf(mutation.getPartition()), target, () -> {
+            try {
+                if (journalPending) {
+                    // a replay of the pending journal records must not overwrite this change
+                    addressTable.sync();
+                    journal.append(Mutation.encode(List.of(mutation)));
+                    journal.sync();
+                }
+                apply(List.of(mutation));
+            } finally {
+                versions.remove(target, version);
+            }
+        });
+    }
+
+    /**
+     * Writes the changes of a transaction as one journal record, and only then
+     * applies them to the actual storage. Without durability, or without a
+     * journal, the changes are written like any other change.
+     * Changes to keys that were changed again since, by another thread, are
+     * left out: the newer change is written after this one.
+     */
+    private void commit(TransactionScope scope) {
+        if (scope.mutations.isEmpty()) {
+            return;
+        }
+        Map<Object, Mutation> mutations = new LinkedHashMap<>(scope.mutations);
+        Map<Object, Long> committed = new HashMap<>(scope.versions);
+        Set<Syncable> sinks = new LinkedHashSet<>();
+        for (Mutation mutation : mutations.values()) {
+            Syncable sink = sinkOf(mutation.getPartition());
+            if (sink != null) {
+                sinks.add(sink);
+            }
+        }
+        writer.submitAll(sinks, new Object(), () -> {
+            List<Mutation> current = new ArrayList<>();
+            for (Entry<Object, Mutation> entry : mutations.entrySet()) {
+                // a newer change replaced our version, or was already written and removed it
+                if (committed.get(entry.getKey()).equals(versions.get(entry.getKey()))) {
+                    current.add(entry.getValue());
+                }
+            }
+            try {
+                if (current.isEmpty()) {
+                    return;
+                }
+                if ((journal != null) && (writer.getDurability() != Durability.NONE)) {
+                    // new ids are not in the journal, so the ids it refers to must be durable first
+                    addressTable.sync();
+                    journal.append(Mutation.encode(current));
+                    journal.sync();
+                    journalPending = true;
+                }
+                apply(current);
+            } finally {
+                committed.forEach(versions::remove);
+            }
+        });
+    }
+
+    /**
+     * Runs on the writer thread once everything that was written is synced,
+     * so the journal records are no longer needed.
+     */
+    private void checkpoint() throws IOException {
+        journal.truncate();
+        journalPending = false;
+    }
+
+    private Syncable sinkOf(Partition partition) {
+        switch (partition) {
+            case SESSIONS:
+                return sessionTable;
+            case PREKEYS:
+                return preKeys;
+            case SIGNED_PREKEYS:
+                return signedPreKeys;
+            case SENDER_KEYS:
+                return senderKeyTable;
+            case DISTRIBUTIONS:
+                return distributions;
+            case IDENTITIES:
+                return identityTable;
+            case SESSION_INFO:
+                return sessionInfoTable;
+            default:
+                return null;
+        }
+    }
+
+    private void apply(List<Mutation> mutations) throws IOException {
+        for (Mutation mutation : mutations) {
+            byte[] key = mutation.getKey();
+            switch (mutation.getPartition()) {
+                case SESSIONS:
+                    SignalProtocolAddress address = AddressKeyCodec.INSTANCE.decode(key);
+                    if (mutation.isDelete()) {
+                        sessionTable.remove(address);
+                    } else {
+                        sessionTable.put(address, mutation.getValue());
+                    }
+                    break;
+                case PREKEYS:
+                    applyToSlots(preKeys, mutation);
+                    break;
+                case SIGNED_PREKEYS:
+                    applyToSlots(signedPreKeys, mutation);
+                    break;
+                case SENDER_KEYS:
+                    MySenderKey msk = SenderKeyCodec.INSTANCE.decode(key);
+                    if (mutation.isDelete()) {
+                        senderKeyTable.remove(msk);
+                    } else {
+                        senderKeyTable.put(msk, mutation.getValue());
+                    }
+                    break;
+                case DISTRIBUTIONS:
+                    distributions.write(KeyCodec.UUID.decode(key), mutation.getValue());
+                    break;
+                case IDENTITIES:
+                    // the address id must be durable before the identity that refers to it
+                    addressTable.sync();
+                    identityTable.put(KeyCodec.INT.decode(key), mutation.getValue());
+                    break;
+                case SESSION_INFO:
+                    if (mutation.isDelete()) {
+                        sessionInfoTable.remove(KeyCodec.INT.decode(key));
+                    } else {
+                        addressTable.sync();
+                        sessionInfoTable.put(KeyCodec.INT.decode(key), mutation.getValue());
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void applyToSlots(Table<Integer> slots, Mutation mutation) throws IOException {
+        int id = KeyCodec.INT.decode(mutation.getKey());
+        if (mutation.isDelete()) {
+            slots.remove(id);
         } else {
-            senderKeyDistributions = new HashMap();
+            slots.put(id, mutation.getValue());
         }
     }
-    
-    private void storeDistributionKeys() throws IOException {
-        WAVELOG.log(Level.INFO, "store distributionKeys");
-        Path path = SIGNAL_FX_CONTACTS_DIR.toPath().resolve("distributionKeys");
-        if (!Files.exists(path.getParent())) {
-            Files.createDirectories(path.getParent());
+
+    /**
+     * Replays the transactions that were committed to the journal, but that
+     * might not have reached the storage before the previous run ended.
+     */
+    private void recoverJournal() throws IOException {
+        if (journal == null) {
+            return;
+        }
+        List<byte[]> records = journal.open();
+        if (records.isEmpty()) {
+            return;
+        }
+        List<Runnable> corrupt = new ArrayList<>();
+        List<List<Mutation>> recovered = new ArrayList<>();
+        for (byte[] record : records) {
+            List<Mutation> mutations = Mutation.decode(record);
+            recovered.add(mutations);
+            for (Mutation mutation : mutations) {
+                if (mutation.getPartition() == Partition.SESSIONS) {
+                    SignalProtocolAddress address = AddressKeyCodec.INSTANCE.decode(mutation.getKey());
+                    if (mutation.isDelete()) {
+                        sessionDevices.remove(address);
+                    } else {
+                        addressTable.intern(address);
+                        sessionDevices.add(address);
+                    }
+                    int id = addressTable.find(address);
+                    if (id >= 0) {
+                        parsedSessions.remove(id);
+                    }
+                } else if (mutation.getPartition() == Partition.DISTRIBUTIONS) {
+                    distributions.restore(KeyCodec.UUID.decode(mutation.getKey()), mutation.getValue());
+                } else if (mutation.getPartition() == Partition.SENDER_KEYS) {
+                    SenderKeyId skid = senderKeyId(SenderKeyCodec.INSTANCE.decode(mutation.getKey()));
+                    if (mutation.isDelete()) {
+                        senderKeyMap.remove(skid);
+                    } else {
+                        senderKeyMap.put(skid, mutation.getValue());
+                    }
+                } else if (mutation.getPartition() == Partition.IDENTITIES) {
+                    int id = KeyCodec.INT.decode(mutation.getKey());
+                    if (mutation.isDelete()) {
+                        trustedKeys.remove(id);
+                    } else {
+                        restoreIdentity(id, mutation.getValue(), corrupt);
+                    }
+                } else if (mutation.getPartition() == Partition.SESSION_INFO) {
+                    int id = KeyCodec.INT.decode(mutation.getKey());
+                    if (mutation.isDelete()) {
+                        sessionInfo.remove(id);
+                    } else {
+                        restoreSessionInfo(id, mutation.getValue(), corrupt);
+                    }
+                }
+            }
+        }
+        // the ids that were assigned above are written on the writer thread
+        writer.sync(addressTable);
+        writer.flush();
+        for (List<Mutation> mutations : recovered) {
+            apply(mutations);
+        }
+        sessionTable.sync();
+        preKeys.sync();
+        signedPreKeys.sync();
+        senderKeyTable.sync();
+        distributions.sync();
+        identityTable.sync();
+        sessionInfoTable.sync();
+        journal.truncate();
+        corrupt.forEach(Runnable::run);
+        WAVELOG.log(Level.INFO, "Recovered " + records.size() + " transactions from the journal");
+    }
+
+    private boolean retrieveDistributions() throws IOException {
+        distributions.open();
+        // older versions kept this in a JSON file, which was never written completely
+        Files.deleteIfExists(SIGNAL_FX_CONTACTS_DIR.toPath().resolve("distributionKeys"));
+        return true;
+    }
+
+    /**
+     * Reads the trusted identity keys, which are stored by the id of their
+     * address in the {@link AddressTable}, so they can be looked up without disk access.
+     */
+    private boolean retrieveIdentities() throws IOException {
+        List<Runnable> corrupt = new ArrayList<>();
+        identityTable.open((id, b) -> restoreIdentity(id, b, corrupt));
+        // records are only removed once the table is read
+        corrupt.forEach(Runnable::run);
+        WAVELOG.log(Level.DEBUG, "Read " + trustedKeys.size() + " trusted identities");
+        return true;
+    }
+
+    private void restoreIdentity(int addressId, byte[] b, List<Runnable> corrupt) {
+        // ids that are not in the table were never synced, and are ignored
+        if (addressTable.get(addressId) == null) {
+            return;
+        }
+        try {
+            trustedKeys.put(addressId, new IdentityKey(b, 0));
+        } catch (InvalidKeyException | RuntimeException ex) {
+            corrupt.add(() -> corruptRecord(Partition.IDENTITIES, KeyCodec.INT.encode(addressId), b, ex));
         }
-        Files.deleteIfExists(path);
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.writeValueAsString(senderKeyDistributions);
     }
 
     @Override
     public List<SessionRecord> loadExistingSessions(List<SignalProtocolAddress> addresses) throws NoSessionException {
-        List<SessionRecord> answer = new LinkedList<>();
+        List<SessionRecord> answer = new ArrayList<>(addresses.size());
         for (SignalProtocolAddress addy : addresses) {
-            if (this.containsSession(addy)) {
-                SessionRecord record = this.loadSession(addy);
-                answer.add(record);
+            try {
+                SessionRecord record = cachedSession(addy);
+                if ((record != null) && record.getSessionState().hasSenderChain()) {
+                    answer.add(copySession(record));
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
             }
         }
         return answer;
@@ -718,6 +1966,17 @@ public class WaveStore implements SignalServiceProtocolStore {
             this.distributionId = distributionId;
         }
 
+        /**
+         * Parses the <code>name:device:uuid</code> keys of the legacy sender key file.
+         */
+        static MySenderKey parse(String key) {
+            String[] keyParts = key.split(":");
+            String keyName = keyParts[0];
+            int deviceId = Integer.parseInt(keyParts[1]);
+            String distId = keyParts[2];
+            return new MySenderKey(new SignalProtocolAddress(keyName, deviceId), UUID.fromString(distId));
+        }
+
         @Override
         public int hashCode() {
             int hash = 7;
@@ -753,6 +2012,72 @@ public class WaveStore implements SignalServiceProtocolStore {
         }
     }
 
+    private SenderKeyId senderKeyId(MySenderKey msk) {
+        return new SenderKeyId(addressTable.intern(msk.sender), msk.distributionId);
+    }
+
+    /**
+     * The key of a sender key in memory: the id of the sender in the
+     * {@link AddressTable}, and the distribution id. Unlike {@link MySenderKey},
+     * it doesn't refer to the address, and is hashed without hashing a name.
+     */
+    static final class SenderKeyId {
+
+        private final int sender;
+        private final long msb;
+        private final long lsb;
+
+        SenderKeyId(int sender, UUID distributionId) {
+            this.sender = sender;
+            this.msb = distributionId.getMostSignificantBits();
+            this.lsb = distributionId.getLeastSignificantBits();
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = msb ^ lsb;
+            return 31 * sender + (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SenderKeyId)) {
+                return false;
+            }
+            SenderKeyId other = (SenderKeyId) obj;
+            return (sender == other.sender) && (msb == other.msb) && (lsb == other.lsb);
+        }
+    }
+
+    /**
+     * Encodes a sender key as <code>long msb | long lsb | int deviceId | name</code>,
+     * where msb and lsb are the bits of the distribution id, and the name is in UTF-8.
+     */
+    static class SenderKeyCodec implements KeyCodec<MySenderKey> {
+
+        static final SenderKeyCodec INSTANCE = new SenderKeyCodec();
+
+        @Override
+        public byte[] encode(MySenderKey key) {
+            byte[] name = key.sender.getName().getBytes(StandardCharsets.UTF_8);
+            return ByteBuffer.allocate(20 + name.length)
+                    .putLong(key.distributionId.getMostSignificantBits())
+                    .putLong(key.distributionId.getLeastSignificantBits())
+                    .putInt(key.sender.getDeviceId())
+                    .put(name)
+                    .array();
+        }
+
+        @Override
+        public MySenderKey decode(byte[] b) {
+            ByteBuffer buffer = ByteBuffer.wrap(b);
+            UUID distributionId = new UUID(buffer.getLong(), buffer.getLong());
+            int deviceId = buffer.getInt();
+            String name = new String(b, 20, b.length - 20, StandardCharsets.UTF_8);
+            return new MySenderKey(new SignalProtocolAddress(name, deviceId), distributionId);
+        }
+    }
+
     boolean deleteDirectoryIfExists(Path target) throws IOException {
         if ((target == null) || !Files.exists(target)) {
             System.err.println("didn't exist");
@@ -767,14 +2092,10 @@ public class WaveStore implements SignalServiceProtocolStore {
         return Files.deleteIfExists(target);
     }
     
-    private void preparePaths() {
-        SIGNAL_FX = System.getProperty("user.home")
-                + File.separator + ".signalfx";
-        SIGNAL_FX_DIR = new File(SIGNAL_FX);
-        SIGNAL_FX_DIR.mkdirs();
-        SIGNAL_FX_PATH = SIGNAL_FX_DIR.toPath();
+    private void preparePaths(Path root) {
+        SIGNAL_FX_PATH = root;
         SIGNAL_FX_STORE_PATH = SIGNAL_FX_PATH.resolve("store");
-        Path contacts = SIGNAL_FX_DIR.toPath().resolve("contacts/");
+        Path contacts = SIGNAL_FX_PATH.resolve("contacts/");
         SIGNAL_FX_CONTACTS_DIR = contacts.toFile();
         try {
             Files.createDirectories(SIGNAL_FX_STORE_PATH);
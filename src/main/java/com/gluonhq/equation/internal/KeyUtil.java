@@ -7,8 +7,9 @@ package com.gluonhq.equation.internal;
 
 import com.gluonhq.equation.WaveManager;
 import com.gluonhq.equation.WaveStore;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.ecc.Curve;
@@ -28,51 +29,35 @@ public class KeyUtil {
     public KeyUtil (WaveManager manager) {
         this.waveManager = manager;
     }
-    // TODO inject waveStore
-    public synchronized List<PreKeyRecord> generatePreKeys(int cnt) {
-        WaveStore waveStore = waveManager.getWaveStore();
-        List<PreKeyRecord> records = new LinkedList<>();
-        int preKeyIdOffset = 1; // TODO 
 
-        for (int i = 0; i < cnt; i++) {
-            int preKeyId = (preKeyIdOffset + i) % Medium.MAX_VALUE;
-            ECKeyPair keyPair = Curve.generateKeyPair();
-            PreKeyRecord record = new PreKeyRecord(preKeyId, keyPair);
+    /**
+     * Generates pre-keys, with a range of ids that is reserved in the store,
+     * so that concurrent generators never use the same id. The key pairs are
+     * generated in parallel, in the common ForkJoinPool.
+     */
+    public List<PreKeyRecord> generatePreKeys(int cnt) {
+        WaveStore waveStore = waveManager.getWaveStore();
+        int preKeyIdOffset = waveStore.reservePreKeyIds(cnt);
 
-            waveStore.storePreKey(preKeyId, record);
-            records.add(record);
-        }
+        List<PreKeyRecord> records = IntStream.range(0, cnt).parallel()
+                .mapToObj(i -> new PreKeyRecord((preKeyIdOffset + i) % Medium.MAX_VALUE, Curve.generateKeyPair()))
+                .collect(Collectors.toList());
+        waveStore.storePreKeys(records);
         return records;
     }
 
-    private static int activeSignedPreKeyId = 1;
-    private static int nextSignedPreKeyId = 2;
-
-    static int getNextSignedPreKeyId() {
-        return nextSignedPreKeyId;
-    }
-
-    static void setNextSignedPreKeyId(int v) {
-        nextSignedPreKeyId = v;
-    }
-
-    static void setActiveSignedPreKeyId(int v) {
-        activeSignedPreKeyId = v;
-    }
-
-    public synchronized SignedPreKeyRecord generateSignedPreKey(IdentityKeyPair identityKeyPair, boolean active) {
+    public SignedPreKeyRecord generateSignedPreKey(IdentityKeyPair identityKeyPair, boolean active) {
         try {
             WaveStore waveStore = waveManager.getWaveStore();
-            int signedPreKeyId = getNextSignedPreKeyId();
+            int signedPreKeyId = waveStore.reserveSignedPreKeyId();
             ECKeyPair keyPair = Curve.generateKeyPair();
             byte[] signature = Curve.calculateSignature(identityKeyPair.getPrivateKey(), keyPair.getPublicKey().serialize());
             SignedPreKeyRecord record = new SignedPreKeyRecord(signedPreKeyId, System.currentTimeMillis(), keyPair, signature);
 
             waveStore.storeSignedPreKey(signedPreKeyId, record);
-            setNextSignedPreKeyId((signedPreKeyId + 1) % Medium.MAX_VALUE);
 
             if (active) {
-                setActiveSignedPreKeyId(signedPreKeyId);
+                waveStore.setActiveSignedPreKeyId(signedPreKeyId);
             }
 
             return record;
@@ -5,15 +5,67 @@
  */
 package com.gluonhq.equation.internal;
 
+import com.gluonhq.equation.store.Stripes;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.whispersystems.signalservice.api.SignalSessionLock;
 
+/**
+ * Session lock for the libsignal cipher paths.
+ * Every account has its own set of session locks: the lock created with the
+ * public constructor excludes all other session operations of that account,
+ * and is used when the peer is not known upfront (e.g. for sealed sender
+ * messages). A lock created for a peer with {@link #forPeer(String)} only
+ * excludes other operations on sessions of the same peer, using one of a
+ * fixed number of {@link Stripes}.
+ * The number of stripes is set by the system property
+ * <code>com.gluonhq.wave.lockStripes</code> (default 64).
+ */
 public class LockImpl implements SignalSessionLock {
 
-    private static final Lock singleton = () -> {};
-    
+    private final ReentrantReadWriteLock global;
+    private final Stripes stripes;
+    private final ReentrantLock stripe;
+
+    /**
+     * Creates the session locks of an account. This lock excludes all other
+     * session operations of the account.
+     */
+    public LockImpl() {
+        this.global = new ReentrantReadWriteLock();
+        this.stripes = new Stripes(Integer.getInteger("com.gluonhq.wave.lockStripes", 64));
+        this.stripe = null;
+    }
+
+    private LockImpl(LockImpl account, ReentrantLock stripe) {
+        this.global = account.global;
+        this.stripes = account.stripes;
+        this.stripe = stripe;
+    }
+
+    /**
+     * Creates a lock that only excludes other session operations for the
+     * same peer of this account. Note that a thread that holds a peer lock
+     * must not acquire the account lock.
+     *
+     * @param name the name of the peer, i.e. its uuid or number
+     */
+    public LockImpl forPeer(String name) {
+        return new LockImpl(this, stripes.lockFor(name));
+    }
+
     @Override
     public Lock acquire() {
-        return singleton;
+        if (stripe == null) {
+            global.writeLock().lock();
+            return global.writeLock()::unlock;
+        }
+        global.readLock().lock();
+        stripe.lock();
+        return () -> {
+            stripe.unlock();
+            global.readLock().unlock();
+        };
     }
-    
+
 }
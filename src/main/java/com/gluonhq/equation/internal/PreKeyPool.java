@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.internal;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import com.gluonhq.equation.AccountManager;
+import com.gluonhq.equation.WaveStore;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+/**
+ * Keeps the one-time pre-keys on the server from running out.
+ * The number of pre-keys that the server still has is checked periodically,
+ * and once it drops below a minimum, a new batch is generated and uploaded.
+ * The thresholds are set by the system properties
+ * <code>com.gluonhq.wave.prekeys.minimum</code> (default 10),
+ * <code>com.gluonhq.wave.prekeys.batch</code> (default 100) and
+ * <code>com.gluonhq.wave.prekeys.interval</code>, in seconds (default 900).
+ */
+public class PreKeyPool {
+
+    private static final int MINIMUM = Integer.getInteger("com.gluonhq.wave.prekeys.minimum", 10);
+    private static final int BATCH = Integer.getInteger("com.gluonhq.wave.prekeys.batch", 100);
+    private static final long INTERVAL = Long.getLong("com.gluonhq.wave.prekeys.interval", 15 * 60);
+
+    private final KeyUtil keyUtil;
+    private final WaveStore waveStore;
+    private final AccountManager accountManager;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+
+    public PreKeyPool(KeyUtil keyUtil, WaveStore waveStore, AccountManager accountManager,
+            ScheduledExecutorService scheduler) {
+        this.keyUtil = keyUtil;
+        this.waveStore = waveStore;
+        this.accountManager = accountManager;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts checking the pre-key count, immediately and then periodically.
+     */
+    public synchronized void start() {
+        if (task == null) {
+            task = scheduler.scheduleWithFixedDelay(this::check, 0, INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    private void check() {
+        try {
+            refill();
+        } catch (IOException | RuntimeException ex) {
+            WAVELOG.log(Level.WARNING, "[PreKeyPool] refill failed: " + ex);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Uploads a new batch of pre-keys if the server has less than the minimum.
+     *
+     * @return true if new pre-keys were uploaded
+     */
+    public synchronized boolean refill() throws IOException {
+        int count = accountManager.getPreKeysCount();
+        WAVELOG.log(Level.DEBUG, "[PreKeyPool] server has " + count + " pre-keys");
+        if (count >= MINIMUM) {
+            return false;
+        }
+        IdentityKeyPair identityKeyPair = waveStore.getIdentityKeyPair();
+        SignedPreKeyRecord signedPreKey;
+        try {
+            signedPreKey = waveStore.loadSignedPreKey(waveStore.getActiveSignedPreKeyId());
+        } catch (InvalidKeyIdException ex) {
+            signedPreKey = null;
+        }
+        if ((identityKeyPair == null) || (signedPreKey == null)) {
+            WAVELOG.log(Level.WARNING, "[PreKeyPool] can't upload pre-keys without identity and signed pre-key");
+            return false;
+        }
+        List<PreKeyRecord> records = keyUtil.generatePreKeys(BATCH);
+        // the server replaces all one-time pre-keys on every upload, so they are sent in one request
+        accountManager.setPreKeys(identityKeyPair.getPublicKey(), signedPreKey, records);
+        WAVELOG.log(Level.INFO, "[PreKeyPool] uploaded " + records.size() + " pre-keys");
+        return true;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.internal;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import com.gluonhq.equation.WaveStore;
+import java.lang.System.Logger.Level;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prunes sessions that are no longer used, on a background thread. By default,
+ * only the archived states of old sessions are dropped. Deleting old sessions,
+ * so that devices that are gone are no longer in the list of devices that
+ * group messages are sent to, must be enabled, as a device that is only
+ * offline for a while would need a new session.
+ * The ages are set by the system properties
+ * <code>com.gluonhq.wave.sessions.archiveAge</code>, in seconds (default 30 days),
+ * after which the archived states of a session are dropped, and
+ * <code>com.gluonhq.wave.sessions.maxAge</code>, in seconds (default 0),
+ * after which a session is deleted.
+ * A maximum age of 0 disables that kind of pruning.
+ * Sessions with the own devices of the account are never pruned.
+ */
+public class SessionPruner {
+
+    private static final long MAX_AGE = Long.getLong("com.gluonhq.wave.sessions.maxAge", 0);
+    private static final long ARCHIVE_AGE = Long.getLong("com.gluonhq.wave.sessions.archiveAge", 30 * 24 * 60 * 60);
+    private static final long INTERVAL = Long.getLong("com.gluonhq.wave.sessions.pruneInterval", 24 * 60 * 60);
+
+    private final WaveStore waveStore;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+
+    public SessionPruner(WaveStore waveStore, ScheduledExecutorService scheduler) {
+        this.waveStore = waveStore;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts pruning, after one interval and then periodically.
+     */
+    public synchronized void start() {
+        if ((task == null) && ((MAX_AGE > 0) || (ARCHIVE_AGE > 0))) {
+            task = scheduler.scheduleWithFixedDelay(this::check, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    private void check() {
+        try {
+            prune();
+        } catch (RuntimeException ex) {
+            WAVELOG.log(Level.WARNING, "[SessionPruner] pruning failed: " + ex);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the number of sessions that were deleted or trimmed
+     */
+    public int prune() {
+        long now = System.currentTimeMillis();
+        long deleteBefore = MAX_AGE > 0 ? now - TimeUnit.SECONDS.toMillis(MAX_AGE) : Long.MIN_VALUE;
+        long trimBefore = ARCHIVE_AGE > 0 ? now - TimeUnit.SECONDS.toMillis(ARCHIVE_AGE) : Long.MIN_VALUE;
+        int answer = waveStore.pruneSessions(deleteBefore, trimBefore);
+        if (answer > 0) {
+            WAVELOG.log(Level.INFO, "[SessionPruner] pruned " + answer + " sessions");
+        }
+        return answer;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.internal;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import com.gluonhq.equation.AccountManager;
+import com.gluonhq.equation.WaveStore;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+/**
+ * Replaces the signed pre-key on the server periodically, on a background thread.
+ * Once the active signed pre-key is older than the rotation interval, a new
+ * one is generated, uploaded, and made active. A few older signed pre-keys are
+ * kept, for messages that were started with them but not yet received, and
+ * the rest is removed from the store.
+ * The interval and the number of old keys are set by the system properties
+ * <code>com.gluonhq.wave.signedprekeys.interval</code>, in seconds (default 2 days),
+ * and <code>com.gluonhq.wave.signedprekeys.keep</code> (default 3).
+ */
+public class SignedPreKeyRotation {
+
+    private static final long INTERVAL = Long.getLong("com.gluonhq.wave.signedprekeys.interval", 2 * 24 * 60 * 60);
+    private static final int KEEP = Integer.getInteger("com.gluonhq.wave.signedprekeys.keep", 3);
+    private static final long CHECK_INTERVAL = Math.min(INTERVAL, 60 * 60);
+
+    private final KeyUtil keyUtil;
+    private final WaveStore waveStore;
+    private final AccountManager accountManager;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> task;
+
+    public SignedPreKeyRotation(KeyUtil keyUtil, WaveStore waveStore, AccountManager accountManager,
+            ScheduledExecutorService scheduler) {
+        this.keyUtil = keyUtil;
+        this.waveStore = waveStore;
+        this.accountManager = accountManager;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Starts checking the age of the active signed pre-key, immediately and
+     * then periodically.
+     */
+    public synchronized void start() {
+        if (task == null) {
+            task = scheduler.scheduleWithFixedDelay(this::check, 0, CHECK_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    private void check() {
+        try {
+            rotate(false);
+        } catch (IOException | RuntimeException ex) {
+            WAVELOG.log(Level.WARNING, "[SignedPreKeyRotation] rotation failed: " + ex);
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Rotates the signed pre-key if it is due, and removes old signed pre-keys.
+     *
+     * @param force rotate even if the active key is not due yet
+     * @return true if a new signed pre-key was uploaded
+     */
+    public synchronized boolean rotate(boolean force) throws IOException {
+        IdentityKeyPair identityKeyPair = waveStore.getIdentityKeyPair();
+        if (identityKeyPair == null) {
+            return false;
+        }
+        boolean due = force;
+        try {
+            SignedPreKeyRecord active = waveStore.loadSignedPreKey(waveStore.getActiveSignedPreKeyId());
+            due |= System.currentTimeMillis() - active.getTimestamp() >= TimeUnit.SECONDS.toMillis(INTERVAL);
+        } catch (InvalidKeyIdException ex) {
+            due = true;
+        }
+        if (due) {
+            SignedPreKeyRecord record = keyUtil.generateSignedPreKey(identityKeyPair, false);
+            accountManager.setSignedPreKey(record);
+            waveStore.setActiveSignedPreKeyId(record.getId());
+            WAVELOG.log(Level.INFO, "[SignedPreKeyRotation] rotated to signed pre-key " + record.getId());
+        }
+        prune();
+        return due;
+    }
+
+    private void prune() {
+        int activeId = waveStore.getActiveSignedPreKeyId();
+        List<SignedPreKeyRecord> old = waveStore.loadSignedPreKeys().stream()
+                .filter(r -> r.getId() != activeId)
+                .sorted(Comparator.comparingLong(SignedPreKeyRecord::getTimestamp).reversed())
+                .collect(Collectors.toList());
+        for (SignedPreKeyRecord record : old.subList(Math.min(KEEP, old.size()), old.size())) {
+            waveStore.removeSignedPreKey(record.getId());
+            WAVELOG.log(Level.DEBUG, "[SignedPreKeyRotation] removed signed pre-key " + record.getId());
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+/**
+ * Encodes a SignalProtocolAddress as the UTF-8 bytes of its name, followed
+ * by the device id as a 4-byte int.
+ */
+public class AddressKeyCodec implements KeyCodec<SignalProtocolAddress> {
+
+    public static final AddressKeyCodec INSTANCE = new AddressKeyCodec();
+
+    @Override
+    public byte[] encode(SignalProtocolAddress address) {
+        byte[] name = address.getName().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(name.length + 4).put(name).putInt(address.getDeviceId()).array();
+    }
+
+    @Override
+    public SignalProtocolAddress decode(byte[] b) {
+        String name = new String(b, 0, b.length - 4, StandardCharsets.UTF_8);
+        int deviceId = ByteBuffer.wrap(b, b.length - 4, 4).getInt();
+        return new SignalProtocolAddress(name, deviceId);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+/**
+ * Assigns a small, stable int id to every address, so that sets of addresses
+ * can be stored compactly, e.g. as a BitSet, and data about an address can be
+ * kept in an {@link IdMap}. Ids are never reused.
+ * Every address is kept as a single instance, which is returned by
+ * {@link #get(int)} and {@link #canonical(SignalProtocolAddress)}.
+ * New ids are assigned in memory, and stored in a {@link Table} by the
+ * {@link WriteBehind} of the store. They are queued before the id is
+ * returned, so every write that uses the id is queued after it. Data that
+ * refers to ids must only be made durable after this table is synced.
+ * Lookups don't take a lock.
+ */
+public class AddressTable implements Closeable, Syncable {
+
+    private final Table<Integer> log;
+    private final WriteBehind writer;
+    private final IdMap<SignalProtocolAddress> addresses = new IdMap<>();
+    private final Map<SignalProtocolAddress, Integer> ids = new ConcurrentHashMap<>();
+    private int nextId;
+    // only used on the writer thread, which writes and syncs the log
+    private boolean dirty;
+
+    public AddressTable(Table<Integer> log, WriteBehind writer) {
+        this.log = log;
+        this.writer = writer;
+    }
+
+    public synchronized void open() throws IOException {
+        Map<Integer, byte[]> stored = new HashMap<>();
+        log.open(stored::put);
+        for (Map.Entry<Integer, byte[]> entry : stored.entrySet()) {
+            int id = entry.getKey();
+            SignalProtocolAddress address = AddressKeyCodec.INSTANCE.decode(entry.getValue());
+            addresses.put(id, address);
+            ids.put(address, id);
+            nextId = Math.max(nextId, id + 1);
+        }
+    }
+
+    /**
+     * Returns the id of the address, assigning a new one if needed.
+     */
+    public synchronized int intern(SignalProtocolAddress address) {
+        Integer id = ids.get(address);
+        if (id != null) {
+            return id;
+        }
+        int answer = nextId++;
+        byte[] b = AddressKeyCodec.INSTANCE.encode(address);
+        addresses.put(answer, address);
+        ids.put(address, answer);
+        log.stage(answer, b);
+        writer.submit(this, answer, () -> {
+            log.put(answer, b);
+            dirty = true;
+        });
+        return answer;
+    }
+
+    /**
+     * @return the id of the address, or -1 if it has none
+     */
+    public int find(SignalProtocolAddress address) {
+        Integer id = ids.get(address);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return the address with this id, or null if the id is unknown
+     */
+    public SignalProtocolAddress get(int id) {
+        return addresses.get(id);
+    }
+
+    /**
+     * @return the instance of this address that is kept in the table, or the
+     * address itself if it has no id
+     */
+    public SignalProtocolAddress canonical(SignalProtocolAddress address) {
+        Integer id = ids.get(address);
+        return id == null ? address : addresses.get(id);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    /**
+     * @return a codec that encodes like {@link AddressKeyCodec}, but decodes
+     * addresses that have an id to the instance that is kept in this table,
+     * so a table that is keyed by address doesn't hold a copy of every address
+     */
+    public KeyCodec<SignalProtocolAddress> keyCodec() {
+        return new KeyCodec<SignalProtocolAddress>() {
+            @Override
+            public byte[] encode(SignalProtocolAddress address) {
+                return AddressKeyCodec.INSTANCE.encode(address);
+            }
+
+            @Override
+            public SignalProtocolAddress decode(byte[] b) {
+                return canonical(AddressKeyCodec.INSTANCE.decode(b));
+            }
+        };
+    }
+
+    /**
+     * Syncs the log, if new ids were written since the last sync. This
+     * doesn't take the lock of {@link #intern(SignalProtocolAddress)}, which
+     * may wait for the writer thread.
+     */
+    @Override
+    public void sync() throws IOException {
+        if (dirty) {
+            log.sync();
+            dirty = false;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+        addresses.clear();
+        ids.clear();
+        nextId = 0;
+    }
+}
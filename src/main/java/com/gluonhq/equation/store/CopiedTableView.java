@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link TableView} that holds a copy of all values, for tables that
+ * overwrite their values in place.
+ */
+class CopiedTableView<K> implements TableView<K> {
+
+    private final Map<K, byte[]> values;
+
+    CopiedTableView(Map<K, byte[]> values) {
+        this.values = values;
+    }
+
+    @Override
+    public byte[] get(K key) {
+        return values.get(key);
+    }
+
+    @Override
+    public boolean contains(K key) {
+        return values.containsKey(key);
+    }
+
+    @Override
+    public Set<K> keys() {
+        return Collections.unmodifiableSet(values.keySet());
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void close() {
+    }
+}
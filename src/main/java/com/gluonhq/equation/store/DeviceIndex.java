@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+/**
+ * Keeps the device ids of every name that has an entry in a store, so the
+ * devices of a name can be found without scanning all addresses.
+ * This class is thread-safe, lookups don't take a lock.
+ */
+public class DeviceIndex {
+
+    private final Map<String, Set<Integer>> devices = new ConcurrentHashMap<>();
+
+    public void add(SignalProtocolAddress address) {
+        devices.compute(address.getName(), (name, ids) -> {
+            Set<Integer> answer = ids == null ? new ConcurrentSkipListSet<>() : ids;
+            answer.add(address.getDeviceId());
+            return answer;
+        });
+    }
+
+    public void addAll(Collection<SignalProtocolAddress> addresses) {
+        addresses.forEach(this::add);
+    }
+
+    public void remove(SignalProtocolAddress address) {
+        devices.computeIfPresent(address.getName(), (name, ids) -> {
+            ids.remove(address.getDeviceId());
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    /**
+     * @return a live view of the device ids for this name, in ascending order
+     */
+    public Set<Integer> devices(String name) {
+        Set<Integer> ids = devices.get(name);
+        return ids == null ? Collections.emptySet() : Collections.unmodifiableSet(ids);
+    }
+
+    public void clear() {
+        devices.clear();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link StorageEngine} with one directory entry per partition: sessions,
+ * session info, sender keys, addresses, distributions and identities are kept
+ * in a {@link RecordLog}, pre-keys in a {@link SlotFile}, and the account data
+ * in a {@link FileTable}.
+ */
+public class DirectoryEngine implements StorageEngine {
+
+    private static final String[] ACCOUNT_FILES = {"credentials", "identity"};
+
+    private final Path storePath;
+    private final Journal journal;
+    private final List<Table<?>> tables = new ArrayList<>();
+    private Quarantine quarantine;
+
+    public DirectoryEngine(Path storePath) {
+        this.storePath = storePath;
+        this.journal = new Journal(storePath.resolve("journal"));
+    }
+
+    @Override
+    public synchronized void setQuarantine(Quarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    @Override
+    public synchronized <K> Table<K> table(Partition partition, KeyCodec<K> codec) throws IOException {
+        Table<K> answer;
+        switch (partition) {
+            case SESSIONS:
+                answer = log("sessionlog", partition, codec);
+                break;
+            case SENDER_KEYS:
+                answer = log("senderkeylog", partition, codec);
+                break;
+            case ADDRESSES:
+                answer = log("addresslog", partition, codec);
+                break;
+            case DISTRIBUTIONS:
+                answer = log("distributionlog", partition, codec);
+                break;
+            case IDENTITIES:
+                answer = log("identitylog", partition, codec);
+                break;
+            case SESSION_INFO:
+                answer = log("sessioninfolog", partition, codec);
+                break;
+            case PREKEYS:
+                answer = slots("prekeys.slots", codec);
+                break;
+            case SIGNED_PREKEYS:
+                answer = slots("signedprekeys.slots", codec);
+                break;
+            case ACCOUNT:
+                answer = account(codec);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown partition " + partition);
+        }
+        tables.add(answer);
+        return answer;
+    }
+
+    @Override
+    public Journal journal() {
+        return journal;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Table<?> table : tables) {
+            table.close();
+        }
+        tables.clear();
+        journal.close();
+    }
+
+    private <K> Table<K> log(String name, Partition partition, KeyCodec<K> codec) {
+        return new RecordLog<>(storePath.resolve(name), codec, partition, quarantine);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K> Table<K> slots(String name, KeyCodec<K> codec) {
+        if (codec != KeyCodec.INT) {
+            throw new IllegalArgumentException("Slot files need int keys");
+        }
+        return (Table<K>) new SlotTable(new SlotFile(storePath.resolve(name)));
+    }
+
+    /**
+     * Older versions kept the account files directly in the store directory.
+     */
+    @SuppressWarnings("unchecked")
+    private <K> Table<K> account(KeyCodec<K> codec) throws IOException {
+        if (codec != KeyCodec.STRING) {
+            throw new IllegalArgumentException("Account data needs string keys");
+        }
+        Path dir = storePath.resolve("account");
+        for (String name : ACCOUNT_FILES) {
+            Path legacy = storePath.resolve(name);
+            if (Files.isRegularFile(legacy)) {
+                Files.createDirectories(dir);
+                Files.move(legacy, dir.resolve(name));
+            }
+        }
+        return (Table<K>) new FileTable<>(dir, KeyCodec.STRING, FileTable.Layout.FLAT);
+    }
+}
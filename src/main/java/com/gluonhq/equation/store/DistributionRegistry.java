@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+/**
+ * Keeps track of the addresses that a sender key distribution was shared with.
+ * The members of every distribution are kept in memory as a BitSet over the
+ * ids of an {@link AddressTable}. Every change is persisted by appending the
+ * BitSet of the changed distribution in a {@link Table}.
+ *
+ * Changes are made in memory by {@link #mark(UUID, Collection)} and
+ * {@link #clear(Collection)}, and written with {@link #write(UUID, byte[])}.
+ * Callers hold the lock of the registry from the change until its write is
+ * queued, so the writes of a distribution are queued in the order of the
+ * changes, and an older value never replaces a newer one.
+ */
+public class DistributionRegistry implements Closeable, Syncable {
+
+    private final AddressTable addresses;
+    private final Table<UUID> log;
+    private final Map<UUID, BitSet> shared = new HashMap<>();
+
+    public DistributionRegistry(Table<UUID> log, AddressTable addresses) {
+        this.addresses = addresses;
+        this.log = log;
+    }
+
+    /**
+     * Reads all distributions. The address table must be open already.
+     */
+    public synchronized void open() throws IOException {
+        Map<UUID, byte[]> stored = new HashMap<>();
+        log.open(stored::put);
+        stored.forEach((id, b) -> shared.put(id, BitSet.valueOf(b)));
+    }
+
+    /**
+     * @return a new set with the addresses that the distribution was shared with
+     */
+    public synchronized Set<SignalProtocolAddress> get(UUID distributionId) {
+        Set<SignalProtocolAddress> answer = new HashSet<>();
+        BitSet members = shared.get(distributionId);
+        if (members != null) {
+            for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+                SignalProtocolAddress address = addresses.get(i);
+                // ids that are not in the table were never synced, and are ignored
+                if (address != null) {
+                    answer.add(address);
+                }
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Adds the addresses to the distribution.
+     *
+     * @return the encoded members of the distribution, or null if nothing changed
+     */
+    public synchronized byte[] mark(UUID distributionId, Collection<SignalProtocolAddress> members) {
+        BitSet bits = shared.computeIfAbsent(distributionId, d -> new BitSet());
+        int before = bits.cardinality();
+        for (SignalProtocolAddress address : members) {
+            bits.set(addresses.intern(address));
+        }
+        return bits.cardinality() == before ? null : bits.toByteArray();
+    }
+
+    /**
+     * Removes the addresses from all distributions.
+     *
+     * @return the encoded members of every distribution that changed
+     */
+    public synchronized Map<UUID, byte[]> clear(Collection<SignalProtocolAddress> members) {
+        BitSet removed = new BitSet();
+        for (SignalProtocolAddress address : members) {
+            int id = addresses.find(address);
+            if (id >= 0) {
+                removed.set(id);
+            }
+        }
+        Map<UUID, byte[]> answer = new HashMap<>();
+        if (removed.isEmpty()) {
+            return answer;
+        }
+        for (Map.Entry<UUID, BitSet> entry : shared.entrySet()) {
+            BitSet bits = entry.getValue();
+            if (bits.intersects(removed)) {
+                bits.andNot(removed);
+                answer.put(entry.getKey(), bits.toByteArray());
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Replaces the members of a distribution in memory, e.g. when recovering
+     * changes from a journal.
+     */
+    public synchronized void restore(UUID distributionId, byte[] members) {
+        if ((members == null) || (members.length == 0)) {
+            shared.remove(distributionId);
+        } else {
+            shared.put(distributionId, BitSet.valueOf(members));
+        }
+    }
+
+    /**
+     * Persists the members of a distribution, as returned by {@link #mark(UUID, Collection)}
+     * or {@link #clear(Collection)}. The address table is synced first, so the
+     * stored ids always refer to stored addresses.
+     */
+    public void write(UUID distributionId, byte[] members) throws IOException {
+        addresses.sync();
+        if ((members == null) || (members.length == 0)) {
+            log.remove(distributionId);
+        } else {
+            log.put(distributionId, members);
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        log.sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        log.close();
+        shared.clear();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+/**
+ * Controls when updates to the store are forced to the storage device.
+ */
+public enum Durability {
+
+    /**
+     * Updates are written in the background, and never explicitly forced.
+     * The operating system decides when they reach the disk.
+     */
+    NONE,
+
+    /**
+     * Updates are written in the background, and forced once per batch.
+     * A single fsync covers all updates that were queued while the previous
+     * batch was written.
+     */
+    BATCH,
+
+    /**
+     * Every update is forced to disk before the call that made it returns.
+     */
+    WRITE
+}
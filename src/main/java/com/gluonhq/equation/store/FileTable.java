@@ -0,0 +1,313 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@link Table} that stores every entry in its own file in a directory.
+ * String keys are used as the file name, other keys are encoded with the
+ * {@link KeyCodec} and written in hex.
+ * A file is replaced by writing a temporary file first, so it is never
+ * seen half-written.
+ *
+ * With the {@link Layout#SHARDED} layout, files are spread over two levels
+ * of directories, named after a hash of the file name, so that no directory
+ * gets too large to list or update quickly. Files that are still in the
+ * {@link Layout#FLAT} layout are moved into the shards on a background
+ * thread, and remain readable until they are moved. There is no migration
+ * back to the flat layout.
+ */
+public class FileTable<K> implements Table<K> {
+
+    public enum Layout {
+        /** All files directly in the directory. */
+        FLAT,
+        /** Files in <code>xx/yy/</code> subdirectories, with 65536 shards. */
+        SHARDED
+    }
+
+    private static final String TMP = ".tmp";
+    private static final byte[] REMOVED = new byte[0];
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path dir;
+    private final KeyCodec<K> codec;
+    private final Layout layout;
+    private final Map<K, byte[]> staged = new HashMap<>();
+    // true while a sharded table may still contain files in the flat layout
+    private volatile boolean flatFiles;
+    private volatile boolean closed;
+    private Thread migration;
+
+    public FileTable(Path dir, KeyCodec<K> codec, Layout layout) {
+        this.dir = dir;
+        this.codec = codec;
+        this.layout = layout;
+    }
+
+    @Override
+    public synchronized void open(BiConsumer<K, byte[]> consumer) throws IOException {
+        Files.createDirectories(dir);
+        closed = false;
+        if ((layout == Layout.SHARDED) && (migration == null)) {
+            flatFiles = !listFlat().isEmpty();
+            if (flatFiles) {
+                migration = new Thread(this::migrate, "wave-store-shard-" + dir.getFileName());
+                migration.setDaemon(true);
+                migration.start();
+            }
+        }
+        if (consumer != null) {
+            for (K key : keys()) {
+                consumer.accept(key, get(key));
+            }
+        }
+    }
+
+    @Override
+    public synchronized byte[] get(K key) throws IOException {
+        byte[] pending = staged.get(key);
+        if (pending != null) {
+            return pending == REMOVED ? null : pending;
+        }
+        String name = name(key);
+        byte[] answer = read(path(name));
+        if ((answer == null) && flatFiles) {
+            answer = read(dir.resolve(name));
+        }
+        return answer;
+    }
+
+    @Override
+    public synchronized boolean contains(K key) throws IOException {
+        byte[] pending = staged.get(key);
+        if (pending != null) {
+            return pending != REMOVED;
+        }
+        String name = name(key);
+        return Files.exists(path(name)) || (flatFiles && Files.exists(dir.resolve(name)));
+    }
+
+    @Override
+    public synchronized void put(K key, byte[] value) throws IOException {
+        String name = name(key);
+        Path path = path(name);
+        Files.createDirectories(path.getParent());
+        Path tmp = path.resolveSibling(name + TMP);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(value));
+            channel.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (flatFiles) {
+            Files.deleteIfExists(dir.resolve(name));
+        }
+        staged.remove(key, value);
+    }
+
+    @Override
+    public synchronized boolean remove(K key) throws IOException {
+        staged.remove(key, REMOVED);
+        String name = name(key);
+        boolean answer = Files.deleteIfExists(path(name));
+        if (flatFiles) {
+            answer |= Files.deleteIfExists(dir.resolve(name));
+        }
+        return answer;
+    }
+
+    @Override
+    public synchronized void stage(K key, byte[] value) {
+        staged.put(key, value == null ? REMOVED : value);
+    }
+
+    @Override
+    public synchronized Set<K> keys() throws IOException {
+        Set<K> answer = storedKeys();
+        for (Map.Entry<K, byte[]> entry : staged.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                answer.remove(entry.getKey());
+            } else {
+                answer.add(entry.getKey());
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Files are replaced when they are written, so the view reads all of
+     * them into memory.
+     */
+    @Override
+    public synchronized TableView<K> view() throws IOException {
+        Map<K, byte[]> values = new HashMap<>();
+        for (K key : storedKeys()) {
+            String name = name(key);
+            byte[] value = read(path(name));
+            if ((value == null) && flatFiles) {
+                value = read(dir.resolve(name));
+            }
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return new CopiedTableView<>(values);
+    }
+
+    /**
+     * Every file is forced when it is written, so there is nothing left to sync.
+     */
+    @Override
+    public void sync() {
+    }
+
+    /**
+     * @return the keys of all files, without staged changes
+     */
+    private Set<K> storedKeys() throws IOException {
+        Set<K> answer = new HashSet<>();
+        if (Files.isDirectory(dir)) {
+            // files in the flat layout are found at depth 1 as well
+            try (Stream<Path> walk = Files.walk(dir, layout == Layout.SHARDED ? 3 : 1)) {
+                List<String> names = walk.filter(Files::isRegularFile)
+                        .map(p -> p.getFileName().toString())
+                        .filter(n -> !n.endsWith(TMP))
+                        .collect(Collectors.toList());
+                for (String name : names) {
+                    answer.add(key(name));
+                }
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Stops moving files into the shards. The move continues when the table
+     * is opened again.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = migration;
+            migration = null;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Moves the files of the flat layout into their shard, one at a time,
+     * so the table stays available while a large directory is migrated.
+     */
+    private void migrate() {
+        try {
+            List<Path> files = listFlat();
+            for (Path file : files) {
+                if (closed) {
+                    return;
+                }
+                moveToShard(file);
+            }
+            flatFiles = false;
+            WAVELOG.log(Level.INFO, "[FileTable] moved " + files.size() + " files into shards in " + dir);
+        } catch (IOException ex) {
+            // files that were not moved can still be read from the flat layout
+            WAVELOG.log(Level.WARNING, "[FileTable] moving files into shards failed: " + ex);
+            ex.printStackTrace();
+        }
+    }
+
+    private synchronized void moveToShard(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        if (name.endsWith(TMP)) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Path target = path(name);
+        if (Files.exists(target)) {
+            // the entry was written again since, so the flat file is outdated
+            Files.deleteIfExists(file);
+        } else if (Files.exists(file)) {
+            Files.createDirectories(target.getParent());
+            Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private List<Path> listFlat() throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    private Path path(String name) {
+        if (layout == Layout.FLAT) {
+            return dir.resolve(name);
+        }
+        int h = name.hashCode() * 0x9E3779B9;
+        String first = new String(new char[] {HEX[(h >>> 28) & 0xf], HEX[(h >>> 24) & 0xf]});
+        String second = new String(new char[] {HEX[(h >>> 20) & 0xf], HEX[(h >>> 16) & 0xf]});
+        return dir.resolve(first).resolve(second).resolve(name);
+    }
+
+    private String name(K key) {
+        if (codec == KeyCodec.STRING) {
+            return (String) key;
+        }
+        byte[] b = codec.encode(key);
+        char[] answer = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            answer[2 * i] = HEX[(b[i] >> 4) & 0xf];
+            answer[2 * i + 1] = HEX[b[i] & 0xf];
+        }
+        return new String(answer);
+    }
+
+    @SuppressWarnings("unchecked")
+    private K key(String name) {
+        if (codec == KeyCodec.STRING) {
+            return (K) name;
+        }
+        byte[] b = new byte[name.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(name.substring(2 * i, 2 * i + 2), 16);
+        }
+        return codec.decode(b);
+    }
+
+    private static byte[] read(Path path) throws IOException {
+        try {
+            return Files.readAllBytes(path);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The {@link StorageEngine} that keeps every entry in its own file, with a
+ * {@link FileTable} per partition in the <code>tables</code> directory.
+ * The system property <code>com.gluonhq.wave.store.fileLayout</code> selects
+ * the {@link FileTable.Layout}, <code>sharded</code> by default. Tables that
+ * were written with the flat layout are migrated to the sharded layout while
+ * they are in use.
+ */
+public class FileTreeEngine implements StorageEngine {
+
+    private static final FileTable.Layout LAYOUT = FileTable.Layout.valueOf(
+            System.getProperty("com.gluonhq.wave.store.fileLayout", "sharded").toUpperCase(Locale.ROOT));
+
+    private final Path tablePath;
+    private final Journal journal;
+    private final List<Table<?>> tables = new ArrayList<>();
+
+    public FileTreeEngine(Path storePath) {
+        this.tablePath = storePath.resolve("tables");
+        this.journal = new Journal(storePath.resolve("journal"));
+    }
+
+    @Override
+    public synchronized <K> Table<K> table(Partition partition, KeyCodec<K> codec) {
+        Table<K> answer = new FileTable<>(tablePath.resolve(partition.name().toLowerCase(Locale.ROOT)), codec, LAYOUT);
+        tables.add(answer);
+        return answer;
+    }
+
+    @Override
+    public Journal journal() {
+        return journal;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Table<?> table : tables) {
+            table.close();
+        }
+        tables.clear();
+        journal.close();
+    }
+}
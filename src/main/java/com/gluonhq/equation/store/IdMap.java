@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * A map from small, dense int ids to values, e.g. the ids of an
+ * {@link AddressTable}. Values are kept in an array indexed by id, so a lookup
+ * doesn't hash, box or allocate.
+ * This class is thread-safe: lookups don't take a lock, changes do.
+ *
+ * @param <V> the type of the values
+ */
+public class IdMap<V> {
+
+    private volatile AtomicReferenceArray<V> values;
+    private int size;
+
+    public IdMap() {
+        this(64);
+    }
+
+    public IdMap(int capacity) {
+        this.values = new AtomicReferenceArray<>(Math.max(1, capacity));
+    }
+
+    /**
+     * @return the value for this id, or null if there is none
+     */
+    public V get(int id) {
+        AtomicReferenceArray<V> current = values;
+        return (id >= 0) && (id < current.length()) ? current.get(id) : null;
+    }
+
+    /**
+     * @return the previous value for this id, or null if there was none
+     */
+    public synchronized V put(int id, V value) {
+        Objects.requireNonNull(value);
+        if (id < 0) {
+            throw new IllegalArgumentException("Invalid id: " + id);
+        }
+        if (id >= values.length()) {
+            grow(id);
+        }
+        V old = values.getAndSet(id, value);
+        if (old == null) {
+            size++;
+        }
+        return old;
+    }
+
+    /**
+     * @return the value that was removed, or null if there was none
+     */
+    public synchronized V remove(int id) {
+        if ((id < 0) || (id >= values.length())) {
+            return null;
+        }
+        V old = values.getAndSet(id, null);
+        if (old != null) {
+            size--;
+        }
+        return old;
+    }
+
+    /**
+     * Removes the value for this id, only if it is the expected instance.
+     *
+     * @return true if the value was removed
+     */
+    public synchronized boolean remove(int id, V expected) {
+        if ((id < 0) || (id >= values.length()) || !values.compareAndSet(id, expected, null)) {
+            return false;
+        }
+        size--;
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Calls the action for every value with its id, in ascending order of id.
+     * Changes that are made concurrently may or may not be seen.
+     */
+    public void forEach(ObjIntConsumer<V> action) {
+        AtomicReferenceArray<V> current = values;
+        for (int id = 0; id < current.length(); id++) {
+            V value = current.get(id);
+            if (value != null) {
+                action.accept(value, id);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        values = new AtomicReferenceArray<>(values.length());
+        size = 0;
+    }
+
+    private void grow(int id) {
+        AtomicReferenceArray<V> current = values;
+        int capacity = current.length();
+        while (capacity <= id) {
+            capacity = capacity > (Integer.MAX_VALUE >> 1) ? Integer.MAX_VALUE : capacity * 2;
+        }
+        AtomicReferenceArray<V> grown = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < current.length(); i++) {
+            grown.set(i, current.get(i));
+        }
+        values = grown;
+    }
+}
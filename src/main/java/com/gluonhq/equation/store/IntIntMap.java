@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from int to int, avoiding the boxing overhead
+ * of a <code>Map&lt;Integer, Integer&gt;</code>. This class is not thread-safe.
+ */
+public class IntIntMap {
+
+    public static final int NO_VALUE = -1;
+
+    private int[] keys;
+    private int[] values;
+    private boolean[] filled;
+    private int size;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    public IntIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2) - 1) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        filled = new boolean[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the value mapped to the key, or {@link #NO_VALUE}
+     */
+    public int get(int key) {
+        int i = find(key);
+        return i < 0 ? NO_VALUE : values[i];
+    }
+
+    public boolean containsKey(int key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @return the previous value mapped to the key, or {@link #NO_VALUE}
+     */
+    public int put(int key, int value) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (filled[i]) {
+            if (keys[i] == key) {
+                int old = values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        filled[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * @return the value that was mapped to the key, or {@link #NO_VALUE}
+     */
+    public int remove(int key) {
+        int i = find(key);
+        if (i < 0) {
+            return NO_VALUE;
+        }
+        int old = values[i];
+        int mask = keys.length - 1;
+        // backward shift deletion keeps probe sequences intact without tombstones
+        int gap = i;
+        int j = (i + 1) & mask;
+        while (filled[j]) {
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+            j = (j + 1) & mask;
+        }
+        filled[gap] = false;
+        size--;
+        return old;
+    }
+
+    /**
+     * @return a new array with all keys in this map, in no particular order
+     */
+    public int[] keys() {
+        int[] answer = new int[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (filled[i]) {
+                answer[n++] = keys[i];
+            }
+        }
+        return answer;
+    }
+
+    public void clear() {
+        Arrays.fill(filled, false);
+        size = 0;
+    }
+
+    private int find(int key) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (filled[i]) {
+            if (keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldFilled = filled;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        filled = new boolean[oldKeys.length * 2];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldFilled[i]) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal. A group of changes is appended as one record, with
+ * a single write, before it is applied to the actual storage. After a crash,
+ * every complete record is replayed, so a group of changes is either applied
+ * completely or not at all. Once the storage is synced, the journal is truncated.
+ *
+ * A record is laid out as <code>int length | int crc | payload</code>.
+ */
+public class Journal implements Closeable, Syncable {
+
+    private static final int HEADER_SIZE = 8;
+
+    private final Path path;
+    private FileChannel channel;
+    private long size;
+
+    public Journal(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Opens the journal, and returns the payloads of all complete records in it.
+     * An incomplete record at the end is cut off.
+     */
+    public synchronized List<byte[]> open() throws IOException {
+        List<byte[]> answer = new ArrayList<>();
+        if (channel != null) {
+            return answer;
+        }
+        Files.createDirectories(path.getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        int end = 0;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int length = buffer.getInt();
+            int crc = buffer.getInt();
+            if ((length < 0) || (length > buffer.remaining())) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            CRC32 check = new CRC32();
+            check.update(payload);
+            if ((int) check.getValue() != crc) {
+                break;
+            }
+            answer.add(payload);
+            end = buffer.position();
+        }
+        if (end < buffer.limit()) {
+            // later records are appended after the last complete one, so they are found again
+            WAVELOG.log(Level.WARNING, "[Journal] discarding " + (buffer.limit() - end) + " bytes at the end of " + path);
+            channel.truncate(end);
+            channel.force(false);
+        }
+        size = end;
+        if (!answer.isEmpty()) {
+            WAVELOG.log(Level.INFO, "[Journal] found " + answer.size() + " records to recover in " + path);
+        }
+        return answer;
+    }
+
+    /**
+     * Appends one record with a single write.
+     */
+    public synchronized void append(byte[] payload) throws IOException {
+        if (channel == null) {
+            open();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer, size);
+        }
+    }
+
+    /**
+     * Discards all records. This must only be called once all changes in the
+     * journal are durable in the storage they apply to.
+     */
+    public synchronized void truncate() throws IOException {
+        if ((channel != null) && (size > 0)) {
+            channel.truncate(0);
+            channel.force(false);
+            size = 0;
+        }
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
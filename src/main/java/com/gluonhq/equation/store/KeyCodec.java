@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Converts keys from and to the bytes that are stored in a {@link Table}.
+ */
+public interface KeyCodec<K> {
+
+    KeyCodec<String> STRING = new KeyCodec<>() {
+        @Override
+        public byte[] encode(String key) {
+            return key.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(byte[] b) {
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    };
+
+    KeyCodec<Integer> INT = new KeyCodec<>() {
+        @Override
+        public byte[] encode(Integer key) {
+            return ByteBuffer.allocate(4).putInt(key).array();
+        }
+
+        @Override
+        public Integer decode(byte[] b) {
+            return ByteBuffer.wrap(b).getInt();
+        }
+    };
+
+    KeyCodec<UUID> UUID = new KeyCodec<>() {
+        @Override
+        public byte[] encode(java.util.UUID key) {
+            return ByteBuffer.allocate(16).putLong(key.getMostSignificantBits())
+                    .putLong(key.getLeastSignificantBits()).array();
+        }
+
+        @Override
+        public java.util.UUID decode(byte[] b) {
+            ByteBuffer buffer = ByteBuffer.wrap(b);
+            return new java.util.UUID(buffer.getLong(), buffer.getLong());
+        }
+    };
+
+    byte[] encode(K key);
+
+    K decode(byte[] b);
+}
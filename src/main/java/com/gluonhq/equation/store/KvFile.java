@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/**
+ * A key/value store in a single append-only file, shared by all partitions.
+ * An in-memory index keeps the location of the latest value of every key.
+ * When most of the file holds superseded records, the live records are
+ * copied to a new file in the background, which then atomically replaces the
+ * old one. Writes continue during the copy, and are carried over before the
+ * files are switched.
+ *
+ * A record is laid out as
+ * <pre>
+ * int crc | byte partition | byte type | int keyLength | int valueLength | key | value
+ * </pre>
+ * where the crc covers everything that follows it. A torn record at the end
+ * of the file is discarded when it is opened.
+ *
+ * A {@link View} keeps a copy of the index of a partition, and reads from the
+ * same file: records are never overwritten, so later writes don't change what
+ * it sees. Compaction is postponed while a view is open.
+ */
+public class KvFile implements Closeable, Syncable {
+
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 4 + 4;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final long COMPACTION_THRESHOLD = Long.getLong("com.gluonhq.wave.store.kvCompaction", 1024 * 1024);
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "wave-store-kv-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path path;
+    private final Map<Partition, Map<ByteBuffer, Location>> index = new EnumMap<>(Partition.class);
+    private FileChannel channel;
+    private long size;
+    private long live;
+    private boolean dirty;
+    private int views;
+    private boolean compacting;
+
+    public KvFile(Path path) {
+        this.path = path;
+    }
+
+    public synchronized void open() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        Files.createDirectories(path.getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long position = 0;
+        long end = channel.size();
+        while (position + HEADER_SIZE <= end) {
+            header.clear();
+            readFully(channel, header, position);
+            header.flip();
+            int crc = header.getInt();
+            byte partitionId = header.get();
+            byte type = header.get();
+            int klen = header.getInt();
+            int vlen = header.getInt();
+            if ((klen < 0) || (vlen < 0) || (position + HEADER_SIZE + klen + vlen > end)) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(klen + vlen);
+            readFully(channel, body, position + HEADER_SIZE);
+            CRC32 check = new CRC32();
+            check.update(header.array(), 4, HEADER_SIZE - 4);
+            check.update(body.array());
+            if ((int) check.getValue() != crc) {
+                break;
+            }
+            // a copy, so the index doesn't keep the value alive
+            ByteBuffer key = ByteBuffer.wrap(Arrays.copyOf(body.array(), klen));
+            Map<ByteBuffer, Location> map = map(Partition.fromId(partitionId));
+            Location old = type == DELETE
+                    ? map.remove(key)
+                    : map.put(key, new Location(position, klen, vlen));
+            if (old != null) {
+                live -= old.length();
+            }
+            if (type != DELETE) {
+                live += HEADER_SIZE + klen + vlen;
+            }
+            position += HEADER_SIZE + klen + vlen;
+        }
+        if (position < end) {
+            WAVELOG.log(Level.WARNING, "[KvFile] discarding " + (end - position) + " bytes at the end of " + path);
+            channel.truncate(position);
+        }
+        size = position;
+    }
+
+    public synchronized byte[] get(Partition partition, byte[] key) throws IOException {
+        open();
+        Location location = map(partition).get(ByteBuffer.wrap(key));
+        if (location == null) {
+            return null;
+        }
+        return readValue(channel, location);
+    }
+
+    public synchronized boolean contains(Partition partition, byte[] key) throws IOException {
+        open();
+        return map(partition).containsKey(ByteBuffer.wrap(key));
+    }
+
+    /**
+     * @return a new list with all keys in the partition
+     */
+    public synchronized List<byte[]> keys(Partition partition) throws IOException {
+        open();
+        List<byte[]> answer = new ArrayList<>();
+        for (ByteBuffer key : map(partition).keySet()) {
+            byte[] b = new byte[key.remaining()];
+            key.duplicate().get(b);
+            answer.add(b);
+        }
+        return answer;
+    }
+
+    public synchronized void put(Partition partition, byte[] key, byte[] value) throws IOException {
+        open();
+        long position = append(partition, PUT, key, value);
+        Location old = map(partition).put(ByteBuffer.wrap(key.clone()), new Location(position, key.length, value.length));
+        if (old != null) {
+            live -= old.length();
+        }
+        live += HEADER_SIZE + key.length + value.length;
+        compactIfNeeded();
+    }
+
+    public synchronized boolean remove(Partition partition, byte[] key) throws IOException {
+        open();
+        Location old = map(partition).remove(ByteBuffer.wrap(key));
+        if (old == null) {
+            return false;
+        }
+        live -= old.length();
+        append(partition, DELETE, key, new byte[0]);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Creates a view of the partition as it is now. The view must be closed
+     * before this file is.
+     */
+    public synchronized View view(Partition partition) throws IOException {
+        open();
+        views++;
+        return new View(channel, new HashMap<>(map(partition)));
+    }
+
+    /**
+     * Forces the file to the storage device, if it was written since the last sync.
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        if ((channel != null) && dirty) {
+            channel.force(false);
+            dirty = false;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        channel.force(false);
+        channel.close();
+        channel = null;
+        index.clear();
+        size = 0;
+        live = 0;
+    }
+
+    private Map<ByteBuffer, Location> map(Partition partition) {
+        return index.computeIfAbsent(partition, p -> new HashMap<>());
+    }
+
+    private long append(Partition partition, byte type, byte[] key, byte[] value) throws IOException {
+        long position = size;
+        write(channel, position, partition, type, key, value);
+        size += HEADER_SIZE + key.length + value.length;
+        dirty = true;
+        return position;
+    }
+
+    private static void write(FileChannel target, long position, Partition partition, byte type,
+            byte[] key, byte[] value) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + value.length);
+        record.putInt(0).put(partition.getId()).put(type)
+                .putInt(key.length).putInt(value.length).put(key).put(value);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining()) {
+            position += target.write(record, position);
+        }
+    }
+
+    private static byte[] readValue(FileChannel source, Location location) throws IOException {
+        ByteBuffer answer = ByteBuffer.allocate(location.valueLength);
+        readFully(source, answer, location.position + HEADER_SIZE + location.keyLength);
+        return answer.array();
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = source.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            position += n;
+        }
+    }
+
+    private void compactIfNeeded() {
+        if ((size < COMPACTION_THRESHOLD) || (live * 2 > size) || (views > 0) || compacting) {
+            return;
+        }
+        compacting = true;
+        COMPACTOR.submit(() -> {
+            try {
+                compact();
+            } catch (IOException ex) {
+                WAVELOG.log(Level.WARNING, "[KvFile] compaction of " + path + " failed: " + ex);
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the live records to a new file without holding the lock, as
+     * records are never overwritten. Only the records that were appended
+     * meanwhile are copied while holding the lock, after which the new file
+     * replaces the old one.
+     */
+    private void compact() throws IOException {
+        FileChannel source;
+        long end;
+        Map<Partition, Map<ByteBuffer, Location>> copy = new EnumMap<>(Partition.class);
+        synchronized (this) {
+            if ((channel == null) || (views > 0)) {
+                return;
+            }
+            source = channel;
+            end = size;
+            index.forEach((partition, map) -> copy.put(partition, new HashMap<>(map)));
+        }
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Map<Partition, Map<ByteBuffer, Location>> compacted = new EnumMap<>(Partition.class);
+        long position = 0;
+        boolean replaced = false;
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<Partition, Map<ByteBuffer, Location>> entry : copy.entrySet()) {
+                Map<ByteBuffer, Location> map = new HashMap<>();
+                for (Map.Entry<ByteBuffer, Location> e : entry.getValue().entrySet()) {
+                    Location location = e.getValue();
+                    byte[] key = new byte[location.keyLength];
+                    e.getKey().duplicate().get(key);
+                    write(out, position, entry.getKey(), PUT, key, readValue(source, location));
+                    map.put(e.getKey(), new Location(position, location.keyLength, location.valueLength));
+                    position += location.length();
+                }
+                compacted.put(entry.getKey(), map);
+            }
+            synchronized (this) {
+                if ((channel != source) || (views > 0)) {
+                    // closed, or a view that reads the old file was created meanwhile
+                    return;
+                }
+                ByteBuffer tail = ByteBuffer.allocate((int) (size - end));
+                readFully(channel, tail, end);
+                tail.flip();
+                long tailStart = position;
+                while (tail.hasRemaining()) {
+                    position += out.write(tail, position);
+                }
+                out.force(true);
+                // entries before the end are unchanged since the copy started
+                long newLive = 0;
+                for (Map.Entry<Partition, Map<ByteBuffer, Location>> entry : index.entrySet()) {
+                    Map<ByteBuffer, Location> map = compacted.computeIfAbsent(entry.getKey(), p -> new HashMap<>());
+                    map.keySet().retainAll(entry.getValue().keySet());
+                    for (Map.Entry<ByteBuffer, Location> e : entry.getValue().entrySet()) {
+                        Location location = e.getValue();
+                        if (location.position >= end) {
+                            map.put(e.getKey(), new Location(location.position - end + tailStart,
+                                    location.keyLength, location.valueLength));
+                        }
+                        newLive += location.length();
+                    }
+                }
+                channel.close();
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                replaced = true;
+                channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                WAVELOG.log(Level.DEBUG, "[KvFile] compacted " + path + " from " + size + " to " + position + " bytes");
+                index.clear();
+                index.putAll(compacted);
+                size = position;
+                live = newLive;
+                dirty = false;
+            }
+        } finally {
+            if (!replaced) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * A read-only view of one partition at the moment it was created.
+     */
+    public class View implements Closeable {
+
+        private final FileChannel source;
+        private final Map<ByteBuffer, Location> locations;
+        private boolean closed;
+
+        View(FileChannel source, Map<ByteBuffer, Location> locations) {
+            this.source = source;
+            this.locations = locations;
+        }
+
+        public byte[] get(byte[] key) throws IOException {
+            Location location = locations.get(ByteBuffer.wrap(key));
+            if (location == null) {
+                return null;
+            }
+            // positional reads don't need the lock of the file
+            return readValue(source, location);
+        }
+
+        public boolean contains(byte[] key) {
+            return locations.containsKey(ByteBuffer.wrap(key));
+        }
+
+        /**
+         * @return a new list with all keys in the view
+         */
+        public List<byte[]> keys() {
+            List<byte[]> answer = new ArrayList<>(locations.size());
+            for (ByteBuffer key : locations.keySet()) {
+                byte[] b = new byte[key.remaining()];
+                key.duplicate().get(b);
+                answer.add(b);
+            }
+            return answer;
+        }
+
+        @Override
+        public void close() {
+            synchronized (KvFile.this) {
+                if (!closed) {
+                    closed = true;
+                    views--;
+                }
+            }
+        }
+    }
+
+    private static class Location {
+
+        final long position;
+        final int keyLength;
+        final int valueLength;
+
+        Location(long position, int keyLength, int valueLength) {
+            this.position = position;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        long length() {
+            return HEADER_SIZE + keyLength + valueLength;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache that evicts the least recently used entries once the total weight
+ * of its entries exceeds a budget. The weight of an entry is provided when it
+ * is added, typically its approximate size in bytes.
+ * Entries are keyed by a dense int id, e.g. of an {@link AddressTable}, and
+ * kept in an {@link IdMap}.
+ * Lookups don't take a lock: they only record the time of access. Eviction
+ * happens in batches, down to 90% of the budget, so its cost is amortized.
+ */
+public class LruCache<V> {
+
+    private final IdMap<Entry<V>> entries = new IdMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong weight = new AtomicLong();
+    private volatile long budget;
+
+    /**
+     * @param budget the maximum total weight of the entries, or 0 for no limit
+     */
+    public LruCache(long budget) {
+        this.budget = budget <= 0 ? Long.MAX_VALUE : budget;
+    }
+
+    /**
+     * Changes the budget, evicting entries if they exceed the new budget.
+     *
+     * @param budget the maximum total weight of the entries, or 0 for no limit
+     */
+    public void setBudget(long budget) {
+        this.budget = budget <= 0 ? Long.MAX_VALUE : budget;
+        if (weight.get() > this.budget) {
+            evict();
+        }
+    }
+
+    public V get(int id) {
+        Entry<V> entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        entry.used = clock.incrementAndGet();
+        return entry.value;
+    }
+
+    public void put(int id, V value, int valueWeight) {
+        Entry<V> entry = new Entry<>(id, value, valueWeight, clock.incrementAndGet());
+        Entry<V> old = entries.put(id, entry);
+        long total = weight.addAndGet(old == null ? valueWeight : valueWeight - old.weight);
+        if (total > budget) {
+            evict();
+        }
+    }
+
+    public V remove(int id) {
+        Entry<V> old = entries.remove(id);
+        if (old == null) {
+            return null;
+        }
+        weight.addAndGet(-old.weight);
+        return old.value;
+    }
+
+    public void clear() {
+        entries.forEach((entry, id) -> remove(id));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total weight of all entries
+     */
+    public long weight() {
+        return weight.get();
+    }
+
+    private synchronized void evict() {
+        if (weight.get() <= budget) {
+            return;
+        }
+        List<Entry<V>> candidates = new ArrayList<>(entries.size());
+        entries.forEach((entry, id) -> candidates.add(entry));
+        candidates.sort(Comparator.comparingLong(e -> e.used));
+        long target = budget - budget / 10;
+        // the most recently used entry is never evicted
+        for (int i = 0; (i < candidates.size() - 1) && (weight.get() > target); i++) {
+            Entry<V> candidate = candidates.get(i);
+            if (entries.remove(candidate.id, candidate)) {
+                weight.addAndGet(-candidate.weight);
+            }
+        }
+    }
+
+    private static class Entry<V> {
+
+        final V value;
+        final int weight;
+        final int id;
+        volatile long used;
+
+        Entry(int id, V value, int weight, long used) {
+            this.id = id;
+            this.value = value;
+            this.weight = weight;
+            this.used = used;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+/**
+ * A {@link StorageEngine} that keeps everything in memory. All data is lost
+ * when the process ends.
+ */
+public class MemoryEngine implements StorageEngine {
+
+    @Override
+    public <K> Table<K> table(Partition partition, KeyCodec<K> codec) {
+        return new MemoryTable<>();
+    }
+
+    @Override
+    public Journal journal() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link Table} that only exists in memory.
+ */
+public class MemoryTable<K> implements Table<K> {
+
+    private static final byte[] REMOVED = new byte[0];
+
+    private final Map<K, byte[]> data = new HashMap<>();
+    private final Map<K, byte[]> staged = new HashMap<>();
+
+    @Override
+    public synchronized void open(BiConsumer<K, byte[]> consumer) {
+        if (consumer != null) {
+            data.forEach(consumer);
+        }
+    }
+
+    @Override
+    public synchronized byte[] get(K key) {
+        byte[] pending = staged.get(key);
+        if (pending != null) {
+            return pending == REMOVED ? null : pending;
+        }
+        return data.get(key);
+    }
+
+    @Override
+    public synchronized boolean contains(K key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public synchronized void put(K key, byte[] value) {
+        data.put(key, value);
+        staged.remove(key, value);
+    }
+
+    @Override
+    public synchronized boolean remove(K key) {
+        staged.remove(key, REMOVED);
+        return data.remove(key) != null;
+    }
+
+    @Override
+    public synchronized void stage(K key, byte[] value) {
+        staged.put(key, value == null ? REMOVED : value);
+    }
+
+    @Override
+    public synchronized Set<K> keys() {
+        Set<K> answer = new HashSet<>(data.keySet());
+        for (Map.Entry<K, byte[]> entry : staged.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                answer.remove(entry.getKey());
+            } else {
+                answer.add(entry.getKey());
+            }
+        }
+        return answer;
+    }
+
+    @Override
+    public synchronized TableView<K> view() {
+        return new CopiedTableView<>(new HashMap<>(data));
+    }
+
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
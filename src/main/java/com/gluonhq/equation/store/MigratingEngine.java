@@ -0,0 +1,514 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A {@link StorageEngine} that moves the data of one engine to another while
+ * the store is in use. Every write goes to both engines, and reads are served
+ * by the source engine, which stays complete and up to date. Entries that are
+ * not written meanwhile are copied by a background thread, once the store is
+ * loaded, at a limited rate: <code>com.gluonhq.wave.store.migrationRate</code>
+ * bytes per second, 1 MiB by default. Afterwards, entries that only the
+ * target has, e.g. because a removal didn't reach it, are removed from it.
+ *
+ * The engine that holds the data is recorded in <code>engine.properties</code>
+ * in the store directory, and a migration in progress in
+ * <code>migration.properties</code>. A migration continues where it stopped
+ * when the store is opened again. Once everything is copied, the target
+ * becomes the engine of the store when this engine is closed; the data of
+ * the source engine is left in place.
+ *
+ * Selecting the source engine again before the migration is complete rolls
+ * it back: the data of the target is deleted. After completion, going back is
+ * a migration in the other direction.
+ */
+public class MigratingEngine implements StorageEngine {
+
+    private static final String ENGINE_FILE = "engine.properties";
+    private static final String MIGRATION_FILE = "migration.properties";
+    private static final long RATE = Long.getLong("com.gluonhq.wave.store.migrationRate", 1024 * 1024);
+
+    private final StorageEngine source;
+    private final StorageEngine target;
+    private final Path storePath;
+    private final Location location;
+    private final List<MigratingTable<?>> tables = new ArrayList<>();
+    private Thread copier;
+    private volatile boolean closed;
+    private volatile boolean complete;
+
+    MigratingEngine(StorageEngine source, StorageEngine target, Path storePath, Location location) {
+        this.source = source;
+        this.target = target;
+        this.storePath = storePath;
+        this.location = location;
+    }
+
+    /**
+     * Creates the engine with the given name, and starts a migration if the
+     * data of the store is kept by another engine. A store that doesn't
+     * record its engine yet, but has the layout of the <code>directory</code>
+     * engine or of the older versions of the store, is kept by the
+     * <code>directory</code> engine; an empty store by the given engine.
+     * The <code>memory</code> engine is never migrated.
+     */
+    static StorageEngine select(String name, Path storePath) {
+        if ("memory".equals(name)) {
+            return StorageEngine.create(name, storePath);
+        }
+        try {
+            Files.createDirectories(storePath);
+            Location current = Location.read(storePath.resolve(ENGINE_FILE));
+            Location pending = Location.read(storePath.resolve(MIGRATION_FILE));
+            if (current == null) {
+                current = new Location(hasDirectoryLayout(storePath) ? "directory" : name, ".");
+                current.write(storePath.resolve(ENGINE_FILE));
+            }
+            if (current.engine.equals(name)) {
+                if (pending != null) {
+                    rollback(storePath, current, pending);
+                }
+                return StorageEngine.create(name, current.resolve(storePath));
+            }
+            Location next = new Location(name, "engine-" + name);
+            if ((pending == null) || !pending.equals(next)) {
+                // anything left in the target directory is from an earlier migration
+                if (pending != null) {
+                    rollback(storePath, current, pending);
+                }
+                deleteDirectory(next.resolve(storePath));
+                next.write(storePath.resolve(MIGRATION_FILE));
+                WAVELOG.log(Level.INFO, "[MigratingEngine] migrating " + storePath + " from "
+                        + current.engine + " to " + name);
+            } else {
+                WAVELOG.log(Level.INFO, "[MigratingEngine] continuing the migration of " + storePath
+                        + " from " + current.engine + " to " + name);
+            }
+            return new MigratingEngine(StorageEngine.create(current.engine, current.resolve(storePath)),
+                    StorageEngine.create(name, next.resolve(storePath)), storePath, next);
+        } catch (IOException ex) {
+            // opening another engine than the one with the data would look like an empty store
+            WAVELOG.log(Level.WARNING, "[MigratingEngine] can't select the engine of " + storePath + ": " + ex);
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * @return true if the store has files that the <code>directory</code>
+     * engine, or an older version of the store, wrote
+     */
+    private static boolean hasDirectoryLayout(Path storePath) throws IOException {
+        if (Files.exists(storePath.resolve("account")) || Files.exists(storePath.resolve("credentials"))
+                || Files.isDirectory(storePath.resolve("sessions"))) {
+            return true;
+        }
+        try (Stream<Path> list = Files.list(storePath)) {
+            return list.anyMatch(path -> Files.isDirectory(path) && path.getFileName().toString().endsWith("log"));
+        }
+    }
+
+    private static void rollback(Path storePath, Location current, Location pending) throws IOException {
+        // a migration that completed, but was not cleaned up, has the same location
+        if (!pending.path.equals(current.path)) {
+            deleteDirectory(pending.resolve(storePath));
+            WAVELOG.log(Level.INFO, "[MigratingEngine] rolled back the migration of " + storePath
+                    + " to " + pending.engine);
+        }
+        Files.deleteIfExists(storePath.resolve(MIGRATION_FILE));
+    }
+
+    @Override
+    public synchronized <K> Table<K> table(Partition partition, KeyCodec<K> codec) throws IOException {
+        MigratingTable<K> answer = new MigratingTable<>(source.table(partition, codec), target.table(partition, codec));
+        tables.add(answer);
+        return answer;
+    }
+
+    @Override
+    public void setQuarantine(Quarantine quarantine) {
+        source.setQuarantine(quarantine);
+        target.setQuarantine(quarantine);
+    }
+
+    /**
+     * The journal of the source, which holds the transactions until the
+     * migration is complete.
+     */
+    @Override
+    public Journal journal() {
+        return source.journal();
+    }
+
+    /**
+     * Starts copying the entries that were not written yet.
+     */
+    @Override
+    public synchronized void loaded() {
+        if ((copier == null) && !closed) {
+            copier = new Thread(this::copy, "wave-store-migration");
+            copier.setDaemon(true);
+            copier.setPriority(Thread.MIN_PRIORITY);
+            copier.start();
+        }
+    }
+
+    /**
+     * @return true if all entries are in the target engine
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Stops the copy, and closes both engines. If the migration is complete,
+     * the target is recorded as the engine of the store. Pending writes must
+     * be done, so the journal of the source is no longer needed.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            closed = true;
+            thread = copier;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            target.close();
+        } finally {
+            source.close();
+        }
+        if (complete) {
+            // the snapshot describes the tables of the source
+            Files.deleteIfExists(storePath.resolve(SnapshotFile.NAME));
+            location.write(storePath.resolve(ENGINE_FILE));
+            Files.deleteIfExists(storePath.resolve(MIGRATION_FILE));
+            WAVELOG.log(Level.INFO, "[MigratingEngine] " + storePath + " now uses " + location.engine);
+        }
+    }
+
+    private void copy() {
+        long start = System.nanoTime();
+        long bytes = 0;
+        long entries = 0;
+        try {
+            List<MigratingTable<?>> copy;
+            synchronized (this) {
+                copy = new ArrayList<>(tables);
+            }
+            for (MigratingTable<?> table : copy) {
+                for (Object key : table.sourceKeys()) {
+                    if (closed) {
+                        return;
+                    }
+                    int size = table.copy(key);
+                    if (size > 0) {
+                        bytes += size;
+                        entries++;
+                        // sleep until the average rate is below the limit
+                        long due = bytes * 1_000_000_000L / Math.max(1, RATE);
+                        long ahead = due - (System.nanoTime() - start);
+                        if (ahead > 1_000_000) {
+                            Thread.sleep(ahead / 1_000_000);
+                        }
+                    }
+                }
+            }
+            for (MigratingTable<?> table : copy) {
+                for (Object key : table.targetKeys()) {
+                    if (closed) {
+                        return;
+                    }
+                    table.removeStale(key);
+                }
+                table.syncTarget();
+            }
+            if (copy.stream().anyMatch(MigratingTable::isDiverged)) {
+                // the copy starts again when the store is opened again
+                WAVELOG.log(Level.WARNING, "[MigratingEngine] writes to " + location.engine + " failed");
+                return;
+            }
+            complete = true;
+            WAVELOG.log(Level.INFO, "[MigratingEngine] copied " + entries + " entries (" + bytes
+                    + " bytes) to " + location.engine + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException ex) {
+            // the copy starts again when the store is opened again
+            WAVELOG.log(Level.WARNING, "[MigratingEngine] migration to " + location.engine + " failed: " + ex);
+            ex.printStackTrace();
+        }
+    }
+
+    private static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * A table that is written to both engines, and read from the source.
+     * Changes are written to the source first, so the source holds every
+     * change that reached the target. Changes and copies are made while
+     * holding the lock of the table, so a copy never overwrites a newer value
+     * in the target.
+     */
+    private static class MigratingTable<K> implements Table<K>, Snapshottable {
+
+        private final Table<K> source;
+        private final Table<K> target;
+        private boolean opened;
+        // a change that only reached the source must be copied again
+        private volatile boolean diverged;
+
+        MigratingTable(Table<K> source, Table<K> target) {
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        public synchronized void open(BiConsumer<K, byte[]> consumer) throws IOException {
+            if (opened) {
+                if (consumer != null) {
+                    for (K key : source.keys()) {
+                        consumer.accept(key, source.get(key));
+                    }
+                }
+                return;
+            }
+            target.open(null);
+            source.open(consumer);
+            opened = true;
+        }
+
+        @Override
+        public byte[] get(K key) throws IOException {
+            return source.get(key);
+        }
+
+        @Override
+        public boolean contains(K key) throws IOException {
+            return source.contains(key);
+        }
+
+        @Override
+        public synchronized void put(K key, byte[] value) throws IOException {
+            source.put(key, value);
+            toTarget(() -> target.put(key, value));
+        }
+
+        @Override
+        public synchronized void putAll(Map<K, byte[]> values) throws IOException {
+            source.putAll(values);
+            toTarget(() -> target.putAll(values));
+        }
+
+        @Override
+        public synchronized boolean remove(K key) throws IOException {
+            boolean answer = source.remove(key);
+            toTarget(() -> target.remove(key));
+            return answer;
+        }
+
+        @Override
+        public synchronized void stage(K key, byte[] value) {
+            source.stage(key, value);
+            target.stage(key, value);
+        }
+
+        @Override
+        public Set<K> keys() throws IOException {
+            return source.keys();
+        }
+
+        @Override
+        public TableView<K> view() throws IOException {
+            return source.view();
+        }
+
+        @Override
+        public void sync() throws IOException {
+            target.sync();
+            source.sync();
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+
+        private void toTarget(WriteBehind.Action write) throws IOException {
+            try {
+                write.run();
+            } catch (IOException | RuntimeException ex) {
+                diverged = true;
+                throw ex;
+            }
+        }
+
+        boolean isDiverged() {
+            return diverged;
+        }
+
+        synchronized Set<K> sourceKeys() throws IOException {
+            open(null);
+            return source.keys();
+        }
+
+        /**
+         * Copies the entry to the target, unless the target has the same
+         * value already. A value that differs, e.g. because a write to the
+         * source failed after the target was written, is replaced.
+         *
+         * @return the number of bytes that were copied
+         */
+        @SuppressWarnings("unchecked")
+        synchronized int copy(Object key) throws IOException {
+            K k = (K) key;
+            byte[] value = source.get(k);
+            byte[] existing = target.get(k);
+            if (Arrays.equals(value, existing)) {
+                return 0;
+            }
+            if (value == null) {
+                target.remove(k);
+                return 0;
+            }
+            target.put(k, value);
+            return value.length;
+        }
+
+        synchronized Set<K> targetKeys() throws IOException {
+            open(null);
+            return target.keys();
+        }
+
+        /**
+         * Removes the entry from the target if the source doesn't have it,
+         * e.g. because a removal only reached the source.
+         */
+        @SuppressWarnings("unchecked")
+        synchronized void removeStale(Object key) throws IOException {
+            K k = (K) key;
+            if (!source.contains(k)) {
+                target.remove(k);
+            }
+        }
+
+        void syncTarget() throws IOException {
+            target.sync();
+        }
+
+        @Override
+        public boolean writeSnapshot(DataOutputStream out) throws IOException {
+            return (source instanceof Snapshottable) && ((Snapshottable) source).writeSnapshot(out);
+        }
+
+        @Override
+        public void offerSnapshot(byte[] snapshot) {
+            if (source instanceof Snapshottable) {
+                ((Snapshottable) source).offerSnapshot(snapshot);
+            }
+        }
+    }
+
+    /**
+     * An engine, and the directory of its data relative to the store directory.
+     */
+    static class Location {
+
+        final String engine;
+        final String path;
+
+        Location(String engine, String path) {
+            this.engine = engine;
+            this.path = path;
+        }
+
+        Path resolve(Path storePath) {
+            return storePath.resolve(path).normalize();
+        }
+
+        static Location read(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            }
+            String engine = properties.getProperty("engine");
+            if (engine == null) {
+                throw new IOException("No engine in " + file);
+            }
+            return new Location(engine, properties.getProperty("path", "."));
+        }
+
+        void write(Path file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("engine", engine);
+            properties.setProperty("path", path);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            properties.store(out, null);
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(out.toByteArray()));
+                channel.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Location)) {
+                return false;
+            }
+            Location other = (Location) obj;
+            return engine.equals(other.engine) && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * engine.hashCode() + path.hashCode();
+        }
+    }
+}
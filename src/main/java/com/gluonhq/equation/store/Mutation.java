@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A single change to one entry in a partition of the store.
+ * A mutation with a null value deletes the entry.
+ */
+public final class Mutation {
+
+    private final Partition partition;
+    private final byte[] key;
+    private final byte[] value;
+
+    public Mutation(Partition partition, byte[] key, byte[] value) {
+        this.partition = Objects.requireNonNull(partition);
+        this.key = Objects.requireNonNull(key);
+        this.value = value;
+    }
+
+    public static Mutation put(Partition partition, byte[] key, byte[] value) {
+        return new Mutation(partition, key, Objects.requireNonNull(value));
+    }
+
+    public static Mutation delete(Partition partition, byte[] key) {
+        return new Mutation(partition, key, null);
+    }
+
+    public Partition getPartition() {
+        return partition;
+    }
+
+    public byte[] getKey() {
+        return key;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public boolean isDelete() {
+        return value == null;
+    }
+
+    /**
+     * Returns an object that is equal for all mutations of the same entry.
+     */
+    public Object target() {
+        return new Target(partition, ByteBuffer.wrap(key));
+    }
+
+    /**
+     * Encodes the mutations as
+     * <pre>
+     * int count | (byte partition | int keyLength | key | int valueLength | value)*
+     * </pre>
+     * with a valueLength of -1 for deletions.
+     */
+    public static byte[] encode(Collection<Mutation> mutations) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(mutations.size());
+            for (Mutation m : mutations) {
+                dos.writeByte(m.partition.getId());
+                dos.writeInt(m.key.length);
+                dos.write(m.key);
+                if (m.value == null) {
+                    dos.writeInt(-1);
+                } else {
+                    dos.writeInt(m.value.length);
+                    dos.write(m.value);
+                }
+            }
+            dos.flush();
+            return baos.toByteArray();
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    public static List<Mutation> decode(byte[] b) {
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        int count = buffer.getInt();
+        List<Mutation> answer = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Partition partition = Partition.fromId(buffer.get());
+            byte[] key = new byte[buffer.getInt()];
+            buffer.get(key);
+            int valueLength = buffer.getInt();
+            byte[] value = null;
+            if (valueLength >= 0) {
+                value = new byte[valueLength];
+                buffer.get(value);
+            }
+            answer.add(new Mutation(partition, key, value));
+        }
+        return answer;
+    }
+
+    private static class Target {
+
+        final Partition partition;
+        final ByteBuffer key;
+
+        Target(Partition partition, ByteBuffer key) {
+            this.partition = partition;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * partition.hashCode() + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Target)) {
+                return false;
+            }
+            Target other = (Target) obj;
+            return (partition == other.partition) && key.equals(other.key);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps byte arrays outside of the Java heap, in direct buffers, so that the
+ * garbage collector doesn't have to trace them. Space is handed out in slots
+ * of power-of-two size classes, carved from chunks of a fixed size. A freed
+ * slot is reused for the next value of the same size class. Values that don't
+ * fit in a chunk get a buffer of their own, which is dropped when freed; its
+ * index in the list of chunks is reused for the next chunk.
+ *
+ * A value is identified by a handle, <code>chunk &lt;&lt; 32 | offset</code>.
+ * Every slot starts with the int length of its value.
+ * This class is thread-safe. Allocating and freeing take the lock of the
+ * arena, reading a value doesn't: callers must make sure that a slot is not
+ * freed while it is read.
+ */
+public class OffHeapArena {
+
+    private static final int MIN_CLASS = 6; // 64 bytes
+    private static final int CHUNK_SIZE = Integer.highestOneBit(
+            Math.max(1 << 16, Integer.getInteger("com.gluonhq.wave.store.arenaChunk", 1 << 20)));
+    private static final int CLASSES = Integer.numberOfTrailingZeros(CHUNK_SIZE) - MIN_CLASS + 1;
+
+    // replaced when it grows, so that readers without the lock see a consistent array
+    private volatile ByteBuffer[] chunks = new ByteBuffer[16];
+    private int chunkCount;
+    // indexes of chunks that were dropped
+    private int[] freeChunks = new int[16];
+    private int freeChunkCount;
+    private final long[][] free = new long[CLASSES][];
+    private final int[] freeCount = new int[CLASSES];
+    private int current = -1;
+    private int top = CHUNK_SIZE;
+    private long allocated;
+
+    /**
+     * Copies the value into the arena.
+     *
+     * @return the handle of the value
+     */
+    public synchronized long allocate(byte[] value) {
+        int size = value.length + 4;
+        long handle;
+        if (size > CHUNK_SIZE) {
+            handle = (long) addChunk(ByteBuffer.allocateDirect(size)) << 32;
+        } else {
+            int sizeClass = sizeClass(size);
+            if (freeCount[sizeClass] > 0) {
+                handle = free[sizeClass][--freeCount[sizeClass]];
+            } else {
+                int slotSize = 1 << (sizeClass + MIN_CLASS);
+                if (top + slotSize > CHUNK_SIZE) {
+                    current = addChunk(ByteBuffer.allocateDirect(CHUNK_SIZE));
+                    top = 0;
+                }
+                handle = ((long) current << 32) | top;
+                top += slotSize;
+            }
+        }
+        ByteBuffer chunk = chunks[chunk(handle)];
+        int offset = offset(handle);
+        chunk.putInt(offset, value.length);
+        chunk.duplicate().position(offset + 4).put(value);
+        allocated += value.length;
+        return handle;
+    }
+
+    /**
+     * @return a copy of the value with this handle
+     */
+    public byte[] get(long handle) {
+        ByteBuffer chunk = chunks[chunk(handle)];
+        int offset = offset(handle);
+        byte[] answer = new byte[chunk.getInt(offset)];
+        chunk.duplicate().position(offset + 4).get(answer);
+        return answer;
+    }
+
+    /**
+     * Releases the slot of the value with this handle. The handle must not be used afterwards.
+     */
+    public synchronized void free(long handle) {
+        int index = chunk(handle);
+        ByteBuffer chunk = chunks[index];
+        int length = chunk.getInt(offset(handle));
+        allocated -= length;
+        if (length + 4 > CHUNK_SIZE) {
+            chunks[index] = null;
+            if (freeChunkCount == freeChunks.length) {
+                freeChunks = Arrays.copyOf(freeChunks, freeChunkCount * 2);
+            }
+            freeChunks[freeChunkCount++] = index;
+            return;
+        }
+        int sizeClass = sizeClass(length + 4);
+        if (free[sizeClass] == null) {
+            free[sizeClass] = new long[16];
+        } else if (freeCount[sizeClass] == free[sizeClass].length) {
+            free[sizeClass] = Arrays.copyOf(free[sizeClass], freeCount[sizeClass] * 2);
+        }
+        free[sizeClass][freeCount[sizeClass]++] = handle;
+    }
+
+    /**
+     * @return the total length of the values in the arena
+     */
+    public synchronized long allocated() {
+        return allocated;
+    }
+
+    /**
+     * @return the number of bytes that the arena reserved outside of the heap
+     */
+    public synchronized long reserved() {
+        long answer = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            ByteBuffer chunk = chunks[i];
+            if (chunk != null) {
+                answer += chunk.capacity();
+            }
+        }
+        return answer;
+    }
+
+    /**
+     * Releases all values. The direct buffers are freed once they are collected.
+     */
+    public synchronized void clear() {
+        chunks = new ByteBuffer[16];
+        chunkCount = 0;
+        freeChunkCount = 0;
+        Arrays.fill(freeCount, 0);
+        current = -1;
+        top = CHUNK_SIZE;
+        allocated = 0;
+    }
+
+    private int addChunk(ByteBuffer chunk) {
+        if (freeChunkCount > 0) {
+            int index = freeChunks[--freeChunkCount];
+            chunks[index] = chunk;
+            return index;
+        }
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+        }
+        chunks[chunkCount] = chunk;
+        return chunkCount++;
+    }
+
+    private static int sizeClass(int size) {
+        int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.max(0, bits - MIN_CLASS);
+    }
+
+    private static int chunk(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static int offset(long handle) {
+        return (int) handle;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A map from keys to byte arrays, where the values are kept in an
+ * {@link OffHeapArena}. Only the keys and the handles of the values are on the heap.
+ * Values are copied when they are stored and when they are read.
+ * This class is thread-safe. The handles are kept in a {@link ConcurrentHashMap},
+ * and a value is only read or released while holding the entry of its key,
+ * so a slot is never reused while it is read. Only allocating and releasing
+ * slots takes the lock of the arena.
+ *
+ * @param <K> the type of the keys
+ */
+public class OffHeapMap<K> {
+
+    private final OffHeapArena arena = new OffHeapArena();
+    private final ConcurrentHashMap<K, Long> handles = new ConcurrentHashMap<>();
+
+    /**
+     * @return a copy of the value, or null if there is none
+     */
+    public byte[] get(K key) {
+        byte[][] answer = new byte[1][];
+        handles.computeIfPresent(key, (k, handle) -> {
+            answer[0] = arena.get(handle);
+            return handle;
+        });
+        return answer[0];
+    }
+
+    public boolean containsKey(K key) {
+        return handles.containsKey(key);
+    }
+
+    public void put(K key, byte[] value) {
+        long handle = arena.allocate(value);
+        handles.compute(key, (k, old) -> {
+            if (old != null) {
+                arena.free(old);
+            }
+            return handle;
+        });
+    }
+
+    /**
+     * @return true if the key was present
+     */
+    public boolean remove(K key) {
+        boolean[] answer = new boolean[1];
+        handles.computeIfPresent(key, (k, old) -> {
+            arena.free(old);
+            answer[0] = true;
+            return null;
+        });
+        return answer[0];
+    }
+
+    /**
+     * @return a new set with all keys
+     */
+    public Set<K> keys() {
+        return new HashSet<>(handles.keySet());
+    }
+
+    public int size() {
+        return handles.size();
+    }
+
+    /**
+     * @return the number of bytes that the values take outside of the heap
+     */
+    public long reserved() {
+        return arena.reserved();
+    }
+
+    /**
+     * Removes all values. Their slots are kept for later values.
+     */
+    public void clear() {
+        for (K key : handles.keySet()) {
+            remove(key);
+        }
+    }
+}
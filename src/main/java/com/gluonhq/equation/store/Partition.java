@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+/**
+ * The different kinds of entities that are kept in the store. Every partition
+ * has a fixed id, which is used in persisted data.
+ */
+public enum Partition {
+
+    SESSIONS(1),
+    PREKEYS(2),
+    SIGNED_PREKEYS(3),
+    SENDER_KEYS(4),
+    DISTRIBUTIONS(5),
+    ADDRESSES(6),
+    ACCOUNT(7),
+    IDENTITIES(8),
+    SESSION_INFO(9);
+
+    private final byte id;
+
+    Partition(int id) {
+        this.id = (byte) id;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    public static Partition fromId(byte id) {
+        for (Partition partition : values()) {
+            if (partition.id == id) {
+                return partition;
+            }
+        }
+        throw new IllegalArgumentException("Unknown partition id " + id);
+    }
+}
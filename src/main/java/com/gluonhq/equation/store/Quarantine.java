@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * A directory for records that can't be parsed. Every record is kept in
+ * <code>&lt;partition&gt;/&lt;key in hex&gt;</code>, so it can be inspected
+ * or repaired later, and is described by a line of JSON in
+ * <code>findings.jsonl</code>, with the same fields as the findings of a
+ * {@link VerificationReport}.
+ */
+public class Quarantine {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path dir;
+
+    public Quarantine(Path dir) {
+        this.dir = dir;
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Keeps a copy of a corrupt record. An older copy of the same record is replaced.
+     */
+    public synchronized void put(VerificationReport.Finding finding, byte[] value) throws IOException {
+        Path target = dir.resolve(finding.getPartition().name().toLowerCase(Locale.ROOT)).resolve(finding.getKey());
+        Files.createDirectories(target.getParent());
+        Path tmp = target.resolveSibling(finding.getKey() + ".tmp");
+        Files.write(tmp, value);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.write(dir.resolve("findings.jsonl"),
+                (finding.toJson() + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Writes a report to <code>report.json</code>, replacing the previous one.
+     */
+    public synchronized void writeReport(VerificationReport report) throws IOException {
+        Files.createDirectories(dir);
+        Path target = dir.resolve("report.json");
+        Path tmp = dir.resolve("report.json.tmp");
+        Files.write(tmp, report.toJson().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String hex(byte[] b) {
+        char[] answer = new char[b.length * 2];
+        for (int i = 0; i < b.length; i++) {
+            answer[2 * i] = HEX[(b[i] >> 4) & 0xf];
+            answer[2 * i + 1] = HEX[b[i] & 0xf];
+        }
+        return new String(answer);
+    }
+}
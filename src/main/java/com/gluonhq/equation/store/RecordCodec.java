@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Converts serialized records to a compact stored form, and back.
+ * A compact record is laid out as
+ * <pre>
+ * byte 0 | byte flags | varint rawLength | payload | int crc
+ * </pre>
+ * where the payload is the raw record, or the raw record compressed with
+ * Deflate and a preset dictionary if that is smaller, and the crc covers the
+ * raw record. Serialized protobuf messages never start with a 0 byte, so
+ * records that were stored in the raw form are still read as they are.
+ */
+public class RecordCodec {
+
+    /**
+     * The stored form of new records.
+     */
+    public enum Format {
+        /** the record as it is */
+        RAW,
+        /** with a length and a checksum */
+        COMPACT,
+        /** with a length and a checksum, and compressed */
+        DEFLATE
+    }
+
+    private static final byte MARKER = 0;
+    private static final byte DEFLATED = 1;
+    private static final int MIN_COMPRESS = 64;
+    private static final int MAX_RECORD = Integer.getInteger("com.gluonhq.wave.store.maxRecordSize", 16 * 1024 * 1024);
+    // a Deflate stream can't expand more than this
+    private static final int MAX_RATIO = 1032;
+
+    private final Format format;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * @param format the stored form of new records
+     * @param dictionary data that is typical for the records, or null. Records
+     * that are compressed with a dictionary can only be read with the same dictionary.
+     */
+    public RecordCodec(Format format, byte[] dictionary) {
+        this.format = format;
+        this.dictionary = ((dictionary == null) || (dictionary.length == 0)) ? null : dictionary;
+        this.dictionaryId = this.dictionary == null ? 0 : adler(this.dictionary);
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public byte[] encode(byte[] raw) {
+        if (format == Format.RAW) {
+            return raw;
+        }
+        byte[] payload = raw;
+        byte flags = 0;
+        if ((format == Format.DEFLATE) && (raw.length >= MIN_COMPRESS)) {
+            byte[] deflated = deflate(raw);
+            if (deflated.length < raw.length) {
+                payload = deflated;
+                flags = DEFLATED;
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length + 12);
+        out.write(MARKER);
+        out.write(flags);
+        writeVarint(out, raw.length);
+        out.write(payload, 0, payload.length);
+        int crc = crc(raw);
+        out.write(crc >>> 24);
+        out.write(crc >>> 16);
+        out.write(crc >>> 8);
+        out.write(crc);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the raw record
+     * @throws IOException if the stored record is corrupt, or was compressed
+     * with a different dictionary. The length of the raw record is checked
+     * against the stored length and <code>com.gluonhq.wave.store.maxRecordSize</code>
+     * before anything is allocated.
+     */
+    public byte[] decode(byte[] stored) throws IOException {
+        if (!isCompact(stored)) {
+            return stored;
+        }
+        if (stored.length < 7) {
+            throw new IOException("Truncated record");
+        }
+        int[] pos = {2};
+        int rawLength = readVarint(stored, pos);
+        int end = stored.length - 4;
+        if ((rawLength < 0) || (rawLength > MAX_RECORD) || (pos[0] > end)) {
+            throw new IOException("Invalid record length");
+        }
+        byte[] raw;
+        if ((stored[1] & DEFLATED) != 0) {
+            // records are only stored deflated if that is smaller
+            long payload = end - pos[0];
+            if ((rawLength <= payload) || (rawLength > payload * MAX_RATIO)) {
+                throw new IOException("Invalid record length");
+            }
+            raw = inflate(stored, pos[0], end - pos[0], rawLength);
+        } else {
+            if (end - pos[0] != rawLength) {
+                throw new IOException("Invalid record length");
+            }
+            raw = new byte[rawLength];
+            System.arraycopy(stored, pos[0], raw, 0, rawLength);
+        }
+        int crc = ((stored[end] & 0xff) << 24) | ((stored[end + 1] & 0xff) << 16)
+                | ((stored[end + 2] & 0xff) << 8) | (stored[end + 3] & 0xff);
+        if (crc != crc(raw)) {
+            throw new IOException("Checksum mismatch");
+        }
+        return raw;
+    }
+
+    public static boolean isCompact(byte[] stored) {
+        return (stored.length > 0) && (stored[0] == MARKER);
+    }
+
+    private byte[] deflate(byte[] raw) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+        byte[] buffer = new byte[Math.max(64, raw.length)];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] inflate(byte[] b, int offset, int length, int rawLength) throws IOException {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(b, offset, length);
+        byte[] raw = new byte[rawLength];
+        try {
+            int n = inflater.inflate(raw);
+            if (inflater.needsDictionary()) {
+                if ((dictionary == null) || (inflater.getAdler() != dictionaryId)) {
+                    throw new IOException("Record was compressed with an unknown dictionary");
+                }
+                inflater.setDictionary(dictionary);
+                n += inflater.inflate(raw, n, rawLength - n);
+            }
+            if ((n != rawLength) || !inflater.finished()) {
+                throw new IOException("Invalid compressed record");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
+        }
+        return raw;
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Reads a varint at <code>pos[0]</code>, and advances the position.
+     */
+    static int readVarint(byte[] b, int[] pos) throws IOException {
+        int answer = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (pos[0] >= b.length) {
+                throw new IOException("Truncated varint");
+            }
+            byte next = b[pos[0]++];
+            answer |= (next & 0x7f) << shift;
+            if (next >= 0) {
+                return answer;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    private static int crc(byte[] b) {
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        return (int) crc.getValue();
+    }
+
+    private static int adler(byte[] b) {
+        Adler32 adler = new Adler32();
+        adler.update(b);
+        return (int) adler.getValue();
+    }
+}
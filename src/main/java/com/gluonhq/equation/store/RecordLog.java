@@ -0,0 +1,840 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A log-structured key/value store. Every update is appended as a single record
+ * to the active segment file in a directory; an in-memory index keeps the
+ * location of the latest record for each key. Once a segment is full, it is
+ * sealed and a new one is started. Sealed segments that mostly contain
+ * superseded records are compacted in the background.
+ * Values are not kept in memory, they are read from disk when requested.
+ * Changes can be staged, which makes them visible before they are appended.
+ *
+ * A record is laid out as
+ * <pre>
+ * int crc | long seq | byte type | int keyLength | int valueLength | key | value
+ * </pre>
+ * where the crc covers everything that follows it. A record with a crc that
+ * doesn't match is skipped when the log is opened, and kept in the
+ * {@link Quarantine}, if there is one; the key keeps its previous value.
+ *
+ * A snapshot of the index and the segment sizes lets a later open skip the
+ * records that were already there when the snapshot was written. It only
+ * matches as long as no segment was compacted since.
+ *
+ * A {@link #view() view} copies the index and reads from the segments that
+ * it refers to. Records are never overwritten, so the view is not affected by
+ * later appends; compaction, which deletes segments, waits until all views
+ * are closed.
+ *
+ * @param <K> the type of the keys in this log
+ */
+public class RecordLog<K> implements Table<K>, Snapshottable {
+
+    static final int HEADER_SIZE = 4 + 8 + 1 + 4 + 4;
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    private static final String SUFFIX = ".seg";
+    private static final long SEGMENT_SIZE = Long.getLong("com.gluonhq.wave.store.segmentSize", 4 * 1024 * 1024);
+    private static final double COMPACTION_RATIO = 0.5;
+    private static final byte[] REMOVED = new byte[0];
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "wave-store-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Path dir;
+    private final KeyCodec<K> codec;
+    private final Partition partition;
+    private final Quarantine quarantine;
+    private final Map<K, Location> index = new HashMap<>();
+    private final Map<K, byte[]> staged = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long seq;
+    private boolean open;
+    private boolean compacting;
+    private int views;
+    private boolean compactionDeferred;
+    // true if the log was opened with a consumer, so snapshots include the values
+    private boolean withValues;
+    private byte[] offeredSnapshot;
+
+    public RecordLog(Path dir, KeyCodec<K> codec) {
+        this(dir, codec, null, null);
+    }
+
+    /**
+     * @param partition the partition that is kept in this log, for the
+     * findings of corrupt records
+     * @param quarantine where corrupt records are kept, or null if they are
+     * only logged
+     */
+    public RecordLog(Path dir, KeyCodec<K> codec, Partition partition, Quarantine quarantine) {
+        this.dir = dir;
+        this.codec = codec;
+        this.partition = partition;
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Opens the log, and replays all segments in order to rebuild the index.
+     * Segments are scanned in parallel. A truncated or corrupt record at the
+     * tail of the last segment is the result of an interrupted append, and is cut off.
+     * Other corrupt records are skipped and quarantined. If the length of a
+     * corrupt record can't be trusted either, the rest of its segment is.
+     * If a matching snapshot was offered, only the records after it are replayed.
+     *
+     * @param consumer if not null, this is invoked with the latest value
+     * for each key that is present in the log. Otherwise, only the index is built,
+     * and no values are copied.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void open(BiConsumer<K, byte[]> consumer) throws IOException {
+        if (open) {
+            throw new IllegalStateException("RecordLog at " + dir + " is already open");
+        }
+        Files.createDirectories(dir);
+        List<Integer> ids;
+        try (Stream<Path> list = Files.list(dir)) {
+            ids = list.map(p -> p.getFileName().toString())
+                    .filter(n -> n.endsWith(SUFFIX))
+                    .map(n -> Integer.parseInt(n.substring(0, n.length() - SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        withValues = consumer != null;
+        Map<K, byte[]> values = consumer == null ? null : new HashMap<>();
+        byte[] snapshot = offeredSnapshot;
+        offeredSnapshot = null;
+        boolean restored = false;
+        if (snapshot != null) {
+            try {
+                restored = restore(snapshot, ids, values);
+            } catch (IOException | RuntimeException ex) {
+                WAVELOG.log(Level.WARNING, "[RecordLog] can't use the snapshot of " + dir + ": " + ex);
+            }
+            if (!restored) {
+                reset();
+                if (values != null) {
+                    values.clear();
+                }
+            }
+        }
+        if (!restored) {
+            List<Segment> opened = new ArrayList<>(ids.size());
+            for (int id : ids) {
+                opened.add(openSegment(id));
+            }
+            replayAll(opened, new long[opened.size()], values);
+        }
+        if (segments.isEmpty()) {
+            active = openSegment(0);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        open = true;
+        WAVELOG.log(Level.DEBUG, "[RecordLog] opened " + dir + " with " + index.size()
+                + " keys in " + segments.size() + " segments");
+        if (values != null) {
+            values.forEach(consumer);
+        }
+    }
+
+    /**
+     * Appends a new value for the specified key.
+     */
+    @Override
+    public synchronized void put(K key, byte[] value) throws IOException {
+        ensureOpen();
+        append(key, codec.encode(key), PUT, ++seq, value);
+        staged.remove(key, value);
+    }
+
+    /**
+     * Appends a tombstone for the specified key, if the key is present.
+     *
+     * @return true if the key was present
+     */
+    @Override
+    public synchronized boolean remove(K key) throws IOException {
+        ensureOpen();
+        staged.remove(key, REMOVED);
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        append(key, codec.encode(key), DELETE, ++seq, new byte[0]);
+        return true;
+    }
+
+    /**
+     * Reads the latest value for the specified key from disk.
+     *
+     * @return the value, or null if the key is not in this log
+     */
+    @Override
+    public synchronized byte[] get(K key) throws IOException {
+        ensureOpen();
+        byte[] pending = staged.get(key);
+        if (pending != null) {
+            return pending == REMOVED ? null : pending;
+        }
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        return read(location);
+    }
+
+    @Override
+    public synchronized boolean contains(K key) {
+        byte[] pending = staged.get(key);
+        if (pending != null) {
+            return pending != REMOVED;
+        }
+        return index.containsKey(key);
+    }
+
+    @Override
+    public synchronized Set<K> keys() {
+        Set<K> answer = new HashSet<>(index.keySet());
+        for (Map.Entry<K, byte[]> entry : staged.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                answer.remove(entry.getKey());
+            } else {
+                answer.add(entry.getKey());
+            }
+        }
+        return answer;
+    }
+
+    @Override
+    public synchronized TableView<K> view() throws IOException {
+        ensureOpen();
+        views++;
+        return new LogView(new HashMap<>(index), new TreeMap<>(segments));
+    }
+
+    /**
+     * Makes a change visible without appending it yet. The change must be
+     * applied later, using {@link #put(Object, byte[])} with the same value
+     * array, or {@link #remove(Object)}.
+     *
+     * @param key the key
+     * @param value the new value, or null to remove the key
+     */
+    @Override
+    public synchronized void stage(K key, byte[] value) {
+        staged.put(key, value == null ? REMOVED : value);
+    }
+
+    /**
+     * Forces all appended records to the storage device.
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        if (open) {
+            active.channel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        active.channel.force(false);
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+        index.clear();
+        staged.clear();
+        compactionDeferred = false;
+        open = false;
+    }
+
+    /**
+     * Rewrites the live records of all sealed segments into the active segment,
+     * and deletes the sealed segments afterwards.
+     * Sealed segments are immutable, so they are read without holding the lock.
+     * The live records are only copied if they are not superseded in the meantime.
+     * As all older segments are removed together, tombstones can be dropped,
+     * and so can corrupt records, which were skipped when the log was opened.
+     */
+    public void compact() throws IOException {
+        List<Segment> sealed;
+        synchronized (this) {
+            if (!open || compacting) {
+                return;
+            }
+            if (views > 0) {
+                compactionDeferred = true;
+                return;
+            }
+            sealed = new ArrayList<>(segments.headMap(active.id).values());
+            if (sealed.isEmpty()) {
+                return;
+            }
+            compacting = true;
+        }
+        try {
+            List<Scan> scans = new ArrayList<>(sealed.size());
+            for (Segment segment : sealed) {
+                scans.add(parse(segment, 0, Files.readAllBytes(segment.path), true));
+            }
+            synchronized (this) {
+                if (!open) {
+                    return;
+                }
+                if (views > 0) {
+                    // a view was created meanwhile, and may read the sealed segments
+                    compactionDeferred = true;
+                    return;
+                }
+                int copied = 0;
+                for (Scan scan : scans) {
+                    for (ScannedRecord record : scan.records) {
+                        if (record.type != PUT) {
+                            continue;
+                        }
+                        Location location = index.get(record.key);
+                        if ((location != null) && (location.segment == record.location.segment)
+                                && (location.offset == record.location.offset)) {
+                            append(record.key, codec.encode(record.key), PUT, record.seq, record.value);
+                            copied++;
+                        }
+                    }
+                }
+                active.channel.force(false);
+                for (Segment segment : sealed) {
+                    segment.channel.close();
+                    segments.remove(segment.id);
+                    Files.deleteIfExists(segment.path);
+                }
+                WAVELOG.log(Level.DEBUG, "[RecordLog] compacted " + sealed.size() + " segments in "
+                        + dir + ", copied " + copied + " records");
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Writes the sequence number, the segments with their size and live data,
+     * and the index, including the latest value of every key if the log was
+     * opened with a consumer. The active segment is forced first, so the
+     * sizes in the snapshot are durable.
+     */
+    @Override
+    public synchronized boolean writeSnapshot(DataOutputStream out) throws IOException {
+        if (!open) {
+            return false;
+        }
+        active.channel.force(false);
+        out.writeLong(seq);
+        out.writeBoolean(withValues);
+        out.writeInt(segments.size());
+        for (Segment segment : segments.values()) {
+            out.writeInt(segment.id);
+            out.writeLong(segment.size);
+            out.writeLong(segment.live);
+        }
+        out.writeInt(index.size());
+        for (Map.Entry<K, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            byte[] keyBytes = codec.encode(entry.getKey());
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(location.segment);
+            out.writeLong(location.offset);
+            out.writeInt(location.size);
+            out.writeInt(location.valueLength);
+            if (withValues) {
+                out.write(read(location));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void offerSnapshot(byte[] snapshot) {
+        if (!open) {
+            offeredSnapshot = snapshot;
+        }
+    }
+
+    /**
+     * Rebuilds the state from a snapshot, and replays what was appended after it.
+     *
+     * @return false if the segments changed in a way that the snapshot can't
+     * account for, e.g. by a compaction
+     */
+    private boolean restore(byte[] snapshot, List<Integer> ids, Map<K, byte[]> values) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+        long snapshotSeq = in.readLong();
+        boolean hasValues = in.readBoolean();
+        if ((values != null) && !hasValues) {
+            return false;
+        }
+        int count = in.readInt();
+        Map<Integer, long[]> recorded = new HashMap<>();
+        int last = -1;
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            recorded.put(id, new long[] {in.readLong(), in.readLong()});
+            last = Math.max(last, id);
+        }
+        for (int id : recorded.keySet()) {
+            if (!ids.contains(id)) {
+                return false;
+            }
+        }
+        List<Segment> newer = new ArrayList<>();
+        List<Long> from = new ArrayList<>();
+        for (int id : ids) {
+            long[] sizes = recorded.get(id);
+            if ((sizes == null) && (id < last)) {
+                return false;
+            }
+            Segment segment = openSegment(id);
+            if (sizes == null) {
+                newer.add(segment);
+                from.add(0L);
+                continue;
+            }
+            // sealed segments never change, the last one may have grown since
+            if ((segment.size < sizes[0]) || ((id < last) && (segment.size != sizes[0]))) {
+                return false;
+            }
+            segment.live = sizes[1];
+            if ((id == last) && (segment.size > sizes[0])) {
+                newer.add(segment);
+                from.add(sizes[0]);
+            }
+        }
+        int entries = in.readInt();
+        for (int i = 0; i < entries; i++) {
+            byte[] keyBytes = new byte[in.readInt()];
+            in.readFully(keyBytes);
+            K key = codec.decode(keyBytes);
+            int segment = in.readInt();
+            long offset = in.readLong();
+            int size = in.readInt();
+            int valueLength = in.readInt();
+            index.put(key, new Location(segment, offset, size, keyBytes.length, valueLength));
+            if (hasValues) {
+                byte[] value = new byte[valueLength];
+                in.readFully(value);
+                if (values != null) {
+                    values.put(key, value);
+                }
+            }
+        }
+        seq = snapshotSeq;
+        long[] offsets = new long[from.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = from.get(i);
+        }
+        replayAll(newer, offsets, values);
+        WAVELOG.log(Level.DEBUG, "[RecordLog] restored " + dir + " from a snapshot, replayed "
+                + newer.size() + " segments after it");
+        return true;
+    }
+
+    /**
+     * Scans the segments in parallel, each from the given offset, and replays
+     * them in order.
+     */
+    private void replayAll(List<Segment> opened, long[] from, Map<K, byte[]> values) throws IOException {
+        List<Scan> scans;
+        try {
+            scans = IntStream.range(0, opened.size()).parallel()
+                    .mapToObj(i -> scan(opened.get(i), from[i], values != null))
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+        for (int i = 0; i < scans.size(); i++) {
+            replay(opened.get(i), scans.get(i), i == scans.size() - 1, values);
+        }
+    }
+
+    private void reset() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+        index.clear();
+        seq = 0;
+    }
+
+    private byte[] read(Location location) throws IOException {
+        return read(segments.get(location.segment), location);
+    }
+
+    private static byte[] read(Segment segment, Location location) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(location.valueLength);
+        long position = location.offset + HEADER_SIZE + location.keyLength;
+        while (buffer.hasRemaining()) {
+            if (segment.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment " + segment.path);
+            }
+        }
+        return buffer.array();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            open(null);
+        }
+    }
+
+    private void append(K key, byte[] keyBytes, byte type, long recordSeq, byte[] value) throws IOException {
+        int size = HEADER_SIZE + keyBytes.length + value.length;
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(0).putLong(recordSeq).put(type)
+                .putInt(keyBytes.length).putInt(value.length)
+                .put(keyBytes).put(value);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, size - 4);
+        buffer.putInt(0, (int) crc.getValue());
+        buffer.flip();
+        long offset = active.size;
+        while (buffer.hasRemaining()) {
+            active.channel.write(buffer, offset + buffer.position());
+        }
+        active.size += size;
+        Location old = (type == PUT)
+                ? index.put(key, new Location(active.id, offset, size, keyBytes.length, value.length))
+                : index.remove(key);
+        if (old != null) {
+            segments.get(old.segment).live -= old.size;
+        }
+        if (type == PUT) {
+            active.live += size;
+        }
+        if (active.size >= SEGMENT_SIZE) {
+            roll();
+        }
+    }
+
+    private void roll() throws IOException {
+        active.channel.force(false);
+        active = openSegment(active.id + 1);
+        long sealedSize = 0;
+        long sealedLive = 0;
+        for (Segment segment : segments.headMap(active.id).values()) {
+            sealedSize += segment.size;
+            sealedLive += segment.live;
+        }
+        if (sealedSize - sealedLive >= sealedSize * COMPACTION_RATIO) {
+            scheduleCompaction();
+        }
+    }
+
+    private void scheduleCompaction() {
+        COMPACTOR.submit(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException ex) {
+                WAVELOG.log(Level.WARNING, "[RecordLog] compaction of " + dir + " failed: " + ex);
+                ex.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Reads the valid records of a segment, starting at an offset. This doesn't
+     * touch the state of the log, so segments can be scanned concurrently.
+     */
+    private Scan scan(Segment segment, long from, boolean withValues) {
+        byte[] content = new byte[(int) (segment.size - from)];
+        try {
+            ByteBuffer target = ByteBuffer.wrap(content);
+            while (target.hasRemaining()) {
+                if (segment.channel.read(target, from + target.position()) < 0) {
+                    throw new IOException("Unexpected end of segment " + segment.path);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return parse(segment, from, content, withValues);
+    }
+
+    /**
+     * Parses the records in the content of a segment, which starts at an
+     * offset. Records with invalid lengths or a crc that doesn't match are
+     * left out, see {@link Scan}.
+     */
+    private Scan parse(Segment segment, long from, byte[] content, boolean withValues) {
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        Scan answer = new Scan();
+        answer.valid = from;
+        answer.end = from;
+        CRC32 check = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE) {
+            int offset = buffer.position();
+            int crc = buffer.getInt();
+            long recordSeq = buffer.getLong();
+            byte type = buffer.get();
+            int keyLength = buffer.getInt();
+            int valueLength = buffer.getInt();
+            if ((keyLength < 0) || (valueLength < 0) || (buffer.remaining() < (long) keyLength + valueLength)) {
+                break;
+            }
+            check.reset();
+            check.update(content, offset + 4, HEADER_SIZE - 4 + keyLength + valueLength);
+            if ((int) check.getValue() != crc) {
+                // the lengths fit in the segment, so the next record probably starts after it
+                answer.corrupt.add(new Location(segment.id, from + offset,
+                        HEADER_SIZE + keyLength + valueLength, keyLength, valueLength));
+                buffer.position(buffer.position() + keyLength + valueLength);
+                answer.end = from + buffer.position();
+                continue;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            byte[] value = null;
+            if (withValues) {
+                value = new byte[valueLength];
+                buffer.get(value);
+            } else {
+                buffer.position(buffer.position() + valueLength);
+            }
+            answer.records.add(new ScannedRecord(codec.decode(keyBytes), recordSeq, type,
+                    new Location(segment.id, from + offset, HEADER_SIZE + keyLength + valueLength, keyLength, valueLength), value));
+            answer.valid = from + buffer.position();
+            answer.end = answer.valid;
+        }
+        return answer;
+    }
+
+    private void replay(Segment segment, Scan scan, boolean last, Map<K, byte[]> values) throws IOException {
+        for (ScannedRecord record : scan.records) {
+            Location old;
+            if (record.type == PUT) {
+                old = index.put(record.key, record.location);
+                segment.live += record.location.size;
+                if (values != null) {
+                    values.put(record.key, record.value);
+                }
+            } else {
+                old = index.remove(record.key);
+                if (values != null) {
+                    values.remove(record.key);
+                }
+            }
+            if (old != null) {
+                segments.get(old.segment).live -= old.size;
+            }
+            seq = Math.max(seq, record.seq);
+        }
+        long valid = scan.valid;
+        for (Location corrupt : scan.corrupt) {
+            // in the last segment, what follows the last valid record is cut off below
+            if (!last || (corrupt.offset < valid)) {
+                skipCorrupt(segment, corrupt);
+            }
+        }
+        if (!last && (scan.end < segment.size)) {
+            skipCorrupt(segment, new Location(segment.id, scan.end, (int) (segment.size - scan.end), 0, 0));
+        }
+        if (last && (valid < segment.size)) {
+            WAVELOG.log(Level.WARNING, "[RecordLog] truncating " + segment.path + " from "
+                    + segment.size + " to " + valid + " bytes");
+            segment.channel.truncate(valid);
+            segment.size = valid;
+        }
+    }
+
+    /**
+     * Logs a corrupt record, and keeps a copy of it in the quarantine. The key
+     * of the finding is the key of the record, or the segment and offset if
+     * the key can't be told.
+     */
+    private void skipCorrupt(Segment segment, Location location) {
+        String error = "Corrupt record at offset " + location.offset + " in " + segment.path;
+        WAVELOG.log(Level.WARNING, "[RecordLog] skipping: " + error);
+        if (quarantine == null) {
+            return;
+        }
+        try {
+            ByteBuffer record = ByteBuffer.allocate(location.size);
+            while (record.hasRemaining()) {
+                if (segment.channel.read(record, location.offset + record.position()) < 0) {
+                    throw new IOException("Unexpected end of segment " + segment.path);
+                }
+            }
+            byte[] key = location.keyLength > 0
+                    ? Arrays.copyOfRange(record.array(), HEADER_SIZE, HEADER_SIZE + location.keyLength)
+                    : ByteBuffer.allocate(12).putInt(segment.id).putLong(location.offset).array();
+            VerificationReport.Finding finding = new VerificationReport.Finding(partition, key, new IOException(error));
+            finding.setQuarantined(true);
+            quarantine.put(finding, record.array());
+        } catch (IOException ex) {
+            WAVELOG.log(Level.WARNING, "[RecordLog] can't quarantine a record of " + segment.path + ": " + ex);
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Path path = dir.resolve(String.format("%010d", id) + SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, path, channel);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    static class Segment {
+
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long live;
+
+        Segment(int id, Path path, FileChannel channel) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = channel.size();
+        }
+    }
+
+    private class LogView implements TableView<K> {
+
+        private final Map<K, Location> locations;
+        private final Map<Integer, Segment> viewSegments;
+        private boolean closed;
+
+        LogView(Map<K, Location> locations, Map<Integer, Segment> viewSegments) {
+            this.locations = locations;
+            this.viewSegments = viewSegments;
+        }
+
+        @Override
+        public byte[] get(K key) throws IOException {
+            Location location = locations.get(key);
+            if (location == null) {
+                return null;
+            }
+            // positional reads don't need the lock of the log
+            return read(viewSegments.get(location.segment), location);
+        }
+
+        @Override
+        public boolean contains(K key) {
+            return locations.containsKey(key);
+        }
+
+        @Override
+        public Set<K> keys() {
+            return Collections.unmodifiableSet(locations.keySet());
+        }
+
+        @Override
+        public int size() {
+            return locations.size();
+        }
+
+        @Override
+        public void close() {
+            synchronized (RecordLog.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                views--;
+                if ((views == 0) && compactionDeferred && open) {
+                    compactionDeferred = false;
+                    scheduleCompaction();
+                }
+            }
+        }
+    }
+
+    private class Scan {
+
+        final List<ScannedRecord> records = new ArrayList<>();
+        final List<Location> corrupt = new ArrayList<>();
+        // the end of the last valid record
+        long valid;
+        // where the scan stopped
+        long end;
+    }
+
+    private class ScannedRecord {
+
+        final K key;
+        final long seq;
+        final byte type;
+        final Location location;
+        final byte[] value;
+
+        ScannedRecord(K key, long seq, byte type, Location location, byte[] value) {
+            this.key = key;
+            this.seq = seq;
+            this.type = type;
+            this.location = location;
+            this.value = value;
+        }
+    }
+
+    static class Location {
+
+        final int segment;
+        final long offset;
+        final int size;
+        final int keyLength;
+        final int valueLength;
+
+        Location(int segment, long offset, int size, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+/**
+ * What the store needs to know about a session without parsing it: whether
+ * it can be used to send, its version, when it was last stored and how many
+ * archived states it has. Instances are immutable.
+ * It is stored as <code>byte valid | int version | long lastUsed | int archived</code>.
+ */
+public final class SessionInfo {
+
+    private static final int SIZE = 17;
+
+    private final boolean valid;
+    private final int version;
+    private final long lastUsed;
+    private final int archived;
+
+    public SessionInfo(boolean valid, int version, long lastUsed, int archived) {
+        this.valid = valid;
+        this.version = version;
+        this.lastUsed = lastUsed;
+        this.archived = archived;
+    }
+
+    /**
+     * @param record the session
+     * @param lastUsed the time the session was used, in milliseconds since the epoch
+     */
+    public static SessionInfo of(SessionRecord record, long lastUsed) {
+        return new SessionInfo(record.getSessionState().hasSenderChain(),
+                record.getSessionState().getSessionVersion(), lastUsed,
+                record.getPreviousSessionStates().size());
+    }
+
+    /**
+     * @return true if the session has a sender chain, so messages can be encrypted with it
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the time the session was last stored, in milliseconds since the epoch
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * @return the number of archived states
+     */
+    public int getArchived() {
+        return archived;
+    }
+
+    public byte[] encode() {
+        return ByteBuffer.allocate(SIZE).put((byte) (valid ? 1 : 0)).putInt(version)
+                .putLong(lastUsed).putInt(archived).array();
+    }
+
+    public static SessionInfo decode(byte[] b) throws IOException {
+        if (b.length != SIZE) {
+            throw new IOException("Invalid session info of " + b.length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b);
+        return new SessionInfo(buffer.get() != 0, buffer.getInt(), buffer.getLong(), buffer.getInt());
+    }
+
+    @Override
+    public String toString() {
+        return "SessionInfo[valid=" + valid + ", version=" + version
+                + ", lastUsed=" + lastUsed + ", archived=" + archived + "]";
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The {@link StorageEngine} that keeps all partitions in a single {@link KvFile}.
+ * This keeps the number of open files and syncs low.
+ */
+public class SingleFileEngine implements StorageEngine {
+
+    private static final byte[] REMOVED = new byte[0];
+
+    private final KvFile file;
+    private final Journal journal;
+
+    public SingleFileEngine(Path storePath) {
+        this.file = new KvFile(storePath.resolve("store.kv"));
+        this.journal = new Journal(storePath.resolve("store.journal"));
+    }
+
+    @Override
+    public <K> Table<K> table(Partition partition, KeyCodec<K> codec) {
+        return new KvTable<>(partition, codec);
+    }
+
+    @Override
+    public Journal journal() {
+        return journal;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+        journal.close();
+    }
+
+    private class KvTable<K> implements Table<K> {
+
+        private final Partition partition;
+        private final KeyCodec<K> codec;
+        private final Map<K, byte[]> staged = new HashMap<>();
+
+        KvTable(Partition partition, KeyCodec<K> codec) {
+            this.partition = partition;
+            this.codec = codec;
+        }
+
+        @Override
+        public void open(BiConsumer<K, byte[]> consumer) throws IOException {
+            file.open();
+            if (consumer != null) {
+                for (byte[] key : file.keys(partition)) {
+                    consumer.accept(codec.decode(key), file.get(partition, key));
+                }
+            }
+        }
+
+        @Override
+        public byte[] get(K key) throws IOException {
+            synchronized (this) {
+                byte[] pending = staged.get(key);
+                if (pending != null) {
+                    return pending == REMOVED ? null : pending;
+                }
+            }
+            return file.get(partition, codec.encode(key));
+        }
+
+        @Override
+        public boolean contains(K key) throws IOException {
+            synchronized (this) {
+                byte[] pending = staged.get(key);
+                if (pending != null) {
+                    return pending != REMOVED;
+                }
+            }
+            return file.contains(partition, codec.encode(key));
+        }
+
+        @Override
+        public synchronized void put(K key, byte[] value) throws IOException {
+            file.put(partition, codec.encode(key), value);
+            staged.remove(key, value);
+        }
+
+        @Override
+        public synchronized boolean remove(K key) throws IOException {
+            staged.remove(key, REMOVED);
+            return file.remove(partition, codec.encode(key));
+        }
+
+        @Override
+        public synchronized void stage(K key, byte[] value) {
+            staged.put(key, value == null ? REMOVED : value);
+        }
+
+        @Override
+        public synchronized Set<K> keys() throws IOException {
+            Set<K> answer = new HashSet<>();
+            for (byte[] key : file.keys(partition)) {
+                answer.add(codec.decode(key));
+            }
+            for (Map.Entry<K, byte[]> entry : staged.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    answer.remove(entry.getKey());
+                } else {
+                    answer.add(entry.getKey());
+                }
+            }
+            return answer;
+        }
+
+        @Override
+        public synchronized TableView<K> view() throws IOException {
+            KvFile.View view = file.view(partition);
+            Set<K> keys = new HashSet<>();
+            try {
+                for (byte[] key : view.keys()) {
+                    keys.add(codec.decode(key));
+                }
+            } catch (RuntimeException ex) {
+                view.close();
+                throw ex;
+            }
+            Set<K> answer = Collections.unmodifiableSet(keys);
+            return new TableView<K>() {
+                @Override
+                public byte[] get(K key) throws IOException {
+                    return view.get(codec.encode(key));
+                }
+
+                @Override
+                public boolean contains(K key) {
+                    return answer.contains(key);
+                }
+
+                @Override
+                public Set<K> keys() {
+                    return answer;
+                }
+
+                @Override
+                public int size() {
+                    return answer.size();
+                }
+
+                @Override
+                public void close() {
+                    view.close();
+                }
+            };
+        }
+
+        @Override
+        public void sync() throws IOException {
+            file.sync();
+        }
+
+        /**
+         * The file is shared by all tables, and is closed with the engine.
+         */
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A memory-mapped file with fixed-size slots, each holding one small record
+ * that is identified by an int id. This is used for pre-keys and signed pre-keys,
+ * which are small and of almost constant size.
+ *
+ * The file starts with a header
+ * <pre>
+ * int magic | int version | int slotSize | int slotCount
+ * </pre>
+ * followed by <code>slotCount</code> slots of <code>slotSize</code> bytes, each
+ * starting with <code>int id | int length</code>. A slot with length 0 is free.
+ * A record is never overwritten in place: a new value goes to a free slot,
+ * and the slot of the old value is freed afterwards. If both slots survive a
+ * crash, both hold a complete value, and one of them is freed when the file
+ * is opened.
+ *
+ * Changes can be staged, which makes them visible immediately, while the
+ * mapped file is only written once the change is applied with
+ * {@link #put(int, byte[])} or {@link #remove(int)}.
+ */
+public class SlotFile implements Closeable, Syncable {
+
+    private static final int MAGIC = 0x57534c54; // WSLT
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_HEADER_SIZE = 8;
+    private static final int DEFAULT_SLOT_SIZE = 256;
+    private static final int INITIAL_SLOTS = 128;
+    private static final byte[] REMOVED = new byte[0];
+
+    private final Path path;
+    private final int slotSize;
+    private final IntIntMap index = new IntIntMap();
+    private final BitSet used = new BitSet();
+    private final Map<Integer, byte[]> staged = new HashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int slotCount;
+
+    public SlotFile(Path path) {
+        this(path, DEFAULT_SLOT_SIZE);
+    }
+
+    public SlotFile(Path path, int slotSize) {
+        this.path = path;
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * Maps the file, creating it if needed, and builds the id index from
+     * the occupied slots.
+     */
+    public synchronized void open() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        Files.createDirectories(path.getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            map(INITIAL_SLOTS);
+            buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, slotSize).putInt(12, slotCount);
+            return;
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION) || (buffer.getInt(8) != slotSize)) {
+            throw new IOException("Not a valid slot file: " + path);
+        }
+        slotCount = buffer.getInt(12);
+        if ((long) HEADER_SIZE + (long) slotCount * slotSize > channel.size()) {
+            throw new IOException("Truncated slot file: " + path);
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            int base = offset(slot);
+            int length = buffer.getInt(base + 4);
+            if (length > 0) {
+                int previous = index.put(buffer.getInt(base), slot);
+                if (previous != IntIntMap.NO_VALUE) {
+                    // an update that was interrupted before the old slot was freed
+                    buffer.putInt(offset(previous) + 4, 0);
+                    used.clear(previous);
+                }
+                used.set(slot);
+            }
+        }
+        WAVELOG.log(Level.DEBUG, "[SlotFile] opened " + path + " with " + index.size() + " records");
+    }
+
+    public synchronized byte[] get(int id) throws IOException {
+        open();
+        byte[] pending = staged.get(id);
+        if (pending != null) {
+            return pending == REMOVED ? null : pending;
+        }
+        int slot = index.get(id);
+        if (slot == IntIntMap.NO_VALUE) {
+            return null;
+        }
+        return read(slot);
+    }
+
+    /**
+     * Copies the values in the mapped file, as freed slots are reused.
+     *
+     * @return the stored values by id, without staged changes
+     */
+    public synchronized Map<Integer, byte[]> copy() throws IOException {
+        open();
+        Map<Integer, byte[]> answer = new HashMap<>(index.size() * 2);
+        for (int id : index.keys()) {
+            answer.put(id, read(index.get(id)));
+        }
+        return answer;
+    }
+
+    public synchronized boolean contains(int id) throws IOException {
+        open();
+        byte[] pending = staged.get(id);
+        if (pending != null) {
+            return pending != REMOVED;
+        }
+        return index.containsKey(id);
+    }
+
+    /**
+     * Makes a change visible without writing it to the mapped file yet.
+     * The change must be applied later, using {@link #put(int, byte[])} with
+     * the same value array, or {@link #remove(int)}.
+     *
+     * @param id the id of the record
+     * @param value the new value, or null to remove the record
+     */
+    public synchronized void stage(int id, byte[] value) {
+        staged.put(id, value == null ? REMOVED : value);
+    }
+
+    /**
+     * Writes the value in a free slot, and then frees the slot of the old
+     * value, if any. The payload is written before the length, so a slot only
+     * becomes visible once it is complete.
+     */
+    public synchronized void put(int id, byte[] value) throws IOException {
+        open();
+        if ((value.length == 0) || (value.length > slotSize - SLOT_HEADER_SIZE)) {
+            throw new IOException("Can't store " + value.length + " bytes in a slot of " + slotSize + " bytes");
+        }
+        int slot = used.nextClearBit(0);
+        if (slot >= slotCount) {
+            map(slotCount * 2);
+        }
+        used.set(slot);
+        int base = offset(slot);
+        buffer.putInt(base, id);
+        buffer.duplicate().position(base + SLOT_HEADER_SIZE).put(value);
+        buffer.putInt(base + 4, value.length);
+        int old = index.put(id, slot);
+        if (old != IntIntMap.NO_VALUE) {
+            buffer.putInt(offset(old) + 4, 0);
+            used.clear(old);
+        }
+        staged.remove(id, value);
+    }
+
+    /**
+     * Stores all entries with a single growth of the mapping, if needed.
+     */
+    public synchronized void putAll(Map<Integer, byte[]> values) throws IOException {
+        open();
+        int needed = used.cardinality() + values.size();
+        if (needed > slotCount) {
+            map(Math.max(slotCount * 2, Integer.highestOneBit(needed - 1) << 1));
+        }
+        for (Map.Entry<Integer, byte[]> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public synchronized boolean remove(int id) throws IOException {
+        open();
+        staged.remove(id, REMOVED);
+        int slot = index.remove(id);
+        if (slot == IntIntMap.NO_VALUE) {
+            return false;
+        }
+        buffer.putInt(offset(slot) + 4, 0);
+        used.clear(slot);
+        return true;
+    }
+
+    public synchronized int[] ids() throws IOException {
+        open();
+        if (staged.isEmpty()) {
+            return index.keys();
+        }
+        int[] keys = index.keys();
+        int[] answer = Arrays.copyOf(keys, keys.length + staged.size());
+        int n = 0;
+        for (int id : keys) {
+            if (!staged.containsKey(id)) {
+                answer[n++] = id;
+            }
+        }
+        for (Map.Entry<Integer, byte[]> entry : staged.entrySet()) {
+            if (entry.getValue() != REMOVED) {
+                answer[n++] = entry.getKey();
+            }
+        }
+        return Arrays.copyOf(answer, n);
+    }
+
+    public synchronized int size() throws IOException {
+        open();
+        return staged.isEmpty() ? index.size() : ids().length;
+    }
+
+    /**
+     * Forces the changes to the mapped file to the storage device.
+     */
+    @Override
+    public synchronized void sync() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buffer.force();
+        channel.close();
+        channel = null;
+        buffer = null;
+        index.clear();
+        used.clear();
+        staged.clear();
+    }
+
+    private byte[] read(int slot) {
+        int base = offset(slot);
+        byte[] answer = new byte[buffer.getInt(base + 4)];
+        buffer.duplicate().position(base + SLOT_HEADER_SIZE).get(answer);
+        return answer;
+    }
+
+    private int offset(int slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    private void map(int slots) throws IOException {
+        long size = HEADER_SIZE + (long) slots * slotSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Slot file " + path + " can't grow beyond " + slotCount + " slots");
+        }
+        if (buffer != null) {
+            buffer.force();
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        slotCount = slots;
+        buffer.putInt(12, slotCount);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link Table} with int keys, stored in a {@link SlotFile}.
+ */
+public class SlotTable implements Table<Integer> {
+
+    private final SlotFile slots;
+
+    public SlotTable(SlotFile slots) {
+        this.slots = slots;
+    }
+
+    @Override
+    public void open(BiConsumer<Integer, byte[]> consumer) throws IOException {
+        slots.open();
+        if (consumer != null) {
+            for (int id : slots.ids()) {
+                consumer.accept(id, slots.get(id));
+            }
+        }
+    }
+
+    @Override
+    public byte[] get(Integer key) throws IOException {
+        return slots.get(key);
+    }
+
+    @Override
+    public boolean contains(Integer key) throws IOException {
+        return slots.contains(key);
+    }
+
+    @Override
+    public void put(Integer key, byte[] value) throws IOException {
+        slots.put(key, value);
+    }
+
+    @Override
+    public void putAll(Map<Integer, byte[]> values) throws IOException {
+        slots.putAll(values);
+    }
+
+    @Override
+    public boolean remove(Integer key) throws IOException {
+        return slots.remove(key);
+    }
+
+    @Override
+    public void stage(Integer key, byte[] value) {
+        slots.stage(key, value);
+    }
+
+    @Override
+    public Set<Integer> keys() throws IOException {
+        int[] ids = slots.ids();
+        Set<Integer> answer = new HashSet<>(ids.length * 2);
+        for (int id : ids) {
+            answer.add(id);
+        }
+        return answer;
+    }
+
+    @Override
+    public TableView<Integer> view() throws IOException {
+        return new CopiedTableView<>(slots.copy());
+    }
+
+    @Override
+    public void sync() {
+        slots.sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        slots.close();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A file with named sections of bytes, that is read and written as a whole,
+ * e.g. the snapshots of the tables of a store. It is laid out as
+ * <pre>
+ * int magic | int version | int count | (utf name | int length | bytes)* | long crc
+ * </pre>
+ * where the crc covers everything before it. The file is replaced atomically.
+ */
+public final class SnapshotFile {
+
+    /**
+     * The name of the snapshot of a store, in the store directory.
+     */
+    public static final String NAME = "snapshot";
+
+    private static final int MAGIC = 0x57534e50; // WSNP
+    private static final int VERSION = 1;
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * @return the sections, or an empty map if there is no file
+     * @throws IOException if the file can't be read, or is corrupt
+     */
+    public static Map<String, byte[]> read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return Collections.emptyMap();
+        }
+        byte[] content = Files.readAllBytes(path);
+        if (content.length < 20) {
+            throw new IOException("Truncated snapshot " + path);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 8);
+        if (crc.getValue() != ByteBuffer.wrap(content, content.length - 8, 8).getLong()) {
+            throw new IOException("Corrupt snapshot " + path);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(content, 0, content.length - 8));
+        if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+            throw new IOException("Not a snapshot " + path);
+        }
+        int count = in.readInt();
+        Map<String, byte[]> answer = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            byte[] section = new byte[in.readInt()];
+            in.readFully(section);
+            answer.put(name, section);
+        }
+        return answer;
+    }
+
+    public static void write(Path path, Map<String, byte[]> sections) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            CheckedOutputStream checked = new CheckedOutputStream(os, new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sections.size());
+            for (Map.Entry<String, byte[]> entry : sections.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+            new DataOutputStream(os).writeLong(checked.getChecksum().getValue());
+            os.flush();
+            channel.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A {@link Table} that can save the state it rebuilds when it is opened,
+ * so that a later open can start from that state, and only needs to read
+ * what was written after it.
+ */
+public interface Snapshottable {
+
+    /**
+     * Writes the current state.
+     *
+     * @return false if nothing was written, e.g. because the table is not open
+     */
+    boolean writeSnapshot(DataOutputStream out) throws IOException;
+
+    /**
+     * Offers a snapshot that was written earlier. The next open uses it if it
+     * still matches the stored data, and reads all data otherwise.
+     */
+    void offerSnapshot(byte[] snapshot);
+}
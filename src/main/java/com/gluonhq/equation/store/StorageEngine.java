@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Provides the {@link Table}s in which the store keeps its partitions.
+ * An engine is selected by name with {@link #open(String, Path)}:
+ * <ul>
+ * <li><code>directory</code>: a directory with log files per partition</li>
+ * <li><code>file</code>: a single key/value file for all partitions</li>
+ * <li><code>files</code>: a file per entry, in a directory per partition</li>
+ * <li><code>memory</code>: nothing is persisted, e.g. for load tests</li>
+ * </ul>
+ */
+public interface StorageEngine extends Closeable {
+
+    /**
+     * Returns the table for a partition. Every partition is requested once.
+     *
+     * @param partition the partition
+     * @param codec converts the keys to bytes, for engines that need it
+     */
+    <K> Table<K> table(Partition partition, KeyCodec<K> codec) throws IOException;
+
+    /**
+     * @return the journal that makes transactions atomic, or null if the
+     * engine doesn't persist anything
+     */
+    Journal journal();
+
+    /**
+     * Called once the store has read its tables, e.g. to start background
+     * work that shouldn't delay the start.
+     */
+    default void loaded() {
+    }
+
+    /**
+     * Sets where corrupt records that the engine finds while it opens its
+     * tables are kept. Called before the tables are requested.
+     */
+    default void setQuarantine(Quarantine quarantine) {
+    }
+
+    /**
+     * Closes the tables and the journal of this engine.
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * Opens the engine for the store in the given directory. If its data is
+     * kept by another engine, it is moved to this engine while the store is
+     * used, see {@link MigratingEngine}.
+     *
+     * @param name the name of the engine, as for {@link #create(String, Path)}
+     * @param storePath the directory of the store
+     */
+    static StorageEngine open(String name, Path storePath) {
+        return MigratingEngine.select(name, storePath);
+    }
+
+    /**
+     * Creates an engine that stores its data under the given directory.
+     *
+     * @param name <code>directory</code>, <code>file</code>, <code>files</code>
+     * or <code>memory</code>
+     * @param storePath the directory for the data of the engine
+     */
+    static StorageEngine create(String name, Path storePath) {
+        switch (name) {
+            case "directory":
+                return new DirectoryEngine(storePath);
+            case "file":
+                return new SingleFileEngine(storePath);
+            case "files":
+                return new FileTreeEngine(storePath);
+            case "memory":
+                return new MemoryEngine();
+            default:
+                throw new IllegalArgumentException("Unknown storage engine " + name);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A single-stream archive of a store, to move an account to another host.
+ * It holds the entries of every partition of a {@link StoreView}, and a set
+ * of named files, e.g. the contacts and groups.
+ *
+ * The archive starts with
+ * <pre>
+ * int magic | int version | long timestamp
+ * </pre>
+ * followed by chunks of at most {@value #CHUNK_ENTRIES} entries, or one file each:
+ * <pre>
+ * byte type | byte partition, or UTF name | int count | int rawLength | int crc | int length | deflated data
+ * </pre>
+ * where the crc covers the raw data, in which every entry is laid out as
+ * <pre>
+ * int keyLength | key | int valueLength | value
+ * </pre>
+ * It ends with a chunk of type END that holds the total number of entries and
+ * files, so a truncated archive is detected.
+ *
+ * Chunks are compressed and decompressed in parallel, while the stream itself
+ * is written and read sequentially, in order.
+ */
+public final class StoreArchive {
+
+    /**
+     * Receives the contents of an archive, in the order in which they were written.
+     */
+    public interface Sink {
+
+        /**
+         * @param partition the partition of the entries
+         * @param keys the keys, in their stored form
+         * @param values the values, with the same index as their key
+         */
+        void entries(Partition partition, byte[][] keys, byte[][] values) throws IOException;
+
+        void file(String name, byte[] content) throws IOException;
+    }
+
+    private static final int MAGIC = 0x57415243; // WARC
+    private static final int VERSION = 1;
+    private static final int CHUNK_ENTRIES = 4096;
+    private static final byte END = 0;
+    private static final byte ENTRIES = 1;
+    private static final byte FILE = 2;
+    // the largest chunk that is read, compressed or not
+    private static final int MAX_CHUNK = Integer.getInteger("com.gluonhq.wave.store.archiveChunkLimit", 256 * 1024 * 1024);
+    // a Deflate stream can't expand more than this
+    private static final int MAX_RATIO = 1032;
+    private static final int PARALLELISM = Integer.getInteger("com.gluonhq.wave.store.archiveThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    private StoreArchive() {
+    }
+
+    /**
+     * Writes all entries of the view, and the files, to the stream.
+     * The stream is not closed.
+     *
+     * @return the number of entries that were written
+     */
+    public static long write(StoreView view, Map<String, byte[]> files, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeLong(view.getTimestamp());
+        ExecutorService executor = executor();
+        try {
+            Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+            long count = 0;
+            for (Partition partition : view.getPartitions()) {
+                for (Callable<Chunk> task : tasks(view.table(partition), view.codec(partition), partition)) {
+                    inFlight.add(executor.submit(task));
+                    // bound the memory that is used by chunks that wait to be written
+                    if (inFlight.size() > 2 * PARALLELISM) {
+                        count += writeChunk(dos, await(inFlight.poll()));
+                    }
+                }
+            }
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                inFlight.add(executor.submit(() -> Chunk.compress(FILE, null, file.getKey(), 0, file.getValue())));
+            }
+            while (!inFlight.isEmpty()) {
+                count += writeChunk(dos, await(inFlight.poll()));
+            }
+            dos.writeByte(END);
+            dos.writeLong(count);
+            dos.writeInt(files.size());
+            dos.flush();
+            WAVELOG.log(Level.DEBUG, "[StoreArchive] wrote " + count + " entries and " + files.size() + " files");
+            return count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads an archive, and passes its contents to the sink on the calling
+     * thread. The checksum of every chunk is verified before it is passed on,
+     * but as the sink gets the chunks as they are read, it can't rely on the
+     * archive being complete until this method returns.
+     */
+    public static void read(InputStream in, Sink sink) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("Not a store archive");
+        }
+        int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported store archive version " + version);
+        }
+        long timestamp = dis.readLong();
+        ExecutorService executor = executor();
+        try {
+            Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+            long count = 0;
+            int files = 0;
+            while (true) {
+                byte type = dis.readByte();
+                if (type == END) {
+                    long expectedCount = dis.readLong();
+                    int expectedFiles = dis.readInt();
+                    while (!inFlight.isEmpty()) {
+                        Chunk chunk = await(inFlight.poll());
+                        count += chunk.count;
+                        files += chunk.deliver(sink);
+                    }
+                    if ((count != expectedCount) || (files != expectedFiles)) {
+                        throw new IOException("The store archive has " + count + " entries and " + files
+                                + " files, expected " + expectedCount + " and " + expectedFiles);
+                    }
+                    WAVELOG.log(Level.DEBUG, "[StoreArchive] read " + count + " entries and " + files
+                            + " files, written at " + timestamp);
+                    return;
+                }
+                Chunk read = Chunk.read(type, dis);
+                inFlight.add(executor.submit(read::decompress));
+                if (inFlight.size() > 2 * PARALLELISM) {
+                    Chunk chunk = await(inFlight.poll());
+                    count += chunk.count;
+                    files += chunk.deliver(sink);
+                }
+            }
+        } catch (EOFException ex) {
+            throw new IOException("The store archive is truncated", ex);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <K> List<Callable<Chunk>> tasks(TableView<K> table, KeyCodec<K> codec, Partition partition) {
+        List<K> keys = new ArrayList<>(table.keys());
+        List<Callable<Chunk>> answer = new ArrayList<>();
+        for (int from = 0; from < keys.size(); from += CHUNK_ENTRIES) {
+            List<K> part = keys.subList(from, Math.min(keys.size(), from + CHUNK_ENTRIES));
+            answer.add(() -> {
+                ByteArrayOutputStream raw = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(raw);
+                int count = 0;
+                for (K key : part) {
+                    byte[] value = table.get(key);
+                    if (value != null) {
+                        byte[] b = codec.encode(key);
+                        out.writeInt(b.length);
+                        out.write(b);
+                        out.writeInt(value.length);
+                        out.write(value);
+                        count++;
+                    }
+                }
+                out.flush();
+                return Chunk.compress(ENTRIES, partition, null, count, raw.toByteArray());
+            });
+        }
+        return answer;
+    }
+
+    private static int writeChunk(DataOutputStream out, Chunk chunk) throws IOException {
+        out.writeByte(chunk.type);
+        if (chunk.type == ENTRIES) {
+            out.writeByte(chunk.partition.getId());
+        } else {
+            out.writeUTF(chunk.name);
+        }
+        out.writeInt(chunk.count);
+        out.writeInt(chunk.rawLength);
+        out.writeInt(chunk.crc);
+        out.writeInt(chunk.data.length);
+        out.write(chunk.data);
+        return chunk.count;
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private static ExecutorService executor() {
+        return Executors.newFixedThreadPool(Math.max(1, PARALLELISM), r -> {
+            Thread t = new Thread(r, "wave-store-archive");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private static class Chunk {
+
+        final byte type;
+        final Partition partition;
+        final String name;
+        final int count;
+        final int rawLength;
+        final int crc;
+        // deflated when written, inflated once decompressed
+        final byte[] data;
+
+        Chunk(byte type, Partition partition, String name, int count, int rawLength, int crc, byte[] data) {
+            this.type = type;
+            this.partition = partition;
+            this.name = name;
+            this.count = count;
+            this.rawLength = rawLength;
+            this.crc = crc;
+            this.data = data;
+        }
+
+        static Chunk compress(byte type, Partition partition, String name, int count, byte[] raw) {
+            CRC32 crc = new CRC32();
+            crc.update(raw);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                return new Chunk(type, partition, name, count, raw.length, (int) crc.getValue(), out.toByteArray());
+            } finally {
+                deflater.end();
+            }
+        }
+
+        static Chunk read(byte type, DataInputStream in) throws IOException {
+            Partition partition = null;
+            String name = null;
+            if (type == ENTRIES) {
+                try {
+                    partition = Partition.fromId(in.readByte());
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException(ex.getMessage(), ex);
+                }
+            } else if (type == FILE) {
+                name = in.readUTF();
+            } else {
+                throw new IOException("Unknown chunk type " + type + " in the store archive");
+            }
+            int count = in.readInt();
+            int rawLength = in.readInt();
+            int crc = in.readInt();
+            int length = in.readInt();
+            // nothing is allocated before the lengths are known to be sane
+            if ((count < 0) || (rawLength < 0) || (rawLength > MAX_CHUNK) || (length < 0) || (length > MAX_CHUNK)
+                    || (rawLength > (long) length * MAX_RATIO)) {
+                throw new IOException("Invalid chunk length for " + (partition != null ? partition : name)
+                        + " in the store archive");
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            return new Chunk(type, partition, name, count, rawLength, crc, data);
+        }
+
+        Chunk decompress() throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                byte[] raw = new byte[rawLength];
+                int n = 0;
+                while ((n < raw.length) && !inflater.finished()) {
+                    int read = inflater.inflate(raw, n, raw.length - n);
+                    if ((read == 0) && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += read;
+                }
+                CRC32 actual = new CRC32();
+                actual.update(raw, 0, n);
+                if ((n != rawLength) || ((int) actual.getValue() != crc)) {
+                    throw new IOException("Corrupt chunk for " + (partition != null ? partition : name)
+                            + " in the store archive");
+                }
+                return new Chunk(type, partition, name, count, rawLength, crc, raw);
+            } catch (DataFormatException ex) {
+                throw new IOException("Corrupt chunk in the store archive", ex);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /**
+         * @return the number of files that were delivered
+         */
+        int deliver(Sink sink) throws IOException {
+            if (type == FILE) {
+                sink.file(name, data);
+                return 1;
+            }
+            // every entry takes at least its two lengths
+            if (count > data.length / 8) {
+                throw new IOException("Corrupt chunk for " + partition + " in the store archive");
+            }
+            byte[][] keys = new byte[count][];
+            byte[][] values = new byte[count][];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            try {
+                for (int i = 0; i < count; i++) {
+                    keys[i] = bytes(buffer);
+                    values[i] = bytes(buffer);
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException("Corrupt chunk for " + partition + " in the store archive", ex);
+            }
+            sink.entries(partition, keys, values);
+            return 0;
+        }
+
+        private static byte[] bytes(ByteBuffer buffer) {
+            int length = buffer.getInt();
+            if ((length < 0) || (length > buffer.remaining())) {
+                throw new IllegalArgumentException("Invalid length " + length);
+            }
+            byte[] answer = new byte[length];
+            buffer.get(answer);
+            return answer;
+        }
+    }
+}
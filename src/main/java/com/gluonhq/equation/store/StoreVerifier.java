@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that the records of a store can be parsed, by passing every record
+ * of a {@link StoreView} to the {@link Validator} of its partition. The
+ * records are checked in chunks, in parallel; partitions without a validator
+ * are skipped. The verifier only reports what it finds, the caller decides
+ * what to do with a corrupt record.
+ */
+public class StoreVerifier {
+
+    /**
+     * Parses a record, and throws an exception if it is corrupt.
+     */
+    public interface Validator {
+        void validate(byte[] key, byte[] value) throws Exception;
+    }
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int PARALLELISM = Integer.getInteger("com.gluonhq.wave.store.verifyThreads",
+            Runtime.getRuntime().availableProcessors());
+
+    private final Map<Partition, Validator> validators;
+
+    public StoreVerifier(Map<Partition, Validator> validators) {
+        this.validators = validators;
+    }
+
+    public VerificationReport verify(StoreView view) throws IOException {
+        long start = System.currentTimeMillis();
+        VerificationReport report = new VerificationReport(view.getTimestamp());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, PARALLELISM), r -> {
+            Thread t = new Thread(r, "wave-store-verifier");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (Partition partition : view.getPartitions()) {
+                Validator validator = validators.get(partition);
+                if (validator != null) {
+                    submit(executor, tasks, view.table(partition), view.codec(partition), partition, validator, report);
+                }
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        report.setDuration(System.currentTimeMillis() - start);
+        WAVELOG.log(report.isClean() ? Level.DEBUG : Level.WARNING, "[StoreVerifier] " + report);
+        return report;
+    }
+
+    private static <K> void submit(ExecutorService executor, List<Future<?>> tasks, TableView<K> table,
+            KeyCodec<K> codec, Partition partition, Validator validator, VerificationReport report) {
+        List<K> keys = new ArrayList<>(table.keys());
+        for (int from = 0; from < keys.size(); from += CHUNK_SIZE) {
+            List<K> part = keys.subList(from, Math.min(keys.size(), from + CHUNK_SIZE));
+            tasks.add(executor.submit(() -> {
+                List<VerificationReport.Finding> found = new ArrayList<>();
+                for (K key : part) {
+                    byte[] b = codec.encode(key);
+                    try {
+                        byte[] value = table.get(key);
+                        if (value != null) {
+                            validator.validate(b, value);
+                        }
+                    } catch (Exception ex) {
+                        // an unreadable record is a finding as well
+                        found.add(new VerificationReport.Finding(partition, b, ex));
+                    }
+                }
+                report.add(partition, part.size(), found);
+                return null;
+            }));
+        }
+    }
+}
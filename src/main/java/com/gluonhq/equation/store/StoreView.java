@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only view of all tables of a store at one point in time, e.g. for a
+ * backup, metrics or admin tools. The store continues to be updated while the
+ * view is read, and the view can be read from any thread. It must be closed
+ * when it is no longer needed.
+ */
+public class StoreView implements Closeable {
+
+    /**
+     * Receives the entries of a table, with the key in its stored form.
+     */
+    public interface EntryConsumer {
+        void accept(byte[] key, byte[] value) throws IOException;
+    }
+
+    private final Map<Partition, TableView<?>> views;
+    private final Map<Partition, KeyCodec<?>> codecs;
+    private final long timestamp;
+
+    public StoreView(Map<Partition, TableView<?>> views, Map<Partition, KeyCodec<?>> codecs, long timestamp) {
+        this.views = views;
+        this.codecs = codecs;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return the time when the view was created, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public Set<Partition> getPartitions() {
+        return Collections.unmodifiableSet(views.keySet());
+    }
+
+    /**
+     * @return the view of a table, with the key type of that table
+     */
+    @SuppressWarnings("unchecked")
+    public <K> TableView<K> table(Partition partition) {
+        TableView<K> answer = (TableView<K>) views.get(partition);
+        if (answer == null) {
+            throw new IllegalArgumentException("No table for " + partition);
+        }
+        return answer;
+    }
+
+    /**
+     * @return the codec for the keys of a table
+     */
+    @SuppressWarnings("unchecked")
+    public <K> KeyCodec<K> codec(Partition partition) {
+        return (KeyCodec<K>) codecs.get(partition);
+    }
+
+    /**
+     * @return the number of entries in all tables
+     */
+    public long size() {
+        long answer = 0;
+        for (TableView<?> view : views.values()) {
+            answer += view.size();
+        }
+        return answer;
+    }
+
+    /**
+     * Calls the consumer for every entry of a table, with the key encoded as
+     * it is stored.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Partition partition, EntryConsumer consumer) throws IOException {
+        forEach(table(partition), (KeyCodec<Object>) codecs.get(partition), consumer);
+    }
+
+    private static <K> void forEach(TableView<K> view, KeyCodec<K> codec, EntryConsumer consumer) throws IOException {
+        for (K key : view.keys()) {
+            byte[] value = view.get(key);
+            if (value != null) {
+                consumer.accept(codec.encode(key), value);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (TableView<?> view : views.values()) {
+            view.close();
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks, shared by keys with the same hash. This allows
+ * updates for different keys to proceed in parallel without a lock per key.
+ */
+public class Stripes {
+
+    private final ReentrantLock[] locks;
+
+    /**
+     * @param count the number of locks, rounded down to a power of two
+     */
+    public Stripes(int count) {
+        locks = new ReentrantLock[Integer.highestOneBit(Math.max(1, count))];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock lockFor(Object key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.IOException;
+
+/**
+ * Storage that buffers writes and can force them to the storage device.
+ */
+public interface Syncable {
+
+    /**
+     * Forces all previous writes to the storage device.
+     * @throws IOException
+     */
+    void sync() throws IOException;
+}
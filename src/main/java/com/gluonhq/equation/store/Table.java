@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * The storage for one {@link Partition}: a map from keys to byte arrays,
+ * provided by a {@link StorageEngine}.
+ *
+ * Changes can be staged, which makes them visible immediately. A staged change
+ * is applied later with {@link #put(Object, byte[])}, using the same value
+ * array, or with {@link #remove(Object)}. Applying an older value doesn't hide
+ * a newer staged value.
+ *
+ * @param <K> the type of the keys
+ */
+public interface Table<K> extends Closeable, Syncable {
+
+    /**
+     * Opens the table. Methods that need the stored data open the table
+     * implicitly, if this wasn't called before.
+     *
+     * @param consumer if not null, this is invoked with every stored entry
+     */
+    void open(BiConsumer<K, byte[]> consumer) throws IOException;
+
+    /**
+     * @return the value for the key, or null if there is none
+     */
+    byte[] get(K key) throws IOException;
+
+    boolean contains(K key) throws IOException;
+
+    void put(K key, byte[] value) throws IOException;
+
+    default void putAll(Map<K, byte[]> values) throws IOException {
+        for (Map.Entry<K, byte[]> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return true if the key was present
+     */
+    boolean remove(K key) throws IOException;
+
+    /**
+     * Makes a change visible without storing it yet.
+     *
+     * @param key the key
+     * @param value the new value, or null to remove the key
+     */
+    void stage(K key, byte[] value);
+
+    /**
+     * @return a new set with all keys in this table
+     */
+    Set<K> keys() throws IOException;
+
+    /**
+     * Creates a read-only view of the values that are applied at this moment.
+     * Staged changes are not part of the view.
+     */
+    TableView<K> view() throws IOException;
+}
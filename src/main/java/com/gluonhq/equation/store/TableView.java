@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * A read-only view of a {@link Table} at one point in time. Changes that are
+ * made to the table after the view was created, or that are only staged, are
+ * not seen. A view can be read from any thread.
+ * A view should be closed when it is no longer needed, as it can hold
+ * resources of its table, e.g. keep it from being compacted.
+ *
+ * @param <K> the type of the keys
+ */
+public interface TableView<K> extends Closeable {
+
+    /**
+     * @return the value for the key, or null if there was none
+     */
+    byte[] get(K key) throws IOException;
+
+    boolean contains(K key);
+
+    /**
+     * @return an unmodifiable set with all keys in this view
+     */
+    Set<K> keys();
+
+    int size();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of verifying the records of a store, see {@link StoreVerifier}.
+ * It can be written as JSON, for tools that monitor many accounts.
+ */
+public class VerificationReport {
+
+    /**
+     * A record that could not be parsed.
+     */
+    public static class Finding {
+
+        private final Partition partition;
+        private final byte[] keyBytes;
+        private final String key;
+        private final String error;
+        private final long timestamp;
+        private volatile boolean quarantined;
+
+        public Finding(Partition partition, byte[] key, Throwable error) {
+            this.partition = partition;
+            this.keyBytes = key.clone();
+            this.key = Quarantine.hex(key);
+            this.error = String.valueOf(error);
+            this.timestamp = System.currentTimeMillis();
+        }
+
+        public Partition getPartition() {
+            return partition;
+        }
+
+        /**
+         * @return the key of the record, in its stored form, in hex
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the key of the record, in its stored form
+         */
+        public byte[] getKeyBytes() {
+            return keyBytes.clone();
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return true if the record was moved out of the store
+         */
+        public boolean isQuarantined() {
+            return quarantined;
+        }
+
+        public void setQuarantined(boolean quarantined) {
+            this.quarantined = quarantined;
+        }
+
+        public String toJson() {
+            return "{\"partition\":\"" + partition + "\",\"key\":\"" + key
+                    + "\",\"error\":" + quote(error) + ",\"timestamp\":" + timestamp
+                    + ",\"quarantined\":" + quarantined + "}";
+        }
+    }
+
+    private final Map<Partition, Integer> checked = new EnumMap<>(Partition.class);
+    private final List<Finding> findings = new ArrayList<>();
+    private final long timestamp;
+    private long duration;
+
+    public VerificationReport(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    synchronized void add(Partition partition, int count, List<Finding> found) {
+        checked.merge(partition, count, Integer::sum);
+        findings.addAll(found);
+    }
+
+    void setDuration(long duration) {
+        this.duration = duration;
+    }
+
+    /**
+     * @return the time of the state that was verified, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the time the verification took, in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    public synchronized Map<Partition, Integer> getChecked() {
+        return Collections.unmodifiableMap(new EnumMap<>(checked));
+    }
+
+    public synchronized List<Finding> getFindings() {
+        return Collections.unmodifiableList(new ArrayList<>(findings));
+    }
+
+    public synchronized boolean isClean() {
+        return findings.isEmpty();
+    }
+
+    public synchronized String toJson() {
+        StringBuilder answer = new StringBuilder();
+        answer.append("{\"timestamp\":").append(timestamp)
+                .append(",\"duration\":").append(duration)
+                .append(",\"checked\":{");
+        String separator = "";
+        for (Map.Entry<Partition, Integer> entry : checked.entrySet()) {
+            answer.append(separator).append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            separator = ",";
+        }
+        answer.append("},\"findings\":[");
+        separator = "";
+        for (Finding finding : findings) {
+            answer.append(separator).append(finding.toJson());
+            separator = ",";
+        }
+        return answer.append("]}").toString();
+    }
+
+    @Override
+    public String toString() {
+        return "VerificationReport[checked = " + getChecked() + ", findings = " + getFindings().size() + "]";
+    }
+
+    private static String quote(String s) {
+        StringBuilder answer = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c == '"') || (c == '\\')) {
+                answer.append('\\').append(c);
+            } else if (c < 0x20) {
+                answer.append(String.format("\\u%04x", (int) c));
+            } else {
+                answer.append(c);
+            }
+        }
+        return answer.append('"').toString();
+    }
+}
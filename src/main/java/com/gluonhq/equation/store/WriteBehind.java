@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Performs storage writes on a background thread, so that callers only pay
+ * for updating the in-memory state. The thread comes from a {@link WriterPool},
+ * which can be shared by many queues.
+ * Writes are queued by key; a write that is queued while an older write for
+ * the same key is still pending replaces it. The writer thread drains all
+ * pending writes as one batch, and afterwards syncs every {@link Syncable}
+ * that was touched, depending on the {@link Durability}. An optional checkpoint
+ * action runs once the syncs of a batch are complete.
+ * A barrier separates the writes that were queued before it from those that
+ * are queued after it: they are never coalesced across the barrier.
+ * Pending writes are flushed when the JVM shuts down, by the shutdown hook of the pool.
+ * Once it is closed, writes that are still queued, e.g. by threads that
+ * didn't stop in time, are logged and dropped, as the storage they go to
+ * may be closed as well.
+ */
+public class WriteBehind implements Closeable {
+
+    /**
+     * A storage write that is executed on the writer thread.
+     */
+    public interface Action {
+        void run() throws IOException;
+    }
+
+    private static final long FLUSH_DELAY = Long.getLong("com.gluonhq.wave.store.flushDelay", 5);
+
+    private final Map<PendingKey, Pending> pending = new LinkedHashMap<>();
+    private final Set<Syncable> pendingSyncs = new LinkedHashSet<>();
+    private final String name;
+    private final WriterPool pool;
+    private final boolean ownPool;
+    private volatile Durability durability;
+    private volatile Action checkpoint;
+    private long submitted;
+    private long completed;
+    private long generation;
+    private boolean closed;
+    // true while a batch is scheduled or running on the pool
+    private boolean scheduled;
+
+    /**
+     * Creates a queue with a writer thread of its own.
+     */
+    public WriteBehind(String name, Durability durability) {
+        this(name, durability, new WriterPool(name, 1), true);
+    }
+
+    /**
+     * Creates a queue that runs its writes on a shared pool.
+     *
+     * @param name the name of the writer thread while it runs the writes of this queue
+     */
+    public WriteBehind(String name, Durability durability, WriterPool pool) {
+        this(name, durability, pool, false);
+    }
+
+    private WriteBehind(String name, Durability durability, WriterPool pool, boolean ownPool) {
+        this.name = name;
+        this.durability = durability;
+        this.pool = pool;
+        this.ownPool = ownPool;
+        pool.register(this);
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = Objects.requireNonNull(durability);
+    }
+
+    /**
+     * Sets an action that runs after every batch of writes, once everything
+     * that was written in that batch is synced. It doesn't run with
+     * {@link Durability#NONE}, as nothing is synced then.
+     */
+    public void setCheckpoint(Action checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Queues a write. With {@link Durability#WRITE}, this method only returns
+     * after the write is executed and synced.
+     *
+     * @param sink the storage that is written to, or null if the action takes
+     * care of durability itself
+     * @param key writes with an equal sink and key are coalesced
+     * @param action the write
+     */
+    public void submit(Syncable sink, Object key, Action action) {
+        enqueue(sink, key, new Pending(sink == null
+                ? Collections.emptySet() : Collections.singleton(sink), action));
+    }
+
+    /**
+     * Queues a write that touches more than one storage, e.g. a transaction.
+     *
+     * @param sinks the storages that are written to
+     * @param key writes with an equal key are coalesced
+     * @param action the write
+     */
+    public void submitAll(Collection<? extends Syncable> sinks, Object key, Action action) {
+        enqueue(null, key, new Pending(new LinkedHashSet<>(sinks), action));
+    }
+
+    /**
+     * Runs an action on the writer thread after all writes that are queued
+     * at this moment, and before all writes that are queued later, and waits
+     * until it is done. Exceptions thrown by the action are only logged.
+     * After close, the action doesn't run.
+     */
+    public void barrier(Action action) {
+        long ticket;
+        synchronized (this) {
+            if (closed) {
+                dropped("barrier");
+                return;
+            }
+            ticket = ++submitted;
+            pending.put(new PendingKey(null, new Object(), generation++),
+                    new Pending(Collections.emptySet(), action));
+            schedule();
+        }
+        await(ticket);
+    }
+
+    private void enqueue(Syncable sink, Object key, Pending write) {
+        long ticket;
+        synchronized (this) {
+            if (closed) {
+                dropped("write");
+                return;
+            }
+            ticket = ++submitted;
+            PendingKey pendingKey = new PendingKey(sink, key, generation);
+            pending.remove(pendingKey);
+            pending.put(pendingKey, write);
+            schedule();
+        }
+        if (durability == Durability.WRITE) {
+            await(ticket);
+        }
+    }
+
+    /**
+     * Queues a sync of storage that was written to directly, e.g. a
+     * memory-mapped file.
+     */
+    public void sync(Syncable sink) {
+        long ticket;
+        synchronized (this) {
+            if (closed) {
+                dropped("sync");
+                return;
+            }
+            ticket = ++submitted;
+            pendingSyncs.add(sink);
+            schedule();
+        }
+        if (durability == Durability.WRITE) {
+            await(ticket);
+        }
+    }
+
+    /**
+     * Waits until all writes that are queued at this moment are executed.
+     */
+    public void flush() {
+        long ticket;
+        synchronized (this) {
+            ticket = submitted;
+        }
+        await(ticket);
+    }
+
+    /**
+     * Flushes all pending writes, and stops the writer thread.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        flush();
+        pool.unregister(this);
+        if (ownPool) {
+            pool.close();
+        }
+    }
+
+    private void dropped(String what) {
+        WAVELOG.log(Level.WARNING, "[WriteBehind] dropping a " + what + " that was queued after close");
+    }
+
+    private synchronized void await(long ticket) {
+        while (completed < ticket) {
+            if (!scheduled) {
+                return;
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Schedules the next batch, unless one is scheduled already. If the pool
+     * is closed, the pending writes are dropped.
+     */
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        // group commit: give other writes a chance to join this batch
+        long delay = (FLUSH_DELAY > 0) && !closed && (durability != Durability.WRITE) ? FLUSH_DELAY : 0;
+        scheduled = pool.schedule(this::process, delay);
+        if (!scheduled) {
+            WAVELOG.log(Level.WARNING, "[WriteBehind] dropping " + (pending.size() + pendingSyncs.size())
+                    + " writes, as the writer pool is closed");
+            pending.clear();
+            pendingSyncs.clear();
+            completed = submitted;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes one batch on a thread of the pool. If more writes were queued
+     * meanwhile, the next batch is scheduled, so other queues of the pool get
+     * their turn in between.
+     */
+    private void process() {
+        Thread current = Thread.currentThread();
+        String idle = current.getName();
+        current.setName(name);
+        try {
+            Map<PendingKey, Pending> batch;
+            Set<Syncable> syncs;
+            long ticket;
+            synchronized (this) {
+                batch = new LinkedHashMap<>(pending);
+                syncs = new LinkedHashSet<>(pendingSyncs);
+                pending.clear();
+                pendingSyncs.clear();
+                ticket = submitted;
+            }
+            write(batch, syncs);
+            synchronized (this) {
+                completed = ticket;
+                scheduled = false;
+                if (!pending.isEmpty() || !pendingSyncs.isEmpty()) {
+                    schedule();
+                }
+                notifyAll();
+            }
+        } finally {
+            current.setName(idle);
+        }
+    }
+
+    private void write(Map<PendingKey, Pending> batch, Set<Syncable> syncs) {
+        Durability mode = durability;
+        boolean complete = true;
+        for (Pending p : batch.values()) {
+            try {
+                p.action.run();
+                for (Syncable sink : p.sinks) {
+                    if (mode == Durability.WRITE) {
+                        sink.sync();
+                    } else {
+                        syncs.add(sink);
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                complete = false;
+                WAVELOG.log(Level.WARNING, "[WriteBehind] write failed: " + ex);
+                ex.printStackTrace();
+            }
+        }
+        if (mode == Durability.NONE) {
+            return;
+        }
+        for (Syncable sink : syncs) {
+            try {
+                sink.sync();
+            } catch (IOException ex) {
+                complete = false;
+                WAVELOG.log(Level.WARNING, "[WriteBehind] sync failed: " + ex);
+                ex.printStackTrace();
+            }
+        }
+        Action action = checkpoint;
+        if (complete && (action != null)) {
+            try {
+                action.run();
+            } catch (IOException | RuntimeException ex) {
+                WAVELOG.log(Level.WARNING, "[WriteBehind] checkpoint failed: " + ex);
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private static class Pending {
+
+        final Set<Syncable> sinks;
+        final Action action;
+
+        Pending(Set<Syncable> sinks, Action action) {
+            this.sinks = sinks;
+            this.action = action;
+        }
+    }
+
+    private static class PendingKey {
+
+        final Syncable sink;
+        final Object key;
+        // writes on either side of a barrier have a different generation
+        final long generation;
+
+        PendingKey(Syncable sink, Object key, long generation) {
+            this.sink = sink;
+            this.key = key;
+            this.generation = generation;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(sink) + Objects.hashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey other = (PendingKey) obj;
+            return (sink == other.sink) && Objects.equals(key, other.key)
+                    && (generation == other.generation);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.WaveManager.WAVELOG;
+import java.io.Closeable;
+import java.lang.System.Logger.Level;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed number of threads that execute the writes of many {@link WriteBehind}
+ * queues, e.g. of all accounts on a host. The writes of one queue run on one
+ * thread at a time, in order, and the thread has the name of the queue while
+ * it runs them. One shutdown hook flushes all queues when the JVM shuts down.
+ */
+public class WriterPool implements Closeable {
+
+    private final ScheduledExecutorService executor;
+    private final Set<WriteBehind> writers = ConcurrentHashMap.newKeySet();
+    private final Thread shutdownHook;
+
+    /**
+     * @param name the name of idle threads, and of the shutdown hook
+     * @param threads the number of threads
+     */
+    public WriterPool(String name, int threads) {
+        this.executor = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        this.shutdownHook = new Thread(this::flush, name + "-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Waits until all writes that are queued at this moment are executed.
+     */
+    public void flush() {
+        for (WriteBehind writer : writers) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Stops the threads. Queues that use this pool must be closed first.
+     */
+    @Override
+    public void close() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            // the JVM is shutting down already
+        }
+        if (!writers.isEmpty()) {
+            WAVELOG.log(Level.WARNING, "[WriterPool] closing with " + writers.size() + " open queues");
+            flush();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                WAVELOG.log(Level.WARNING, "[WriterPool] writer threads didn't stop in time");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void register(WriteBehind writer) {
+        writers.add(writer);
+    }
+
+    void unregister(WriteBehind writer) {
+        writers.remove(writer);
+    }
+
+    /**
+     * @return false if the pool is closed, and the task won't run
+     */
+    boolean schedule(Runnable task, long delay) {
+        try {
+            executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            return false;
+        }
+    }
+}
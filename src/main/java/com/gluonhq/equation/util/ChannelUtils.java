@@ -16,42 +16,43 @@ import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
 /**
+ * Holds the unidentified access state of one account.
  *
  * @author johan
  */
 public class ChannelUtils {
 
-    private static byte[] senderCertificate;
-    private static Contact me;
+    private volatile byte[] senderCertificate;
+    private volatile Contact me;
     
-    public static void setMe(Contact c) {
+    public void setMe(Contact c) {
         me = c;
     }
     
-    public static ProfileKey getMyProfileKey() {
+    public ProfileKey getMyProfileKey() {
         return null;
     }
 
-    public static byte[] getSenderCertificate() {
+    public byte[] getSenderCertificate() {
         return senderCertificate;
     }
 
-    public static void setSenderCertificate(byte[] v) {
+    public void setSenderCertificate(byte[] v) {
         senderCertificate = v;
     }
 
-    public static UnidentifiedAccessPair getUnidentifiedAccessPair(Contact c) throws InvalidCertificateException, InvalidInputException {
+    public UnidentifiedAccessPair getUnidentifiedAccessPair(Contact c) throws InvalidCertificateException, InvalidInputException {
         return new UnidentifiedAccessPair(getMyUnidentifiedAccess(),getUnidentifiedAccess(c) );
     }
     
-    public static UnidentifiedAccess getMyUnidentifiedAccess() throws InvalidCertificateException, InvalidInputException {
+    public UnidentifiedAccess getMyUnidentifiedAccess() throws InvalidCertificateException, InvalidInputException {
         byte[] ourUnidentifiedAccessKey = UnidentifiedAccess.deriveAccessKeyFrom(new ProfileKey(me.getProfileKey()));
         byte[] ourUnidentifiedAccessCertificate = senderCertificate;
         UnidentifiedAccess answer = new UnidentifiedAccess(ourUnidentifiedAccessKey, ourUnidentifiedAccessCertificate);
         return answer;
     }
 
-    public static UnidentifiedAccess getUnidentifiedAccess(Contact c) throws InvalidCertificateException, InvalidInputException {
+    public UnidentifiedAccess getUnidentifiedAccess(Contact c) throws InvalidCertificateException, InvalidInputException {
         byte[] theirUnidentifiedAccessKey = UnidentifiedAccess.deriveAccessKeyFrom(new ProfileKey(c.getProfileKey()));
         byte[] ourUnidentifiedAccessCertificate = senderCertificate;
         UnidentifiedAccess answer = new UnidentifiedAccess(theirUnidentifiedAccessKey, ourUnidentifiedAccessCertificate);
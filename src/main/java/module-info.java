@@ -18,6 +18,7 @@ module com.gluonhq.wave {
     exports com.gluonhq.equation.message;
     exports com.gluonhq.equation.model;
     exports com.gluonhq.equation.provision;
+    exports com.gluonhq.equation.store;
     exports com.gluonhq.equation.util;
 
     opens com.gluonhq.equation.model to com.fasterxml.jackson.databind;
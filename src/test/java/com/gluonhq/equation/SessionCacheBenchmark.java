@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation;
+
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.kdf.HKDF;
+import org.whispersystems.libsignal.ratchet.ChainKey;
+import org.whispersystems.libsignal.ratchet.RootKey;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
+
+/**
+ * Measures the time and the memory that is allocated to look up the sessions
+ * of every member of a group, as it is done for every group message. It
+ * compares the parsed session cache of {@link WaveStore} with parsing the
+ * stored bytes on every call, which is what the store did before. Run it with
+ * the test classpath, e.g.
+ * <pre>
+ * java -cp target/classes:target/test-classes:... com.gluonhq.equation.SessionCacheBenchmark [members...]
+ * </pre>
+ * The default group sizes are 100, 300 and 1000 members, each with a session
+ * that has {@value #ARCHIVED_STATES} archived states.
+ */
+public class SessionCacheBenchmark {
+
+    private static final int ARCHIVED_STATES = 10;
+    private static final int WARMUP = 20;
+    private static final int ROUNDS = 50;
+    private static final HKDF KDF = HKDF.createFor(3);
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final Random RANDOM = new Random(42);
+    // keeps the results alive, so the work isn't optimized away
+    private static long sink;
+
+    private interface Round {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[] {100, 300, 1000};
+        IdentityKey local = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+        System.out.println("members  lookup                     us/group   KiB allocated/group");
+        for (int size : sizes) {
+            run(size, local);
+        }
+    }
+
+    private static void run(int size, IdentityKey local) throws Exception {
+        Path root = Files.createTempDirectory("wave-session-bench");
+        WaveStore store = new WaveStore(root, "directory");
+        try {
+            List<SignalProtocolAddress> members = new ArrayList<>(size);
+            Map<SignalProtocolAddress, byte[]> stored = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                SignalProtocolAddress address = new SignalProtocolAddress(UUID.randomUUID().toString(), 1);
+                SessionRecord record = session(local);
+                stored.put(address, record.serialize());
+                store.storeSession(address, record);
+                members.add(address);
+            }
+
+            measure(size, "parse on every call", () -> {
+                for (SignalProtocolAddress address : members) {
+                    // containsSession and loadSession each parsed the stored bytes
+                    SessionRecord record = new SessionRecord(stored.get(address));
+                    if (record.getSessionState().hasSenderChain()) {
+                        sink += new SessionRecord(stored.get(address)).getSessionState().getSessionVersion();
+                    }
+                }
+            });
+            measure(size, "containsSession+loadSession", () -> {
+                for (SignalProtocolAddress address : members) {
+                    if (store.containsSession(address)) {
+                        sink += store.loadSession(address).getSessionState().getSessionVersion();
+                    }
+                }
+            });
+            measure(size, "loadExistingSessions", () -> sink += store.loadExistingSessions(members).size());
+        } finally {
+            store.close();
+            delete(root);
+        }
+    }
+
+    private static void measure(int size, String name, Round round) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            round.run();
+        }
+        long thread = Thread.currentThread().getId();
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            round.run();
+        }
+        long time = System.nanoTime() - start;
+        allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+        System.out.printf("%7d  %-26s %9.1f %12.1f%n", size, name, time / 1e3 / ROUNDS, allocated / 1024.0 / ROUNDS);
+    }
+
+    /**
+     * A session with a sender chain, a few receiver chains, and archived states.
+     */
+    private static SessionRecord session(IdentityKey local) {
+        IdentityKey remote = new IdentityKey(Curve.generateKeyPair().getPublicKey());
+        SessionRecord record = new SessionRecord(state(local, remote));
+        for (int i = 0; i < ARCHIVED_STATES; i++) {
+            record.promoteState(state(local, remote));
+        }
+        return record;
+    }
+
+    private static SessionState state(IdentityKey local, IdentityKey remote) {
+        SessionState state = new SessionState();
+        state.setSessionVersion(3);
+        state.setLocalIdentityKey(local);
+        state.setRemoteIdentityKey(remote);
+        state.setRootKey(new RootKey(KDF, bytes(32)));
+        state.setSenderChain(Curve.generateKeyPair(), new ChainKey(KDF, bytes(32), RANDOM.nextInt(100)));
+        for (int i = 0; i < 3; i++) {
+            state.addReceiverChain(Curve.generateKeyPair().getPublicKey(),
+                    new ChainKey(KDF, bytes(32), RANDOM.nextInt(100)));
+        }
+        state.setRemoteRegistrationId(RANDOM.nextInt(16384));
+        state.setLocalRegistrationId(1234);
+        state.setAliceBaseKey(Curve.generateKeyPair().getPublicKey().serialize());
+        return state;
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] answer = new byte[length];
+        RANDOM.nextBytes(answer);
+        return answer;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException ex) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
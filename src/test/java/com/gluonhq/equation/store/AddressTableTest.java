@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+
+class AddressTableTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void logger() {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+    }
+
+    @Test
+    void idsAreWrittenBeforeTheWritesThatUseThem() throws Exception {
+        WriteBehind writer = new WriteBehind("test-writer", Durability.BATCH);
+        RecordLog<Integer> log = new RecordLog<>(dir, KeyCodec.INT);
+        AddressTable table = new AddressTable(log, writer);
+        table.open();
+        CountDownLatch blocked = new CountDownLatch(1);
+        // hold the writer, so intern can't write on the caller's thread
+        writer.submit(null, "block", () -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        List<String> stored = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 10; i++) {
+            SignalProtocolAddress address = new SignalProtocolAddress("user" + i, 1);
+            int id = table.intern(address);
+            assertEquals(i, id);
+            assertEquals(id, table.intern(address));
+            assertEquals(address, table.get(id));
+            // a write that uses the id sees it applied, not only staged
+            writer.submit(null, id, () -> {
+                try (TableView<Integer> view = log.view()) {
+                    stored.add(view.contains(id) ? "user" + id : null);
+                }
+            });
+        }
+        try (TableView<Integer> view = log.view()) {
+            assertEquals(0, view.size());
+        }
+        blocked.countDown();
+        writer.close();
+        assertEquals(10, stored.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("user" + i, stored.get(i));
+        }
+        table.close();
+
+        table = reopen(writer = new WriteBehind("test-writer", Durability.BATCH));
+        assertEquals(10, table.size());
+        assertEquals(3, table.find(new SignalProtocolAddress("user3", 1)));
+        assertEquals(10, table.intern(new SignalProtocolAddress("user10", 1)));
+        assertNull(table.get(11));
+        writer.close();
+        table.close();
+    }
+
+    private AddressTable reopen(WriteBehind writer) throws IOException {
+        AddressTable table = new AddressTable(new RecordLog<>(dir, KeyCodec.INT), writer);
+        table.open();
+        return table;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.store.RecordLogTest.value;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileTableTest {
+
+    private static final int COUNT = 5000;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void logger() {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        for (FileTable.Layout layout : FileTable.Layout.values()) {
+            Path tableDir = dir.resolve(layout.name());
+            FileTable<Integer> table = new FileTable<>(tableDir, KeyCodec.INT, layout);
+            table.open(null);
+            for (int i = 0; i < 100; i++) {
+                table.put(i, value(i, 0));
+            }
+            table.remove(5);
+            table.close();
+
+            table = new FileTable<>(tableDir, KeyCodec.INT, layout);
+            table.open(null);
+            assertEquals(99, table.keys().size());
+            assertArrayEquals(value(42, 0), table.get(42));
+            assertFalse(table.contains(5));
+            table.close();
+        }
+    }
+
+    @Test
+    void migrationResumesAfterClose() throws Exception {
+        FileTable<Integer> flat = new FileTable<>(dir, KeyCodec.INT, FileTable.Layout.FLAT);
+        flat.open(null);
+        for (int i = 0; i < COUNT; i++) {
+            flat.put(i, value(i, 0));
+        }
+        flat.close();
+        // left behind by a write that was interrupted
+        Files.write(dir.resolve("00000001.tmp"), new byte[3]);
+
+        // closing stops the migration, most likely before all files are moved
+        FileTable<Integer> sharded = new FileTable<>(dir, KeyCodec.INT, FileTable.Layout.SHARDED);
+        sharded.open(null);
+        sharded.put(1, value(1, 1));
+        sharded.remove(2);
+        sharded.close();
+
+        sharded = new FileTable<>(dir, KeyCodec.INT, FileTable.Layout.SHARDED);
+        sharded.open(null);
+        // everything is readable while files are still moved
+        assertEquals(COUNT - 1, sharded.keys().size());
+        assertArrayEquals(value(1, 1), sharded.get(1));
+        assertFalse(sharded.contains(2));
+        assertArrayEquals(value(COUNT - 1, 0), sharded.get(COUNT - 1));
+        awaitMigration();
+        sharded.close();
+
+        sharded = new FileTable<>(dir, KeyCodec.INT, FileTable.Layout.SHARDED);
+        sharded.open(null);
+        assertEquals(COUNT - 1, sharded.keys().size());
+        for (int i = 0; i < COUNT; i++) {
+            if (i == 2) {
+                continue;
+            }
+            assertArrayEquals(value(i, i == 1 ? 1 : 0), sharded.get(i), "key " + i);
+        }
+        sharded.close();
+    }
+
+    private void awaitMigration() throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (flatFiles() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "the migration didn't finish");
+            Thread.sleep(20);
+        }
+    }
+
+    private long flatFiles() throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.filter(Files::isRegularFile).count();
+        }
+    }
+}
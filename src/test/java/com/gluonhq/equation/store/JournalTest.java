@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.store.RecordLogTest.value;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournalTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void logger() {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+    }
+
+    @Test
+    void recordsAreRecovered() throws IOException {
+        Path path = dir.resolve("journal");
+        Journal journal = new Journal(path);
+        assertTrue(journal.open().isEmpty());
+        for (int i = 0; i < 3; i++) {
+            journal.append(value(i, 0));
+        }
+        journal.sync();
+        journal.close();
+
+        journal = new Journal(path);
+        List<byte[]> records = journal.open();
+        assertEquals(3, records.size());
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(value(i, 0), records.get(i));
+        }
+        journal.truncate();
+        journal.close();
+
+        journal = new Journal(path);
+        assertTrue(journal.open().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    void tornTailIsCutOff() throws IOException {
+        Path path = dir.resolve("journal");
+        Journal journal = new Journal(path);
+        journal.open();
+        journal.append(value(0, 0));
+        journal.append(value(1, 0));
+        journal.close();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        journal = new Journal(path);
+        assertEquals(1, journal.open().size());
+        // a record that is appended after recovery is found again
+        journal.append(value(2, 0));
+        journal.close();
+
+        journal = new Journal(path);
+        List<byte[]> records = journal.open();
+        assertEquals(2, records.size());
+        assertArrayEquals(value(0, 0), records.get(0));
+        assertArrayEquals(value(2, 0), records.get(1));
+        journal.close();
+    }
+
+    @Test
+    void onlyTornRecord() throws IOException {
+        Path path = dir.resolve("journal");
+        Journal journal = new Journal(path);
+        journal.open();
+        journal.append(value(0, 0));
+        journal.close();
+        byte[] content = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(content, content.length / 2));
+
+        journal = new Journal(path);
+        assertTrue(journal.open().isEmpty());
+        assertEquals(0, Files.size(path));
+        journal.append(value(1, 0));
+        journal.close();
+
+        journal = new Journal(path);
+        List<byte[]> records = journal.open();
+        assertEquals(1, records.size());
+        assertArrayEquals(value(1, 0), records.get(0));
+        journal.close();
+    }
+
+    @Test
+    void corruptRecordEndsRecovery() throws IOException {
+        Path path = dir.resolve("journal");
+        Journal journal = new Journal(path);
+        journal.open();
+        for (int i = 0; i < 3; i++) {
+            journal.append(value(i, 0));
+        }
+        journal.close();
+        // flip a payload byte of the second record
+        byte[] content = Files.readAllBytes(path);
+        int recordSize = content.length / 3;
+        content[recordSize + 8] ^= 1;
+        Files.write(path, content);
+
+        journal = new Journal(path);
+        List<byte[]> records = journal.open();
+        assertEquals(1, records.size());
+        assertArrayEquals(value(0, 0), records.get(0));
+        journal.close();
+    }
+}
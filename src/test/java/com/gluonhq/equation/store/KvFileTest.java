@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.store.RecordLogTest.value;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class KvFileTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void logger() {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        Path path = dir.resolve("store.kv");
+        KvFile file = new KvFile(path);
+        file.open();
+        for (int i = 0; i < 100; i++) {
+            file.put(Partition.SESSIONS, key(i), value(i, 0));
+            file.put(Partition.PREKEYS, key(i), value(i, 1));
+        }
+        for (int i = 0; i < 100; i += 3) {
+            file.remove(Partition.SESSIONS, key(i));
+        }
+        file.put(Partition.PREKEYS, key(7), value(7, 2));
+        file.close();
+
+        file = new KvFile(path);
+        file.open();
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(i % 3 == 0 ? null : value(i, 0), file.get(Partition.SESSIONS, key(i)), "key " + i);
+            assertArrayEquals(value(i, i == 7 ? 2 : 1), file.get(Partition.PREKEYS, key(i)), "key " + i);
+        }
+        assertEquals(66, file.keys(Partition.SESSIONS).size());
+        assertTrue(file.keys(Partition.SENDER_KEYS).isEmpty());
+        file.close();
+    }
+
+    @Test
+    void tornTailIsCutOff() throws IOException {
+        Path path = dir.resolve("store.kv");
+        KvFile file = new KvFile(path);
+        file.open();
+        for (int i = 0; i < 10; i++) {
+            file.put(Partition.SESSIONS, key(i), value(i, 0));
+        }
+        file.close();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 5);
+        }
+
+        file = new KvFile(path);
+        file.open();
+        assertEquals(9, file.keys(Partition.SESSIONS).size());
+        assertNull(file.get(Partition.SESSIONS, key(9)));
+        file.put(Partition.SESSIONS, key(10), value(10, 0));
+        file.close();
+
+        file = new KvFile(path);
+        file.open();
+        assertArrayEquals(value(8, 0), file.get(Partition.SESSIONS, key(8)));
+        assertArrayEquals(value(10, 0), file.get(Partition.SESSIONS, key(10)));
+        assertFalse(file.contains(Partition.SESSIONS, key(9)));
+        file.close();
+    }
+
+    @Test
+    void corruptRecordKeepsEarlierRecords() throws IOException {
+        Path path = dir.resolve("store.kv");
+        KvFile file = new KvFile(path);
+        file.open();
+        for (int i = 0; i < 10; i++) {
+            file.put(Partition.SESSIONS, key(i), value(i, 0));
+        }
+        file.close();
+        int recordSize = (int) (Files.size(path) / 10);
+        byte[] content = Files.readAllBytes(path);
+        content[6 * recordSize - 1] ^= 1;
+        Files.write(path, content);
+
+        file = new KvFile(path);
+        file.open();
+        for (int i = 0; i < 5; i++) {
+            assertArrayEquals(value(i, 0), file.get(Partition.SESSIONS, key(i)), "key " + i);
+        }
+        assertNull(file.get(Partition.SESSIONS, key(5)));
+        file.put(Partition.SESSIONS, key(5), value(5, 1));
+        file.close();
+
+        file = new KvFile(path);
+        file.open();
+        assertArrayEquals(value(5, 1), file.get(Partition.SESSIONS, key(5)));
+        file.close();
+    }
+
+    @Test
+    void viewIsNotAffectedByLaterWrites() throws IOException {
+        KvFile file = new KvFile(dir.resolve("store.kv"));
+        file.open();
+        file.put(Partition.SESSIONS, key(1), value(1, 0));
+        try (KvFile.View view = file.view(Partition.SESSIONS)) {
+            file.put(Partition.SESSIONS, key(1), value(1, 1));
+            file.remove(Partition.SESSIONS, key(1));
+            assertArrayEquals(value(1, 0), view.get(key(1)));
+        }
+        file.close();
+    }
+
+    private static byte[] key(int i) {
+        return KeyCodec.INT.encode(i);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Compares the size on disk and the load time of a session log in every
+ * {@link RecordCodec.Format}. Run it with the test classpath, e.g.
+ * <pre>
+ * java -cp target/classes:target/test-classes com.gluonhq.equation.store.RecordCodecBenchmark [sessions] [maxArchivedStates]
+ * </pre>
+ * The sessions are generated with the layout of a serialized session record:
+ * the current state and up to <code>maxArchivedStates</code> archived states,
+ * each with the identity keys of both sides, a root key, a sender chain and a
+ * few receiver chains with unused message keys. The default is 5000 sessions
+ * with up to 40 archived states, which is the limit of a session record.
+ */
+public class RecordCodecBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int maxArchived = args.length > 1 ? Integer.parseInt(args[1]) : 40;
+        Random random = new Random(42);
+        byte[] localIdentity = bytes(random, 33);
+        List<byte[]> sessions = new ArrayList<>(count);
+        long rawBytes = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] session = session(random, localIdentity, random.nextInt(maxArchived + 1));
+            sessions.add(session);
+            rawBytes += session.length;
+        }
+        System.out.println(count + " sessions, " + rawBytes / count + " bytes on average");
+        System.out.println("format     bytes on disk   ratio   open ms   load ms");
+        for (RecordCodec.Format format : RecordCodec.Format.values()) {
+            byte[] dictionary = format == RecordCodec.Format.DEFLATE ? dictionary(sessions) : null;
+            run(new RecordCodec(format, dictionary), sessions, rawBytes);
+        }
+    }
+
+    private static void run(RecordCodec codec, List<byte[]> sessions, long rawBytes) throws IOException {
+        Path dir = Files.createTempDirectory("wave-codec-bench");
+        try {
+            RecordLog<Integer> log = new RecordLog<>(dir, KeyCodec.INT);
+            log.open(null);
+            for (int i = 0; i < sessions.size(); i++) {
+                log.put(i, codec.encode(sessions.get(i)));
+            }
+            log.close();
+            long size = size(dir);
+
+            // the best of a few rounds, to leave out the warm-up
+            long open = Long.MAX_VALUE;
+            long load = Long.MAX_VALUE;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = System.nanoTime();
+                log = new RecordLog<>(dir, KeyCodec.INT);
+                log.open(null);
+                long opened = System.nanoTime();
+                long check = 0;
+                for (int i = 0; i < sessions.size(); i++) {
+                    check += codec.decode(log.get(i)).length;
+                }
+                long loaded = System.nanoTime();
+                log.close();
+                if (check == 0) {
+                    throw new IllegalStateException("Nothing was loaded");
+                }
+                open = Math.min(open, opened - start);
+                load = Math.min(load, loaded - start);
+            }
+            System.out.printf("%-8s %15d %7.2f %9.1f %9.1f%n", codec.getFormat(), size,
+                    (double) size / rawBytes, open / 1e6, load / 1e6);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Samples the dictionary the way the store does: the last 32 KiB of
+     * the first sessions.
+     */
+    private static byte[] dictionary(List<byte[]> sessions) {
+        ByteArrayOutputStream sample = new ByteArrayOutputStream();
+        for (byte[] session : sessions) {
+            if (sample.size() >= DICTIONARY_SIZE) {
+                break;
+            }
+            sample.write(session, 0, session.length);
+        }
+        byte[] b = sample.toByteArray();
+        return Arrays.copyOfRange(b, Math.max(0, b.length - DICTIONARY_SIZE), b.length);
+    }
+
+    private static byte[] session(Random random, byte[] localIdentity, int archived) {
+        byte[] remoteIdentity = bytes(random, 33);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        field(record, 1, state(random, localIdentity, remoteIdentity));
+        for (int i = 0; i < archived; i++) {
+            field(record, 2, state(random, localIdentity, remoteIdentity));
+        }
+        return record.toByteArray();
+    }
+
+    private static byte[] state(Random random, byte[] localIdentity, byte[] remoteIdentity) {
+        ByteArrayOutputStream state = new ByteArrayOutputStream();
+        varint(state, 1, 3);
+        field(state, 2, localIdentity);
+        field(state, 3, remoteIdentity);
+        field(state, 4, bytes(random, 32));
+        varint(state, 5, random.nextInt(100));
+        ByteArrayOutputStream sender = new ByteArrayOutputStream();
+        field(sender, 1, bytes(random, 33));
+        field(sender, 2, bytes(random, 32));
+        field(sender, 3, chainKey(random));
+        field(state, 6, sender.toByteArray());
+        for (int i = random.nextInt(5); i > 0; i--) {
+            ByteArrayOutputStream receiver = new ByteArrayOutputStream();
+            field(receiver, 1, bytes(random, 33));
+            field(receiver, 3, chainKey(random));
+            for (int j = random.nextInt(4); j > 0; j--) {
+                ByteArrayOutputStream messageKey = new ByteArrayOutputStream();
+                varint(messageKey, 1, random.nextInt(2000));
+                field(messageKey, 2, bytes(random, 32));
+                field(messageKey, 3, bytes(random, 32));
+                field(messageKey, 4, bytes(random, 16));
+                field(receiver, 4, messageKey.toByteArray());
+            }
+            field(state, 7, receiver.toByteArray());
+        }
+        varint(state, 10, random.nextInt(16384));
+        varint(state, 11, 1234);
+        field(state, 13, bytes(random, 33));
+        return state.toByteArray();
+    }
+
+    private static byte[] chainKey(Random random) {
+        ByteArrayOutputStream chainKey = new ByteArrayOutputStream();
+        varint(chainKey, 1, random.nextInt(2000));
+        field(chainKey, 2, bytes(random, 32));
+        return chainKey.toByteArray();
+    }
+
+    private static void field(ByteArrayOutputStream out, int number, byte[] value) {
+        RecordCodec.writeVarint(out, (number << 3) | 2);
+        RecordCodec.writeVarint(out, value.length);
+        out.write(value, 0, value.length);
+    }
+
+    private static void varint(ByteArrayOutputStream out, int number, int value) {
+        RecordCodec.writeVarint(out, number << 3);
+        RecordCodec.writeVarint(out, value);
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] answer = new byte[length];
+        random.nextBytes(answer);
+        return answer;
+    }
+
+    private static long size(Path dir) throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException ex) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
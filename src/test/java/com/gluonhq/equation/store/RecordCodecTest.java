@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class RecordCodecTest {
+
+    private static final byte[] IDENTITY = new byte[33];
+    private static final byte[] DICTIONARY;
+
+    static {
+        new Random(0).nextBytes(IDENTITY);
+        DICTIONARY = record(new Random(1), 2048);
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        Random random = new Random(2);
+        for (RecordCodec.Format format : RecordCodec.Format.values()) {
+            RecordCodec codec = new RecordCodec(format, DICTIONARY);
+            for (int size : new int[] {1, 10, 63, 64, 1000, 100_000}) {
+                byte[] raw = record(random, size);
+                assertArrayEquals(raw, codec.decode(codec.encode(raw)), format + " " + size);
+            }
+        }
+    }
+
+    @Test
+    void rawRecordsAreReadAsTheyAre() throws IOException {
+        byte[] raw = record(new Random(3), 500);
+        byte[] stored = new RecordCodec(RecordCodec.Format.RAW, null).encode(raw);
+        assertSame(raw, stored);
+        assertSame(raw, new RecordCodec(RecordCodec.Format.DEFLATE, DICTIONARY).decode(stored));
+    }
+
+    @Test
+    void deflateWithDictionaryIsSmaller() {
+        byte[] raw = record(new Random(4), 2000);
+        int deflated = new RecordCodec(RecordCodec.Format.DEFLATE, null).encode(raw).length;
+        int withDictionary = new RecordCodec(RecordCodec.Format.DEFLATE, DICTIONARY).encode(raw).length;
+        assertTrue(deflated < raw.length);
+        assertTrue(withDictionary < deflated);
+    }
+
+    @Test
+    void checksumMismatch() {
+        RecordCodec codec = new RecordCodec(RecordCodec.Format.COMPACT, null);
+        byte[] stored = codec.encode(record(new Random(5), 100));
+        stored[stored.length - 1] ^= 1;
+        assertThrows(IOException.class, () -> codec.decode(stored));
+        stored[stored.length - 1] ^= 1;
+        stored[10] ^= 1;
+        assertThrows(IOException.class, () -> codec.decode(stored));
+    }
+
+    @Test
+    void truncatedRecord() {
+        RecordCodec codec = new RecordCodec(RecordCodec.Format.DEFLATE, DICTIONARY);
+        byte[] stored = codec.encode(record(new Random(6), 1000));
+        for (int length = 1; length < stored.length; length++) {
+            byte[] truncated = Arrays.copyOf(stored, length);
+            assertThrows(IOException.class, () -> codec.decode(truncated), "length " + length);
+        }
+    }
+
+    @Test
+    void invalidLengthIsRejectedBeforeAllocating() {
+        RecordCodec codec = new RecordCodec(RecordCodec.Format.DEFLATE, null);
+        // a varint length of Integer.MAX_VALUE, a negative one, and one that never ends
+        byte[] huge = {0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07, 1, 2, 3, 4};
+        byte[] negative = {0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f, 1, 2, 3, 4};
+        byte[] endless = {0, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 1};
+        // a deflated payload of 5 bytes can't hold 1 MiB
+        byte[] ratio = {0, 1, (byte) 0x80, (byte) 0x80, 0x40, 1, 2, 3, 4, 5, 1, 2, 3, 4};
+        for (byte[] stored : new byte[][] {huge, negative, endless, ratio}) {
+            assertThrows(IOException.class, () -> codec.decode(stored));
+        }
+    }
+
+    @Test
+    void unknownDictionary() {
+        byte[] raw = record(new Random(7), 2000);
+        byte[] stored = new RecordCodec(RecordCodec.Format.DEFLATE, DICTIONARY).encode(raw);
+        assertEquals(1, stored[1]);
+        assertThrows(IOException.class, () -> new RecordCodec(RecordCodec.Format.DEFLATE, null).decode(stored));
+        byte[] other = record(new Random(8), 2048);
+        assertThrows(IOException.class, () -> new RecordCodec(RecordCodec.Format.DEFLATE, other).decode(stored));
+    }
+
+    @Test
+    void corruptRecordsOnlyFailWithIOException() {
+        Random random = new Random(9);
+        RecordCodec codec = new RecordCodec(RecordCodec.Format.DEFLATE, DICTIONARY);
+        byte[] raw = record(random, 1500);
+        byte[] stored = codec.encode(raw);
+        for (int i = 0; i < 5000; i++) {
+            byte[] corrupt = stored.clone();
+            for (int n = random.nextInt(3); n >= 0; n--) {
+                corrupt[1 + random.nextInt(corrupt.length - 1)] = (byte) random.nextInt();
+            }
+            try {
+                codec.decode(corrupt);
+            } catch (IOException expected) {
+                // every other exception fails the test
+            }
+        }
+    }
+
+    /**
+     * A record like a serialized session: the same identity key in every
+     * record, and in every state, with random keys in between.
+     */
+    static byte[] record(Random random, int size) {
+        byte[] answer = new byte[size];
+        for (int i = 0; i < size; i++) {
+            int block = i % 80;
+            if (block < 2) {
+                answer[i] = (byte) (0x12 + block);
+            } else if (block < 2 + IDENTITY.length) {
+                answer[i] = IDENTITY[block - 2];
+            } else {
+                answer[i] = (block % 35 == 0) ? 0x1a : (byte) random.nextInt();
+            }
+        }
+        answer[0] = 0x0a;
+        return answer;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RecordLogTest {
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void logger() {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        RecordLog<Integer> log = new RecordLog<>(dir, KeyCodec.INT);
+        log.open(null);
+        for (int i = 0; i < 100; i++) {
+            log.put(i, value(i, 0));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            log.put(i, value(i, 1));
+        }
+        for (int i = 0; i < 100; i += 5) {
+            log.remove(i);
+        }
+        log.close();
+
+        Map<Integer, byte[]> loaded = new HashMap<>();
+        log = new RecordLog<>(dir, KeyCodec.INT);
+        log.open(loaded::put);
+        for (int i = 0; i < 100; i++) {
+            byte[] expected = (i % 5 == 0) ? null : value(i, i % 2 == 0 ? 1 : 0);
+            assertArrayEquals(expected, log.get(i), "key " + i);
+            assertArrayEquals(expected, loaded.get(i), "key " + i);
+        }
+        assertEquals(80, log.keys().size());
+        log.close();
+    }
+
+    @Test
+    void tornTailIsCutOff() throws IOException {
+        RecordLog<Integer> log = new RecordLog<>(dir, KeyCodec.INT);
+        log.open(null);
+        for (int i = 0; i < 10; i++) {
+            log.put(i, value(i, 0));
+        }
+        log.close();
+        Path segment = lastSegment();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        log = new RecordLog<>(dir, KeyCodec.INT);
+        log.open(null);
+        assertEquals(9, log.keys().size());
+        assertNull(log.get(9));
+        log.put(10, value(10, 0));
+        log.close();
+
+        // a record that is appended after recovery is found again
+        log = new RecordLog<>(dir, KeyCodec.INT);
+        log.open(null);
+        assertArrayEquals(value(8, 0), log.get(8));
+        assertArrayEquals(value(10, 0), log.get(10));
+        assertFalse(log.contains(9));
+        log.close();
+    }
+
+    @Test
+    void corruptRecordIsQuarantined() throws IOException {
+        Path logDir = dir.resolve("log");
+        RecordLog<Integer> log = new RecordLog<>(logDir, KeyCodec.INT);
+        log.open(null);
+        log.put(1, value(1, 0));
+        log.put(2, value(2, 0));
+        log.put(1, value(1, 1));
+        log.put(3, value(3, 0));
+        log.close();
+        // flip a byte in the value of the third record, the update of key 1
+        Path segment = lastSegment(logDir);
+        byte[] content = Files.readAllBytes(segment);
+        int recordSize = RecordLog.HEADER_SIZE + 4 + value(1, 0).length;
+        content[2 * recordSize + RecordLog.HEADER_SIZE + 4] ^= 1;
+        Files.write(segment, content);
+
+        Quarantine quarantine = new Quarantine(dir.resolve("quarantine"));
+        log = new RecordLog<>(logDir, KeyCodec.INT, Partition.SESSIONS, quarantine);
+        log.open(null);
+        // the key keeps its previous value, and the records after it are still read
+        assertArrayEquals(value(1, 0), log.get(1));
+        assertArrayEquals(value(2, 0), log.get(2));
+        assertArrayEquals(value(3, 0), log.get(3));
+        log.close();
+        try (Stream<Path> files = Files.walk(quarantine.getDirectory())) {
+            assertTrue(files.anyMatch(Files::isRegularFile));
+        }
+    }
+
+    @Test
+    void viewIsNotAffectedByLaterWrites() throws IOException {
+        RecordLog<Integer> log = new RecordLog<>(dir, KeyCodec.INT);
+        log.open(null);
+        log.put(1, value(1, 0));
+        try (TableView<Integer> view = log.view()) {
+            log.put(1, value(1, 1));
+            log.put(2, value(2, 0));
+            assertArrayEquals(value(1, 0), view.get(1));
+            assertFalse(view.contains(2));
+        }
+        log.close();
+    }
+
+    private Path lastSegment() throws IOException {
+        return lastSegment(dir);
+    }
+
+    private static Path lastSegment(Path dir) throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.filter(p -> p.getFileName().toString().endsWith(".seg"))
+                    .sorted()
+                    .reduce((a, b) -> b)
+                    .orElseThrow();
+        }
+    }
+
+    static byte[] value(int key, int version) {
+        byte[] answer = new byte[32];
+        for (int i = 0; i < answer.length; i++) {
+            answer[i] = (byte) (key * 31 + version * 7 + i);
+        }
+        return answer;
+    }
+}
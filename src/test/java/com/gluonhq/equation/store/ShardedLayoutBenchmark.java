@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+/**
+ * Compares the startup time and the write latency of a {@link FileTable} in
+ * the flat and the sharded layout. Run it with the test classpath, e.g.
+ * <pre>
+ * java -cp target/classes:target/test-classes com.gluonhq.equation.store.ShardedLayoutBenchmark [dir] [entries...]
+ * </pre>
+ * The default sizes are 10k, 100k and 1M entries. The directory should be on
+ * the file system that is measured, not on a tmpfs.
+ */
+public class ShardedLayoutBenchmark {
+
+    private static final int WRITES = 2000;
+    private static final byte[] VALUE = new byte[1024];
+
+    public static void main(String[] args) throws IOException {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+        Path root = args.length > 0 ? Path.of(args[0]) : Files.createTempDirectory("wave-shard-bench");
+        int[] sizes = args.length > 1
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] {10_000, 100_000, 1_000_000};
+        System.out.println("layout   entries    startup ms   write us (mean/p99)   remove us (mean/p99)");
+        for (int size : sizes) {
+            for (FileTable.Layout layout : FileTable.Layout.values()) {
+                Path dir = root.resolve(layout.name().toLowerCase() + "-" + size);
+                run(dir, layout, size);
+                delete(dir);
+            }
+        }
+    }
+
+    private static void run(Path dir, FileTable.Layout layout, int size) throws IOException {
+        FileTable<Integer> table = new FileTable<>(dir, KeyCodec.INT, layout);
+        table.open(null);
+        for (int i = 0; i < size; i++) {
+            table.put(i, VALUE);
+        }
+        table.close();
+
+        // what a store does at startup: open the table and list its keys
+        long start = System.nanoTime();
+        table = new FileTable<>(dir, KeyCodec.INT, layout);
+        table.open(null);
+        int keys = table.keys().size();
+        long startup = System.nanoTime() - start;
+        if (keys != size) {
+            throw new IllegalStateException("Expected " + size + " keys, found " + keys);
+        }
+
+        long[] writes = new long[WRITES];
+        for (int i = 0; i < WRITES; i++) {
+            long t = System.nanoTime();
+            table.put(size + i, VALUE);
+            writes[i] = System.nanoTime() - t;
+        }
+        long[] removes = new long[WRITES];
+        for (int i = 0; i < WRITES; i++) {
+            long t = System.nanoTime();
+            table.remove(size + i);
+            removes[i] = System.nanoTime() - t;
+        }
+        table.close();
+        System.out.printf("%-8s %8d %12.1f %12.1f/%-8.1f %12.1f/%-8.1f%n", layout, size, startup / 1e6,
+                mean(writes) / 1e3, p99(writes) / 1e3, mean(removes) / 1e3, p99(removes) / 1e3);
+    }
+
+    private static double mean(long[] samples) {
+        return Arrays.stream(samples).average().orElse(0);
+    }
+
+    private static double p99(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) (sorted.length * 0.99)];
+    }
+
+    private static void delete(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException ex) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.store.RecordLogTest.value;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SlotFileTest {
+
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 64;
+
+    @TempDir
+    Path dir;
+
+    @BeforeAll
+    static void logger() {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        Path path = dir.resolve("prekeys.slots");
+        SlotFile file = new SlotFile(path, SLOT_SIZE);
+        file.open();
+        // more than the initial number of slots, so the file grows
+        for (int i = 0; i < 300; i++) {
+            file.put(i, value(i, 0));
+        }
+        for (int i = 0; i < 300; i += 2) {
+            file.put(i, value(i, 1));
+        }
+        for (int i = 0; i < 300; i += 3) {
+            file.remove(i);
+        }
+        file.close();
+
+        file = new SlotFile(path, SLOT_SIZE);
+        file.open();
+        for (int i = 0; i < 300; i++) {
+            byte[] expected = (i % 3 == 0) ? null : value(i, i % 2 == 0 ? 1 : 0);
+            assertArrayEquals(expected, file.get(i), "id " + i);
+        }
+        assertEquals(200, file.size());
+        file.close();
+    }
+
+    @Test
+    void interruptedUpdateKeepsOneValue() throws IOException {
+        Path path = dir.resolve("prekeys.slots");
+        SlotFile file = new SlotFile(path, SLOT_SIZE);
+        file.open();
+        file.put(1, value(1, 0));
+        file.put(2, value(2, 0));
+        file.close();
+        // a crash after the new value of id 1 was written, before its old slot was freed
+        writeSlot(path, 5, 1, value(1, 1));
+
+        file = new SlotFile(path, SLOT_SIZE);
+        file.open();
+        byte[] value = file.get(1);
+        assertTrue(Arrays.equals(value(1, 0), value) || Arrays.equals(value(1, 1), value));
+        assertArrayEquals(value(2, 0), file.get(2));
+        assertEquals(2, file.size());
+        file.remove(1);
+        file.close();
+
+        // the duplicate was freed, so the removal is complete
+        file = new SlotFile(path, SLOT_SIZE);
+        file.open();
+        assertNull(file.get(1));
+        assertEquals(1, file.size());
+        file.close();
+    }
+
+    @Test
+    void stagedValuesAreVisibleBeforeTheyAreWritten() throws IOException {
+        Path path = dir.resolve("prekeys.slots");
+        SlotFile file = new SlotFile(path, SLOT_SIZE);
+        file.open();
+        file.put(1, value(1, 0));
+        file.stage(1, value(1, 1));
+        file.stage(2, value(2, 0));
+        assertArrayEquals(value(1, 1), file.get(1));
+        assertArrayEquals(value(2, 0), file.get(2));
+        assertArrayEquals(value(1, 0), file.copy().get(1));
+        file.close();
+
+        file = new SlotFile(path, SLOT_SIZE);
+        file.open();
+        assertArrayEquals(value(1, 0), file.get(1));
+        assertNull(file.get(2));
+        file.close();
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException {
+        Path path = dir.resolve("prekeys.slots");
+        SlotFile file = new SlotFile(path, SLOT_SIZE);
+        file.open();
+        file.put(1, value(1, 0));
+        file.close();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(HEADER_SIZE + SLOT_SIZE);
+        }
+        assertThrows(IOException.class, () -> new SlotFile(path, SLOT_SIZE).open());
+    }
+
+    private static void writeSlot(Path path, int slot, int id, byte[] value) throws IOException {
+        assertTrue(Files.size(path) >= HEADER_SIZE + (long) (slot + 1) * SLOT_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + value.length);
+        buffer.putInt(id).putInt(value.length).put(value).flip();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(buffer, HEADER_SIZE + (long) slot * SLOT_SIZE);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static com.gluonhq.equation.store.RecordLogTest.value;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.System.Logger.Level;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class StoreArchiveTest {
+
+    private static final int MAGIC = 0x57415243;
+    private static final int VERSION = 1;
+    // more than one chunk of entries
+    private static final int SESSIONS = 10_000;
+
+    private static byte[] archive;
+
+    @BeforeAll
+    static void writeArchive() throws IOException {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+        Map<Integer, byte[]> sessions = new HashMap<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions.put(i, value(i, 0));
+        }
+        Map<String, byte[]> account = new HashMap<>();
+        account.put("uuid", "5e1f0b4c".getBytes(StandardCharsets.UTF_8));
+        Map<Partition, TableView<?>> views = new EnumMap<>(Partition.class);
+        views.put(Partition.SESSIONS, new CopiedTableView<>(sessions));
+        views.put(Partition.ACCOUNT, new CopiedTableView<>(account));
+        Map<Partition, KeyCodec<?>> codecs = new EnumMap<>(Partition.class);
+        codecs.put(Partition.SESSIONS, KeyCodec.INT);
+        codecs.put(Partition.ACCOUNT, KeyCodec.STRING);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (StoreView view = new StoreView(views, codecs, 1234L)) {
+            long count = StoreArchive.write(view, Map.of("contacts.json", "[]".getBytes(StandardCharsets.UTF_8)), out);
+            assertEquals(SESSIONS + 1, count);
+        }
+        archive = out.toByteArray();
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        Collector collector = read(archive);
+        Map<ByteBuffer, byte[]> sessions = collector.entries.get(Partition.SESSIONS);
+        assertEquals(SESSIONS, sessions.size());
+        for (int i = 0; i < SESSIONS; i++) {
+            assertArrayEquals(value(i, 0), sessions.get(ByteBuffer.wrap(KeyCodec.INT.encode(i))));
+        }
+        assertArrayEquals("5e1f0b4c".getBytes(StandardCharsets.UTF_8),
+                collector.entries.get(Partition.ACCOUNT).get(ByteBuffer.wrap(KeyCodec.STRING.encode("uuid"))));
+        assertArrayEquals("[]".getBytes(StandardCharsets.UTF_8), collector.files.get("contacts.json"));
+    }
+
+    @Test
+    void notAnArchive() {
+        assertThrows(IOException.class, () -> read("not an archive at all".getBytes(StandardCharsets.UTF_8)));
+        byte[] otherVersion = archive.clone();
+        otherVersion[7] = 2;
+        assertThrows(IOException.class, () -> read(otherVersion));
+    }
+
+    @Test
+    void truncatedArchive() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            byte[] truncated = Arrays.copyOf(archive, random.nextInt(archive.length));
+            assertThrows(IOException.class, () -> read(truncated), "length " + truncated.length);
+        }
+        byte[] withoutEnd = Arrays.copyOf(archive, archive.length - 1);
+        assertThrows(IOException.class, () -> read(withoutEnd));
+    }
+
+    @Test
+    void corruptChunk() {
+        // past the header, the type, the partition and the four lengths of the first chunk
+        byte[] corrupt = archive.clone();
+        corrupt[16 + 2 + 16 + 10] ^= 1;
+        assertThrows(IOException.class, () -> read(corrupt));
+    }
+
+    @Test
+    void invalidLengthIsRejectedBeforeAllocating() throws IOException {
+        int[][] lengths = {
+            {1, Integer.MAX_VALUE, 0, 10},
+            {1, 10, 0, Integer.MAX_VALUE},
+            {-1, 10, 0, 10},
+            {1, -1, 0, 10},
+            // a deflated chunk of 10 bytes can't hold 1 MiB
+            {1, 1024 * 1024, 0, 10}
+        };
+        for (int[] chunk : lengths) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(0);
+            dos.writeByte(1);
+            dos.writeByte(Partition.SESSIONS.getId());
+            for (int n : chunk) {
+                dos.writeInt(n);
+            }
+            dos.write(new byte[10]);
+            assertThrows(IOException.class, () -> read(out.toByteArray()), Arrays.toString(chunk));
+        }
+    }
+
+    @Test
+    void corruptArchivesOnlyFailWithIOException() {
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            byte[] corrupt = archive.clone();
+            for (int n = random.nextInt(3); n >= 0; n--) {
+                corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt();
+            }
+            try {
+                read(corrupt);
+            } catch (IOException expected) {
+                // every other exception fails the test
+            }
+        }
+    }
+
+    private static Collector read(byte[] b) throws IOException {
+        Collector collector = new Collector();
+        StoreArchive.read(new ByteArrayInputStream(b), collector);
+        return collector;
+    }
+
+    private static class Collector implements StoreArchive.Sink {
+
+        final Map<Partition, Map<ByteBuffer, byte[]>> entries = new EnumMap<>(Partition.class);
+        final Map<String, byte[]> files = new HashMap<>();
+
+        @Override
+        public void entries(Partition partition, byte[][] keys, byte[][] values) {
+            Map<ByteBuffer, byte[]> map = entries.computeIfAbsent(partition, p -> new HashMap<>());
+            for (int i = 0; i < keys.length; i++) {
+                map.put(ByteBuffer.wrap(keys[i]), values[i]);
+            }
+        }
+
+        @Override
+        public void file(String name, byte[] content) {
+            files.put(name, content);
+        }
+    }
+}
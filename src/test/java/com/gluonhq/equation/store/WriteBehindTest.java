@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021 Gluon
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package com.gluonhq.equation.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import com.gluonhq.equation.WaveManager;
+import com.gluonhq.equation.log.WaveLogger;
+import java.lang.System.Logger.Level;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+class WriteBehindTest {
+
+    @BeforeAll
+    static void logger() {
+        WaveManager.WAVELOG = new WaveLogger(Level.WARNING);
+    }
+
+    @Test
+    void writesRunInOrderOnTheSharedPool() {
+        WriterPool pool = new WriterPool("test-writer", 2);
+        List<WriteBehind> writers = new ArrayList<>();
+        List<List<Integer>> written = new ArrayList<>();
+        Set<String> threadNames = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 5; i++) {
+            writers.add(new WriteBehind("test-writer-" + i, Durability.BATCH, pool));
+            written.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        for (int n = 0; n < 1000; n++) {
+            for (int i = 0; i < writers.size(); i++) {
+                int value = n;
+                List<Integer> target = written.get(i);
+                // distinct keys, so nothing is coalesced
+                writers.get(i).submit(null, value, () -> {
+                    threadNames.add(Thread.currentThread().getName());
+                    target.add(value);
+                });
+            }
+        }
+        pool.flush();
+        for (int i = 0; i < writers.size(); i++) {
+            assertEquals(1000, written.get(i).size());
+            for (int n = 0; n < 1000; n++) {
+                assertEquals(n, written.get(i).get(n));
+            }
+            assertTrue(threadNames.contains("test-writer-" + i));
+        }
+        writers.forEach(WriteBehind::close);
+        pool.close();
+    }
+
+    @Test
+    void writesForTheSameKeyAreCoalesced() {
+        WriterPool pool = new WriterPool("test-writer", 1);
+        WriteBehind writer = new WriteBehind("test-writer-0", Durability.BATCH, pool);
+        AtomicInteger runs = new AtomicInteger();
+        AtomicInteger last = new AtomicInteger();
+        // hold the writer, so the writes queue up
+        writer.submit(null, "block", () -> sleep(100));
+        for (int i = 1; i <= 100; i++) {
+            int value = i;
+            writer.submit(null, "key", () -> {
+                runs.incrementAndGet();
+                last.set(value);
+            });
+        }
+        writer.flush();
+        assertTrue(runs.get() < 100);
+        assertEquals(100, last.get());
+        writer.close();
+        pool.close();
+    }
+
+    @Test
+    void barrierSeparatesWrites() {
+        WriteBehind writer = new WriteBehind("test-writer", Durability.BATCH);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        writer.submit(null, "key", () -> order.add("before"));
+        writer.barrier(() -> order.add("barrier"));
+        writer.submit(null, "key", () -> order.add("after"));
+        writer.close();
+        assertEquals(List.of("before", "barrier", "after"), order);
+    }
+
+    @Test
+    void writesAfterCloseAreDropped() {
+        WriteBehind writer = new WriteBehind("test-writer", Durability.WRITE);
+        AtomicInteger runs = new AtomicInteger();
+        writer.submit(null, "key", runs::incrementAndGet);
+        assertEquals(1, runs.get());
+        writer.close();
+        writer.submit(null, "key", runs::incrementAndGet);
+        writer.barrier(runs::incrementAndGet);
+        writer.flush();
+        assertEquals(1, runs.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}